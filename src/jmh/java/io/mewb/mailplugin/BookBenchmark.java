@@ -0,0 +1,56 @@
+package io.mewb.mailplugin;
+
+import net.md_5.bungee.api.chat.BaseComponent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Page construction for the first window of the mailbox book, with and without the per-message component cache.
+// Stops short of the ItemStack and BookMeta, which need a running server.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BookBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private MailBookRenderer renderer;
+    private UUID playerId;
+    private List<MailMessage> newestFirst;
+
+    @Setup
+    public void setup() {
+        renderer = new MailBookRenderer(null, null, 1, 20);
+        playerId = UUID.randomUUID();
+        newestFirst = new Mailbox(playerId, SyntheticMail.mailbox(playerId, size, 42)).list(System.currentTimeMillis());
+        Collections.reverse(newestFirst);
+    }
+
+    @Benchmark
+    public List<BaseComponent[]> coldPages() {
+        renderer.forget(playerId);
+        return renderer.buildPages(playerId, newestFirst, 1);
+    }
+
+    @Benchmark
+    public List<BaseComponent[]> cachedPages() {
+        return renderer.buildPages(playerId, newestFirst, 1);
+    }
+}
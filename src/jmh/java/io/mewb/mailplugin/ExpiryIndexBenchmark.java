@@ -0,0 +1,73 @@
+package io.mewb.mailplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// How cleanupExpiredMail finds its work: a poll over every known mailbox where only a few are due
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpiryIndexBenchmark {
+
+    @Param({"1000", "100000"})
+    public int mailboxes;
+
+    private File folder;
+    private ExpiryIndex index;
+    private UUID[] playerIds;
+    private long now;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        folder = SyntheticMail.tempFolder();
+        playerIds = new UUID[mailboxes];
+        for (int i = 0; i < mailboxes; i++) {
+            playerIds[i] = UUID.randomUUID();
+        }
+    }
+
+    // 1% due, the rest spread over the next month
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        index = new ExpiryIndex(folder);
+        now = System.currentTimeMillis();
+        for (int i = 0; i < playerIds.length; i++) {
+            index.schedule(playerIds[i], i % 100 == 0 ? now - 1 : now + 1 + (long) i * 1000);
+        }
+    }
+
+    @Benchmark
+    public List<UUID> pollDue() {
+        return index.pollDue(now);
+    }
+
+    @Benchmark
+    public void saveIndex() throws IOException {
+        index.save();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticMail.delete(folder);
+    }
+}
@@ -0,0 +1,93 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Whole mailboxes through YamlConfiguration, as YamlMailStorage saves and loads them minus the file, against the
+// binary codec. YAML runs with real ItemStacks inline and with attachment references; the binary codec only with
+// references, see SyntheticMail.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailCodecBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Yaml {
+        @Param({"10", "1000", "100000"})
+        public int size;
+
+        @Param({"inline", "reference"})
+        public String items;
+
+        List<MailMessage> mailList;
+        String saved;
+
+        @Setup
+        public void setup() {
+            SyntheticMail.server(); // Registers MailMessage, so loading gives messages rather than maps
+            mailList = SyntheticMail.mailbox(UUID.randomUUID(), size, 42, items.equals("inline"));
+            saved = save(mailList);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Binary {
+        @Param({"10", "1000", "100000"})
+        public int size;
+
+        List<MailMessage> mailList;
+        byte[] encoded;
+
+        @Setup
+        public void setup() throws IOException {
+            mailList = SyntheticMail.mailbox(UUID.randomUUID(), size, 42);
+            encoded = MailCodec.encodeMailbox(mailList);
+        }
+    }
+
+    private static String save(List<MailMessage> mailList) {
+        YamlConfiguration mailConfig = new YamlConfiguration();
+        mailConfig.set("mail", mailList);
+        return mailConfig.saveToString();
+    }
+
+    @Benchmark
+    public String saveYaml(Yaml state) {
+        return save(state.mailList);
+    }
+
+    @Benchmark
+    public List<?> loadYaml(Yaml state) throws InvalidConfigurationException {
+        YamlConfiguration mailConfig = new YamlConfiguration();
+        mailConfig.loadFromString(state.saved);
+        return mailConfig.getList("mail");
+    }
+
+    @Benchmark
+    public byte[] encodeBinary(Binary state) throws IOException {
+        return MailCodec.encodeMailbox(state.mailList);
+    }
+
+    @Benchmark
+    public List<MailMessage> decodeBinary(Binary state) throws IOException {
+        return MailCodec.decodeMailbox(state.encoded);
+    }
+}
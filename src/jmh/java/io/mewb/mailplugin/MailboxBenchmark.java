@@ -0,0 +1,112 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.configuration.file.FileConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// MailManager's read paths and expiry cleanup for one cached mailbox, on the core the soak test starts against
+// its HeadlessServer. The mailbox is written to YAML storage, with inline items, and loaded by the first read.
+// Write-behind never flushes during a run, so background saves don't land in the measurements.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailboxBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private File folder;
+    private Mailplugin plugin;
+    private MailManager mailManager;
+    private UUID playerId;
+    private UUID[] ids;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        HeadlessServer server = SyntheticMail.server();
+        folder = SyntheticMail.tempFolder();
+        plugin = server.createPlugin(folder);
+        plugin.onLoad();
+        FileConfiguration config = plugin.getConfig();
+        config.set("storage.mode", "yaml");
+        config.set("cache.offline-idle-seconds", 24 * 60 * 60);
+        config.set("storage.write-behind.flush-interval-ms", 24 * 60 * 60 * 1000L);
+        config.set("storage.write-behind.max-delay-ms", 24 * 60 * 60 * 1000L);
+        config.set("notifications.notify-on-receive", false);
+        config.set("metrics.jmx", false);
+        plugin.startCore();
+        mailManager = plugin.getMailManager();
+
+        playerId = UUID.randomUUID();
+        List<MailMessage> mailList = SyntheticMail.mailbox(playerId, size, 42, true);
+        mailManager.getStorage().saveMailbox(playerId, mailList);
+        ids = new UUID[mailList.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mailList.get(i).getMessageId();
+        }
+        mailManager.getMailForPlayer(playerId);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        plugin.onDisable();
+        SyntheticMail.delete(folder);
+    }
+
+    @Benchmark
+    public List<MailMessage> getMailForPlayer() {
+        return mailManager.getMailForPlayer(playerId);
+    }
+
+    @Benchmark
+    public MailMessage getMailById() {
+        return mailManager.getMailById(playerId, ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+
+    // The login notice
+    @Benchmark
+    public int countNotifiable() {
+        return mailManager.countNotifiable(playerId);
+    }
+
+    @State(Scope.Thread)
+    public static class Due {
+        // One message in a hundred is due, as on a server whose cleanup keeps up. Cleanup removes them again, so
+        // the mailbox stays the same size from one invocation to the next.
+        @Setup(Level.Invocation)
+        public void setup(MailboxBenchmark benchmark) {
+            long now = System.currentTimeMillis();
+            for (int i = Math.max(1, benchmark.size / 100); i > 0; i--) {
+                benchmark.mailManager.deliver(new MailMessage(UUID.randomUUID(), benchmark.playerId, "Sender", "Due",
+                        "Already expired", new ArrayList<>(), now - 2, now - 1, false, false));
+            }
+        }
+    }
+
+    @Benchmark
+    public void cleanupExpiredMail(Due due) {
+        mailManager.cleanupExpiredMail();
+    }
+}
@@ -0,0 +1,89 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Save and load round-trips through the file backends, in a temp folder. Measures the page cache rather than
+// the disk, which is what a warm server sees for recently used mailboxes.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    @Param({"yaml", "binary", "journal"})
+    public String mode;
+
+    @Param({"10", "1000"})
+    public int size;
+
+    private File folder;
+    private MailStorage storage;
+    private UUID playerId;
+    private List<MailMessage> mailList;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ConfigurationSerialization.registerClass(MailMessage.class, "MailMessage");
+        folder = SyntheticMail.tempFolder();
+        Logger logger = Logger.getLogger("MailBenchmark");
+        switch (mode) {
+            case "binary" -> storage = new BinaryMailStorage(folder, logger);
+            case "journal" -> storage = new JournalMailStorage(folder, logger, false, 1.0, 64 * 1024);
+            default -> storage = new YamlMailStorage(folder, logger);
+        }
+        playerId = UUID.randomUUID();
+        mailList = SyntheticMail.mailbox(playerId, size, 42);
+        storage.saveMailbox(playerId, mailList);
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        storage.saveMailbox(playerId, mailList);
+    }
+
+    @Benchmark
+    public List<MailMessage> load() throws IOException {
+        return storage.loadMailbox(playerId);
+    }
+
+    @Benchmark
+    public List<MailMessage> roundTrip() throws IOException {
+        storage.saveMailbox(playerId, mailList);
+        return storage.loadMailbox(playerId);
+    }
+
+    // The common write: one flag change. Incremental backends append it; the others rewrite the mailbox.
+    @Benchmark
+    public void flagChange() throws IOException {
+        MailMessage mail = mailList.get(0);
+        storage.applyChanges(playerId, List.of(MailChange.flags(mail.getMessageId(), true, mail.isClaimed())));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.close();
+        SyntheticMail.delete(folder);
+    }
+}
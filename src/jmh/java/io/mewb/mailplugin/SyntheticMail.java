@@ -0,0 +1,79 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+// Reproducible mailboxes for the benchmarks. Every third message has items: real ItemStacks inline, made and
+// serialized through the soak test's HeadlessServer, or an attachment reference. The binary codec can only take
+// references, since ItemStack.serializeAsBytes needs a real server.
+final class SyntheticMail {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final Material[] ITEM_TYPES = {Material.DIAMOND, Material.IRON_INGOT, Material.OAK_LOG, Material.BREAD, Material.TORCH};
+
+    private static HeadlessServer server;
+
+    private SyntheticMail() {
+    }
+
+    // Bukkit's server can only be set once, so every benchmark in a fork shares this one
+    static synchronized HeadlessServer server() {
+        if (server == null) {
+            server = HeadlessServer.install();
+            ConfigurationSerialization.registerClass(MailMessage.class, "MailMessage");
+        }
+        return server;
+    }
+
+    static List<MailMessage> mailbox(UUID playerId, int size, long seed) {
+        return mailbox(playerId, size, seed, false);
+    }
+
+    static List<MailMessage> mailbox(UUID playerId, int size, long seed, boolean inlineItems) {
+        if (inlineItems) {
+            server();
+        }
+        Random random = new Random(seed);
+        long now = System.currentTimeMillis();
+        List<MailMessage> mailList = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            long sent = now - (long) (random.nextDouble() * 30 * DAY);
+            long expiry = random.nextInt(4) == 0 ? 0 : sent + 30 * DAY;
+            boolean read = random.nextBoolean();
+            MailMessage mail = new MailMessage(new UUID(random.nextLong(), random.nextLong()), playerId,
+                    "Sender" + random.nextInt(500), "Subject " + i, "Body of message " + i + " with some text to render.",
+                    new ArrayList<>(), sent, expiry, false, read);
+            if (i % 3 == 0 && inlineItems) {
+                for (int j = random.nextInt(3); j >= 0; j--) {
+                    mail.getItems().add(new ItemStack(ITEM_TYPES[random.nextInt(ITEM_TYPES.length)], 1 + random.nextInt(64)));
+                }
+            } else if (i % 3 == 0) {
+                mail.setAttachment(Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()), List.of());
+            }
+            mailList.add(mail);
+        }
+        return mailList;
+    }
+
+    static File tempFolder() throws IOException {
+        return Files.createTempDirectory("mail-bench").toFile();
+    }
+
+    static void delete(File folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.Server;
+import org.bukkit.UnsafeValues;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.ServicesManager;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+import sun.reflect.ReflectionFactory;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Just enough of a server to run the plugin's core without one. The main thread is a single thread ticking every
+// 50 ms, async tasks run on a small pool, and players are stand-ins with an empty inventory that count the
+// messages sent to them. ItemStacks work as far as YAML goes: they serialize and load by type and amount, without
+// meta, as there is no item factory to make any. serializeAsBytes needs the server's NBT codec and doesn't work.
+// Anything else the mail code asks for answers null, zero or false.
+final class HeadlessServer {
+
+    static final long TICK_MILLIS = 50;
+    private static final int DATA_VERSION = 3953; // 1.21
+
+    private final Logger logger = Logger.getLogger("HeadlessServer");
+    private final ScheduledThreadPoolExecutor mainThread;
+    private final ScheduledThreadPoolExecutor asyncPool;
+    private final Map<UUID, Player> players = new ConcurrentHashMap<>();
+    private final Map<UUID, Player> online = new ConcurrentHashMap<>();
+    private final AtomicInteger taskIds = new AtomicInteger();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final Server server;
+    private volatile Thread primaryThread;
+
+    private HeadlessServer() {
+        this.mainThread = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "Server thread");
+            thread.setDaemon(true);
+            primaryThread = thread;
+            return thread;
+        });
+        AtomicInteger threadCount = new AtomicInteger();
+        this.asyncPool = new ScheduledThreadPoolExecutor(4, r -> {
+            Thread thread = new Thread(r, "Headless-Async-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        BukkitScheduler scheduler = proxy(BukkitScheduler.class, this::scheduler);
+        ServicesManager services = proxy(ServicesManager.class, (method, args) -> null);
+        PluginManager plugins = proxy(PluginManager.class, (method, args) -> null);
+        UnsafeValues unsafe = proxy(UnsafeValues.class, (method, args) -> switch (method.getName()) {
+            case "getDataVersion" -> DATA_VERSION;
+            case "getMaterial" -> Material.getMaterial((String) args[0]);
+            case "fromLegacy" -> args[0];
+            default -> null;
+        });
+        ItemFactory items = proxy(ItemFactory.class, (method, args) -> switch (method.getName()) {
+            case "equals" -> Objects.equals(args[0], args[1]); // Both null: no meta on either side
+            case "isApplicable" -> true;
+            default -> null;
+        });
+        this.server = proxy(Server.class, (method, args) -> switch (method.getName()) {
+            case "getLogger" -> logger;
+            case "getName" -> "HeadlessServer";
+            case "getVersion", "getBukkitVersion", "getMinecraftVersion" -> "headless";
+            case "getScheduler" -> scheduler;
+            case "getServicesManager" -> services;
+            case "getPluginManager" -> plugins;
+            case "getUnsafe" -> unsafe;
+            case "getItemFactory" -> items;
+            case "getPlayer" -> args[0] instanceof UUID id ? online.get(id) : null;
+            case "getOnlinePlayers" -> List.copyOf(online.values());
+            case "getOfflinePlayers" -> new OfflinePlayer[0];
+            case "getTPS" -> new double[]{20, 20, 20};
+            case "isPrimaryThread" -> Thread.currentThread() == primaryThread;
+            default -> null;
+        });
+    }
+
+    // Bukkit's server can only be set once per JVM
+    static HeadlessServer install() {
+        HeadlessServer headless = new HeadlessServer();
+        Bukkit.setServer(headless.server);
+        return headless;
+    }
+
+    // JavaPlugin's public constructor insists on a plugin class loader. Instead, the plugin is allocated and only
+    // JavaPlugin's loader constructor runs on it, as deserialization does; Mailplugin's own fields all start out null.
+    Mailplugin createPlugin(File dataFolder) {
+        PluginDescriptionFile description = new PluginDescriptionFile("MailPlugin", "soak", Mailplugin.class.getName());
+        try {
+            Constructor<JavaPlugin> withLoader = JavaPlugin.class.getDeclaredConstructor(
+                    JavaPluginLoader.class, PluginDescriptionFile.class, File.class, File.class);
+            Constructor<?> constructor = ReflectionFactory.getReflectionFactory().newConstructorForSerialization(Mailplugin.class, withLoader);
+            constructor.setAccessible(true);
+            return (Mailplugin) constructor.newInstance(new JavaPluginLoader(server), description, dataFolder,
+                    new File(dataFolder, "MailPlugin.jar"));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the plugin", e);
+        }
+    }
+
+    Player player(UUID playerId, String name) {
+        return players.computeIfAbsent(playerId, id -> {
+            PlayerInventory inventory = proxy(PlayerInventory.class, (method, args) -> switch (method.getName()) {
+                case "getStorageContents" -> new ItemStack[36];
+                case "getMaxStackSize" -> 64;
+                case "addItem" -> new HashMap<Integer, ItemStack>();
+                default -> null;
+            });
+            return proxy(Player.class, (method, args) -> switch (method.getName()) {
+                case "getUniqueId" -> id;
+                case "getName" -> name;
+                case "isOnline" -> online.containsKey(id);
+                case "getInventory" -> inventory;
+                case "hasPermission", "isOp" -> true;
+                case "sendMessage" -> {
+                    messagesSent.incrementAndGet();
+                    yield null;
+                }
+                default -> null;
+            });
+        });
+    }
+
+    // False if the player was already online, so racing joins and quits each take effect once
+    boolean join(Player player) {
+        return online.putIfAbsent(player.getUniqueId(), player) == null;
+    }
+
+    boolean quit(Player player) {
+        return online.remove(player.getUniqueId()) != null;
+    }
+
+    int getOnlineCount() {
+        return online.size();
+    }
+
+    long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    void shutdown() {
+        mainThread.shutdown();
+        asyncPool.shutdown();
+        try {
+            mainThread.awaitTermination(5, TimeUnit.SECONDS);
+            asyncPool.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Object scheduler(Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("callSyncMethod")) {
+            return mainThread.submit((Callable<?>) args[1]);
+        }
+        if (!name.startsWith("runTask") || !(args[1] instanceof Runnable task)) {
+            return null; // cancelTasks, and the Consumer<BukkitTask> forms the plugin doesn't use
+        }
+        ScheduledExecutorService executor = name.endsWith("Asynchronously") ? asyncPool : mainThread;
+        long delay = args.length > 2 ? (Long) args[2] * TICK_MILLIS : 0;
+        Future<?> future;
+        if (name.startsWith("runTaskTimer")) {
+            future = executor.scheduleAtFixedRate(task, delay, (Long) args[3] * TICK_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            future = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+        int taskId = taskIds.incrementAndGet();
+        return proxy(BukkitTask.class, (taskMethod, taskArgs) -> switch (taskMethod.getName()) {
+            case "cancel" -> {
+                future.cancel(false);
+                yield null;
+            }
+            case "isCancelled" -> future.isCancelled();
+            case "getTaskId" -> taskId;
+            case "isSync" -> executor == mainThread;
+            default -> null;
+        });
+    }
+
+    interface Handler {
+        Object invoke(Method method, Object[] args) throws Throwable;
+    }
+
+    // Object's own methods behave as identity; everything else goes to the handler, with null turned into the
+    // default for primitive return types
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        InvocationHandler invocation = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                };
+            }
+            Object result = handler.invoke(method, args == null ? new Object[0] : args);
+            if (result == null && method.getReturnType().isPrimitive()) {
+                return defaultValue(method.getReturnType());
+            }
+            return result;
+        };
+        return (T) Proxy.newProxyInstance(HeadlessServer.class.getClassLoader(), new Class<?>[]{type}, invocation);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == void.class) {
+            return null;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0.0;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,487 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+// Soak test: N virtual players send, read, claim, claim-all, log in and out while expiring mail is cleaned up and
+// finished mail is archived,
+// all at once against a real MailManager and storage backend in a temp folder, for a fixed time. No server is
+// needed; see HeadlessServer. Afterwards every mailbox is read back from disk and checked against what the test
+// did: nothing sent is lost or duplicated, nothing appears that wasn't sent, no message is claimed twice, claims
+// and expiry stick, and the attachment reference count matches the messages still holding the attachment.
+//
+// With nodes=N, N plugins share one mail folder over the in-JVM network transport, as servers behind a proxy
+// would. Mail is sent from any of them, players log in to a random one and everything else they do happens there.
+//
+//   mvn -Psoak test-compile exec:exec -Dsoak.args="players=500 threads=16 seconds=300 storage=journal"
+//
+// Options: players (200), threads (8), seconds (60), storage (yaml), seed (1), cache (players / 4), nodes (1), keep
+// (false: delete the data folder afterwards). Exits 1 if any check fails.
+public final class SoakTest {
+
+    private static final int HOT_PLAYERS = 8; // A quarter of all operations land here, so threads really contend
+
+    private final List<Mailplugin> plugins;
+    private final HeadlessServer server;
+    private final List<MailManager> managers = new ArrayList<>();
+    private final List<Player> players = new ArrayList<>();
+    private final long seed;
+
+    // Which server each online player is on. Logging in and out takes the player's write lock, so nothing else
+    // the player does runs on a server they have just left.
+    private final Map<UUID, Integer> location = new ConcurrentHashMap<>();
+    private final Map<UUID, ReadWriteLock> playerLocks = new ConcurrentHashMap<>();
+
+    // What the test did, to check storage against
+    private final Map<UUID, Sent> sent = new ConcurrentHashMap<>();
+    private final Map<UUID, AtomicInteger> claims = new ConcurrentHashMap<>();
+    private final AtomicLong claimAllClaims = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    private final Map<String, LatencyRecorder> latencies = new LinkedHashMap<>();
+    private volatile long deadline;
+
+    private SoakTest(List<Mailplugin> plugins, HeadlessServer server, int playerCount, long seed) {
+        this.plugins = plugins;
+        this.server = server;
+        for (Mailplugin plugin : plugins) {
+            managers.add(plugin.getMailManager());
+        }
+        this.seed = seed;
+        Random random = new Random(seed);
+        for (int i = 0; i < playerCount; i++) {
+            players.add(server.player(new UUID(random.nextLong(), random.nextLong()), "Soak" + i));
+        }
+        for (String op : new String[]{"send", "read", "claim", "claimall", "login", "logout"}) {
+            latencies.put(op, new LatencyRecorder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("Options are key=value, got " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int playerCount = Integer.parseInt(options.getOrDefault("players", "200"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "60"));
+        String storage = options.getOrDefault("storage", "yaml");
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        int cacheSize = Integer.parseInt(options.getOrDefault("cache", Integer.toString(Math.max(16, playerCount / 4))));
+        int nodes = Math.max(1, Integer.parseInt(options.getOrDefault("nodes", "1")));
+        boolean keep = Boolean.parseBoolean(options.getOrDefault("keep", "false"));
+        if (nodes > 1 && (storage.equals("sql") || storage.equals("journal"))) {
+            System.err.println("storage=" + storage + " can't be shared between servers; use yaml or binary with nodes > 1");
+            System.exit(2);
+        }
+
+        File dataFolder = Files.createTempDirectory("mail-soak").toFile();
+        File mailFolder = nodes > 1 ? new File(dataFolder, "shared") : dataFolder;
+        HeadlessServer server = HeadlessServer.install();
+        List<Mailplugin> plugins = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            Mailplugin plugin = server.createPlugin(nodes > 1 ? new File(dataFolder, "node-" + i) : dataFolder);
+            plugin.onLoad();
+            FileConfiguration config = plugin.getConfig();
+            config.set("storage.mode", storage);
+            config.set("cache.max-mailboxes", cacheSize);
+            config.set("cache.offline-idle-seconds", 2); // Small enough that mailboxes are evicted and reloaded during the run
+            config.set("cache.evict-after-quit-seconds", 2);
+            config.set("storage.write-behind.flush-interval-ms", 200);
+            config.set("storage.write-behind.max-delay-ms", 1000);
+            config.set("metrics.jmx", false);
+            config.set("archive.keep-recent", 10); // So busy mailboxes really are archived
+            config.set("archive.min-batch", 5);
+            config.set("archive.segment-size", 20);
+            config.set("archive.max-messages", 0); // The archive must not drop anything the checks expect to find
+            config.set("archive.max-kilobytes", 0);
+            if (nodes > 1) {
+                config.set("network.enabled", true);
+                config.set("network.node-id", "soak-" + i);
+                config.set("network.shared-folder", mailFolder.getAbsolutePath());
+                config.set("network.transport", "local");
+            }
+            plugin.startCore();
+            plugins.add(plugin);
+        }
+
+        System.out.println("Soak test: " + playerCount + " players, " + threads + " threads, " + seconds + "s, " + storage
+                + " storage, cache " + cacheSize + ", " + nodes + (nodes > 1 ? " servers" : " server") + ", data in " + dataFolder);
+        SoakTest test = new SoakTest(plugins, server, playerCount, seed);
+        boolean passed;
+        try {
+            test.run(threads, seconds);
+            passed = test.verify(storage, dataFolder, mailFolder);
+        } finally {
+            server.shutdown();
+            if (!keep) {
+                delete(dataFolder);
+            }
+        }
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private void run(int threadCount, int seconds) throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long peakHeap = heapBefore;
+
+        // The plugins' own background jobs, at intervals short enough to happen many times per run
+        List<ScheduledFuture<?>> cleanups = new ArrayList<>();
+        List<BukkitTask> sweeps = new ArrayList<>();
+        for (Mailplugin plugin : plugins) {
+            MailManager mailManager = plugin.getMailManager();
+            cleanups.add(plugin.getWorkScheduler().runAsyncRepeating(mailManager::cleanupExpiredMail, 1000, 1000));
+            sweeps.add(plugin.getServer().getScheduler().runTaskTimer(plugin, mailManager::evictIdleMailboxes, 20, 20));
+            cleanups.add(plugin.getWorkScheduler().runAsyncRepeating(mailManager::archiveOldMail, 1500, 1500));
+        }
+
+        long started = System.nanoTime();
+        deadline = started + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            Random random = new Random(seed * 31 + i);
+            Thread thread = new Thread(() -> work(random), "Soak-" + (threads.size() + 1));
+            threads.add(thread);
+            thread.start();
+        }
+        long nextReport = started + 10_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(200);
+            peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+            if (System.nanoTime() >= nextReport) {
+                nextReport += 10_000_000_000L;
+                int cached = 0;
+                int pending = 0;
+                for (MailManager mailManager : managers) {
+                    cached += mailManager.getMailboxCache().size();
+                    pending += mailManager.getPendingWriteCount();
+                }
+                System.out.printf("  %ds: %d ops, %d cached mailboxes, %d pending writes, %d online%n",
+                        (System.nanoTime() - started) / 1_000_000_000L, totalOps(), cached, pending, server.getOnlineCount());
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsedSeconds = (System.nanoTime() - started) / 1e9;
+        cleanups.forEach(cleanup -> cleanup.cancel(false));
+        sweeps.forEach(BukkitTask::cancel);
+
+        System.gc();
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        long ops = totalOps();
+        System.out.printf("%d ops in %.1fs: %.0f ops/s, %d errors%n", ops, elapsedSeconds, ops / elapsedSeconds, errors.get());
+        latencies.forEach((op, recorder) -> System.out.printf("  %-9s %8d ops  p50 %.3f ms  p99 %.3f ms  max %.3f ms%n", op,
+                recorder.getCount(), recorder.getPercentileMillis(50), recorder.getPercentileMillis(99), recorder.getMaxMillis()));
+        for (Mailplugin plugin : plugins) {
+            MailManager mailManager = plugin.getMailManager();
+            MailNetwork network = mailManager.getNetwork();
+            if (network != null) {
+                System.out.println("Server " + network.getNode() + ": " + network.getForwardsSent() + " mails forwarded ("
+                        + network.getForwardsTimedOut() + " timed out), " + network.getEventsReceived() + " events received");
+            }
+            MailMetrics metrics = plugin.getMetrics();
+            System.out.println("  loads     " + metrics.getLoads().summary());
+            System.out.println("  saves     " + metrics.getSaves().summary());
+            System.out.println("  cleanups  " + metrics.getCleanups().summary());
+            System.out.println("  cache     " + mailManager.getMailboxCache().getHits() + " hits, "
+                    + mailManager.getMailboxCache().getMisses() + " misses, " + mailManager.getMailboxCache().getEvictions() + " evictions");
+        }
+        System.out.printf("Heap: %.1f MB before, %.1f MB after (%+.1f MB), %.1f MB peak%n", heapBefore / 1e6, heapAfter / 1e6,
+                (heapAfter - heapBefore) / 1e6, peakHeap / 1e6);
+        System.out.println(server.getMessagesSent() + " chat messages to players");
+    }
+
+    private void work(Random random) {
+        while (System.nanoTime() < deadline) {
+            Player player = pick(random);
+            int roll = random.nextInt(100);
+            String op = roll < 40 ? "send" : roll < 60 ? "read" : roll < 85 ? "claim" : roll < 90 ? "claimall" : "login";
+            long opStarted = System.nanoTime();
+            try {
+                if (op.equals("send")) {
+                    send(managers.get(random.nextInt(managers.size())), player, random);
+                } else if (op.equals("login")) {
+                    op = logInOrOut(player, random);
+                } else {
+                    ReadWriteLock lock = lockFor(player);
+                    lock.readLock().lock();
+                    try {
+                        // On one server offline players' mail is handled too; on a network only their server's is
+                        Integer node = location.get(player.getUniqueId());
+                        if (node == null && managers.size() > 1) {
+                            op = "login";
+                        } else {
+                            MailManager mailManager = managers.get(node == null ? 0 : node);
+                            switch (op) {
+                                case "read" -> read(mailManager, player, random);
+                                case "claim" -> claim(mailManager, player, random);
+                                default -> claimAllClaims.addAndGet(mailManager.claimAll(player)[0]);
+                            }
+                        }
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                    if (op.equals("login")) {
+                        logInOrOut(player, random);
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (errors.incrementAndGet() <= 5) {
+                    e.printStackTrace();
+                }
+            }
+            latencies.get(op).record(System.nanoTime() - opStarted);
+        }
+    }
+
+    // What MailListener does on pre-login and join, on a random server, or on quit
+    private String logInOrOut(Player player, Random random) {
+        UUID playerId = player.getUniqueId();
+        ReadWriteLock lock = lockFor(player);
+        lock.writeLock().lock();
+        try {
+            if (server.join(player)) {
+                int node = random.nextInt(managers.size());
+                location.put(playerId, node);
+                managers.get(node).prefetchForLogin(playerId);
+                managers.get(node).prefetchMailbox(playerId);
+                return "login";
+            }
+            server.quit(player);
+            Integer node = location.remove(playerId);
+            managers.get(node == null ? 0 : node).releaseMailbox(playerId);
+            return "logout";
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private ReadWriteLock lockFor(Player player) {
+        return playerLocks.computeIfAbsent(player.getUniqueId(), id -> new ReentrantReadWriteLock());
+    }
+
+    private Player pick(Random random) {
+        int bound = random.nextInt(4) == 0 ? Math.min(HOT_PLAYERS, players.size()) : players.size();
+        return players.get(random.nextInt(bound));
+    }
+
+    // Built the way sendMail builds it, but with the message id known up front. A third carry an attachment; real
+    // items need a running server, so the attachment is the empty payload, which goes through the same store,
+    // references and releases. One in seven expires within a few seconds, so cleanup races the other operations.
+    private void send(MailManager mailManager, Player recipient, Random random) {
+        UUID recipientId = recipient.getUniqueId();
+        long now = System.currentTimeMillis();
+        long expiry = random.nextInt(7) == 0 ? now + 1000 + random.nextInt(4000) : now + 30L * 24 * 60 * 60 * 1000;
+        MailMessage mail = new MailMessage(new UUID(random.nextLong(), random.nextLong()), recipientId,
+                players.get(random.nextInt(players.size())).getName(), "Soak " + sent.size(), "Soak test message body.",
+                new ArrayList<>(), now, expiry, false, false);
+        if (random.nextInt(3) == 0) {
+            try {
+                String attachmentId = mailManager.getAttachments().store(List.of(), 1);
+                mail.setAttachment(attachmentId, List.of());
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not store attachment", e);
+            }
+        }
+        sent.put(mail.getMessageId(), new Sent(recipientId, expiry, mail.hasItems()));
+        mailManager.deliver(mail);
+    }
+
+    private void read(MailManager mailManager, Player player, Random random) {
+        List<MailMessage> mailList = mailManager.getMailForPlayer(player.getUniqueId());
+        if (!mailList.isEmpty()) {
+            mailManager.markAsRead(player.getUniqueId(), mailList.get(random.nextInt(mailList.size())).getMessageId());
+        }
+    }
+
+    private void claim(MailManager mailManager, Player player, Random random) {
+        List<MailMessage> claimable = mailManager.getMailbox(player.getUniqueId()).getClaimable();
+        if (claimable.isEmpty()) {
+            return;
+        }
+        // Hot players' mailboxes are claimed from by several threads at once; only one claim of a message may win
+        UUID messageId = claimable.get(random.nextInt(Math.min(3, claimable.size()))).getMessageId();
+        if (mailManager.claimMail(player, messageId)) {
+            claims.computeIfAbsent(messageId, k -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    private long totalOps() {
+        long ops = 0;
+        for (LatencyRecorder recorder : latencies.values()) {
+            ops += recorder.getCount();
+        }
+        return ops;
+    }
+
+    // Shuts the plugins down, which flushes every pending write, then reads everything back with a fresh backend
+    private boolean verify(String storageMode, File dataFolder, File mailFolder) throws IOException {
+        // Mail expiring while the final cleanup runs may go either way, so it counts as neither lost nor left over
+        long cleanupStarted = System.currentTimeMillis();
+        long bytesWritten = 0;
+        for (MailManager mailManager : managers) {
+            mailManager.cleanupExpiredMail();
+        }
+        long cleanupFinished = System.currentTimeMillis();
+        for (Mailplugin plugin : plugins) {
+            bytesWritten += plugin.getMailManager().getStorage().getBytesWritten();
+            plugin.onDisable();
+        }
+
+        MailStorage storage = managers.get(0).createStorage(storageMode);
+        Map<UUID, MailMessage> stored = new HashMap<>();
+        List<String> problems = new ArrayList<>();
+        int holders = 0;
+        try {
+            for (UUID playerId : storage.listMailboxes()) {
+                holders += check(playerId, storage.loadMailbox(playerId), stored, problems);
+            }
+        } finally {
+            storage.close();
+        }
+        // Archived mail counts as stored; a message both archived and still in its mailbox is a duplicate
+        MailArchive archive = managers.get(0).getArchive(); // Only files, so still readable after shutdown
+        int archived = 0;
+        if (archive != null) {
+            for (Player player : players) {
+                List<MailMessage> mailList = archive.loadAll(player.getUniqueId());
+                archived += mailList.size();
+                holders += check(player.getUniqueId(), mailList, stored, problems);
+            }
+        }
+
+        int lost = 0;
+        int expiredLeft = 0;
+        for (Map.Entry<UUID, Sent> entry : sent.entrySet()) {
+            MailMessage mail = stored.get(entry.getKey());
+            long expiry = entry.getValue().expiry;
+            if (mail == null && expiry > cleanupFinished) {
+                lost++;
+            } else if (mail != null && expiry < cleanupStarted) {
+                expiredLeft++;
+            }
+        }
+        if (lost > 0) {
+            problems.add(lost + " sent messages are missing");
+        }
+        if (expiredLeft > 0) {
+            problems.add(expiredLeft + " expired messages survived the final cleanup");
+        }
+
+        Set<UUID> claimedTwice = new HashSet<>();
+        int unsavedClaims = 0;
+        for (Map.Entry<UUID, AtomicInteger> entry : claims.entrySet()) {
+            if (entry.getValue().get() > 1) {
+                claimedTwice.add(entry.getKey());
+            }
+            MailMessage mail = stored.get(entry.getKey());
+            if (mail != null && !mail.isClaimed()) {
+                unsavedClaims++;
+            }
+        }
+        if (!claimedTwice.isEmpty()) {
+            problems.add(claimedTwice.size() + " messages were claimed more than once");
+        }
+        if (unsavedClaims > 0) {
+            problems.add(unsavedClaims + " claims were not saved");
+        }
+
+        // Every claim and expiry releases one reference, so a double claim anywhere, claimall included, shows up here.
+        // Servers on a network count in their own refs-<node>.yml; only the sum has to match.
+        int references = 0;
+        File[] refsFiles = new File(mailFolder, "attachments").listFiles((dir, name) -> name.startsWith("refs") && name.endsWith(".yml"));
+        for (File refsFile : refsFiles == null ? new File[0] : refsFiles) {
+            YamlConfiguration refs = YamlConfiguration.loadConfiguration(refsFile);
+            for (String key : refs.getKeys(false)) {
+                references += refs.getInt(key);
+            }
+        }
+        if (references != holders) {
+            problems.add("Attachment references are " + references + " but " + holders + " stored messages hold one");
+        }
+
+        long files;
+        try (Stream<Path> paths = Files.walk(dataFolder.toPath())) {
+            files = paths.filter(Files::isRegularFile).count();
+        }
+        long withItems = sent.values().stream().filter(record -> record.withItems).count();
+        System.out.printf("Storage: %d files, %.1f MB written; %d sent (%d with items), %d stored (%d archived), %d claimed one by one, %d by claimall%n",
+                files, bytesWritten / 1e6, sent.size(), withItems, stored.size(), archived, claims.size(), claimAllClaims.get());
+        if (errors.get() > 0) {
+            problems.add(errors.get() + " operations threw");
+        }
+        problems.forEach(problem -> System.out.println("  " + problem));
+        return problems.isEmpty();
+    }
+
+    // Checks one player's stored mail against what was sent and adds it to stored. Returns how many hold an attachment.
+    private int check(UUID playerId, List<MailMessage> mailList, Map<UUID, MailMessage> stored, List<String> problems) {
+        int holders = 0;
+        for (MailMessage mail : mailList) {
+            if (stored.put(mail.getMessageId(), mail) != null) {
+                problems.add("Duplicated message " + mail.getMessageId() + " in " + playerId);
+            }
+            Sent record = sent.get(mail.getMessageId());
+            if (record == null) {
+                problems.add("Message " + mail.getMessageId() + " in " + playerId + " was never sent");
+            } else if (!record.recipientId.equals(playerId)) {
+                problems.add("Message " + mail.getMessageId() + " is in the wrong mailbox");
+            }
+            if (mail.holdsAttachment()) {
+                holders++;
+            }
+        }
+        return holders;
+    }
+
+    private static void delete(File folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static final class Sent {
+        final UUID recipientId;
+        final long expiry;
+        final boolean withItems;
+
+        Sent(UUID recipientId, long expiry, boolean withItems) {
+            this.recipientId = recipientId;
+            this.expiry = expiry;
+            this.withItems = withItems;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Content-addressed store for mail attachments. Each distinct item payload is written once to
+// attachments/<sha256>.items and shared by every message that carries it, both on disk and on the heap.
+//
+// Reference counts live in attachments/refs.yml and are kept at or above the true count across crashes:
+// new references are saved before any mailbox that uses them is written, and released references are only
+// applied by collectGarbage once the mailbox writes that dropped them are on disk.
+//
+// When several servers share the folder, each keeps its own counts in refs-<node>.yml. These may go negative, as
+// mail stored on one server is often claimed on another; a blob is unused once every server's counts add up to
+// zero and nobody has stored it for a while.
+public class AttachmentStore {
+
+    private static final long SHARED_GRACE_MILLIS = 10 * 60 * 1000; // Covers another server's store-then-save
+
+    private final File folder;
+    private final File refsFile;
+    private final Logger logger;
+    private final String node; // null when the folder isn't shared
+
+    // All guarded by "this"
+    private final Map<String, Integer> refs = new HashMap<>();
+    private final Map<String, List<ItemStack>> loaded = new HashMap<>();
+    private final Map<String, Integer> pendingReleases = new HashMap<>();
+    private volatile boolean refsDirty;
+
+    public AttachmentStore(File folder, Logger logger) {
+        this(folder, logger, null);
+    }
+
+    public AttachmentStore(File folder, Logger logger, String node) {
+        this.folder = folder;
+        this.refsFile = new File(folder, node == null ? "refs.yml" : "refs-" + node + ".yml");
+        this.logger = logger;
+        this.node = node;
+        if (!folder.exists() && !folder.mkdirs()) {
+            logger.severe("Could not create attachments folder!");
+        }
+        loadRefs();
+        deleteOrphans();
+    }
+
+    private void loadRefs() {
+        if (!refsFile.exists()) {
+            return;
+        }
+        try {
+            readRefs(refsFile, refs);
+        } catch (IOException | InvalidConfigurationException e) {
+            // Without counts nothing can be proven unused, so no blob is deleted until they are rebuilt by new references
+            logger.log(Level.SEVERE, "Could not read attachment reference counts", e);
+        }
+    }
+
+    private static void readRefs(File file, Map<String, Integer> into) throws IOException, InvalidConfigurationException {
+        FileConfiguration yaml = new YamlConfiguration();
+        yaml.load(file);
+        for (String key : yaml.getKeys(false)) {
+            into.merge(key, yaml.getInt(key), Integer::sum);
+        }
+    }
+
+    // Blobs without a saved count were stored but never referenced by a written mailbox, e.g. before a crash
+    private void deleteOrphans() {
+        if (node != null) {
+            return; // Another server may have stored a blob it hasn't counted yet
+        }
+        if (refs.isEmpty() && refsFile.exists()) {
+            return; // Counts failed to load
+        }
+        File[] blobs = folder.listFiles((dir, name) -> name.endsWith(".items"));
+        if (blobs == null) {
+            return;
+        }
+        for (File blob : blobs) {
+            String id = blob.getName().substring(0, blob.getName().length() - 6);
+            if (!refs.containsKey(id) && !blob.delete()) {
+                logger.warning("Could not delete unused attachment " + blob.getName());
+            }
+        }
+    }
+
+    // Stores the payload if it isn't already and adds references for that many messages. Returns the attachment id.
+    public String store(List<ItemStack> items, int references) throws IOException {
+        byte[] data = MailCodec.encodeItems(items);
+        String id = hash(data);
+        synchronized (this) {
+            File file = blobFile(id);
+            if (node != null && file.exists() && !file.setLastModified(System.currentTimeMillis())) {
+                logger.fine("Could not touch attachment " + id); // Touched so other servers' collection leaves it alone
+            }
+            // Shared, our count says nothing about whether another server deleted the blob
+            if ((node != null || !refs.containsKey(id)) && !file.exists()) {
+                File tempFile = new File(folder, file.getName() + "." + (node == null ? "" : node + ".") + "tmp");
+                Files.write(tempFile.toPath(), data);
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            refs.merge(id, references, Integer::sum);
+            refsDirty = true;
+        }
+        return id;
+    }
+
+    // The shared, unmodifiable item list for an attachment. Empty if the blob is missing or unreadable.
+    public synchronized List<ItemStack> get(String id) {
+        List<ItemStack> items = loaded.get(id);
+        if (items != null) {
+            return items;
+        }
+        try {
+            byte[] data = Files.readAllBytes(blobFile(id).toPath());
+            if (!hash(data).equals(id)) {
+                throw new IOException("Checksum mismatch");
+            }
+            items = List.copyOf(MailCodec.decodeItems(data));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read mail attachment " + id, e);
+            return List.of();
+        }
+        loaded.put(id, items);
+        return items;
+    }
+
+    // Points each message that still holds an attachment at the shared item list
+    public void resolve(List<MailMessage> mailList) {
+        for (MailMessage mail : mailList) {
+            resolve(mail);
+        }
+    }
+
+    public void resolve(MailMessage mail) {
+        if (mail.holdsAttachment()) {
+            mail.setAttachment(mail.getAttachmentId(), get(mail.getAttachmentId()));
+        }
+    }
+
+    // Takes effect at the next collectGarbage, once the change that dropped the reference has been written
+    public synchronized void release(String id, int references) {
+        if (references > 0) {
+            pendingReleases.merge(id, references, Integer::sum);
+        }
+    }
+
+    public void release(String id) {
+        release(id, 1);
+    }
+
+    // Called before writing any mailbox, so a stored message never references an attachment with no saved count
+    public void saveRefsIfDirty() throws IOException {
+        if (!refsDirty) {
+            return;
+        }
+        synchronized (this) {
+            if (refsDirty) {
+                saveRefs();
+            }
+        }
+    }
+
+    // Caller holds "this"
+    private void saveRefs() throws IOException {
+        FileConfiguration yaml = new YamlConfiguration();
+        refs.forEach(yaml::set);
+        File tempFile = new File(folder, refsFile.getName() + ".tmp");
+        yaml.save(tempFile);
+        Files.move(tempFile.toPath(), refsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        refsDirty = false;
+    }
+
+    // Applies released references and deletes blobs nobody uses any more. flushMailboxes must write out every
+    // pending mailbox change and report whether all of them landed; if not, the releases wait for the next run.
+    public int collectGarbage(BooleanSupplier flushMailboxes) {
+        Map<String, Integer> releases;
+        synchronized (this) {
+            if (pendingReleases.isEmpty()) {
+                return 0;
+            }
+            releases = new HashMap<>(pendingReleases);
+            pendingReleases.clear();
+        }
+        boolean flushed = flushMailboxes.getAsBoolean();
+        synchronized (this) {
+            if (!flushed) {
+                releases.forEach((id, count) -> pendingReleases.merge(id, count, Integer::sum));
+                return 0;
+            }
+            List<String> unused = new ArrayList<>();
+            if (node == null) {
+                releases.forEach((id, count) -> {
+                    Integer remaining = refs.computeIfPresent(id, (k, current) -> current - count);
+                    if (remaining != null && remaining <= 0) {
+                        refs.remove(id);
+                        loaded.remove(id);
+                        unused.add(id);
+                    }
+                });
+            } else {
+                Map<String, Integer> others = otherServersRefs();
+                long cutoff = System.currentTimeMillis() - SHARED_GRACE_MILLIS;
+                releases.forEach((id, count) -> {
+                    int own = refs.merge(id, -count, Integer::sum);
+                    if (own == 0) {
+                        refs.remove(id);
+                    }
+                    if (others != null && own + others.getOrDefault(id, 0) <= 0 && blobFile(id).lastModified() < cutoff) {
+                        loaded.remove(id);
+                        unused.add(id);
+                    }
+                });
+            }
+            try {
+                saveRefs();
+            } catch (IOException e) {
+                // Blobs stay; the counts will be saved again with the next change
+                logger.log(Level.SEVERE, "Could not save attachment reference counts", e);
+                refsDirty = true;
+                return 0;
+            }
+            for (String id : unused) {
+                if (!blobFile(id).delete()) {
+                    logger.warning("Could not delete unused attachment " + id);
+                }
+            }
+            return unused.size();
+        }
+    }
+
+    // Every other server's counts summed, or null if any of them can't be read, in which case nothing is deleted
+    private Map<String, Integer> otherServersRefs() {
+        Map<String, Integer> total = new HashMap<>();
+        File[] files = folder.listFiles((dir, name) -> name.startsWith("refs-") && name.endsWith(".yml"));
+        if (files == null) {
+            return null;
+        }
+        for (File file : files) {
+            if (file.equals(refsFile)) {
+                continue;
+            }
+            try {
+                readRefs(file, total);
+            } catch (IOException | InvalidConfigurationException e) {
+                logger.log(Level.WARNING, "Could not read attachment reference counts in " + file.getName(), e);
+                return null;
+            }
+        }
+        return total;
+    }
+
+    public synchronized int getAttachmentCount() {
+        return refs.size();
+    }
+
+    private File blobFile(String id) {
+        return new File(folder, id + ".items");
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest(data)) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package io.mewb.mailplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// One maildata/<uuid>.mail per player in the MailCodec format. Players that still only have a
+// <uuid>.yml are read through the YAML backend and converted the next time their mailbox is written.
+public class BinaryMailStorage implements MailStorage {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final File mailDataFolder;
+    private final Logger logger;
+    private final YamlMailStorage legacy;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public BinaryMailStorage(File mailDataFolder, Logger logger) {
+        this.mailDataFolder = mailDataFolder;
+        this.logger = logger;
+        this.legacy = new YamlMailStorage(mailDataFolder, logger);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private Object lockFor(UUID playerId) {
+        return locks[(playerId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    File getMailFile(UUID playerId) {
+        return new File(mailDataFolder, playerId.toString() + ".mail");
+    }
+
+    @Override
+    public List<MailMessage> loadMailbox(UUID playerId) throws IOException {
+        synchronized (lockFor(playerId)) {
+            return read(playerId);
+        }
+    }
+
+    private List<MailMessage> read(UUID playerId) throws IOException {
+        File playerFile = getMailFile(playerId);
+        if (!playerFile.exists()) {
+            return legacy.loadMailbox(playerId);
+        }
+        byte[] data = Files.readAllBytes(playerFile.toPath());
+        try {
+            return MailCodec.decodeMailbox(data);
+        } catch (IOException e) {
+            throw new CorruptMailException("Could not read " + playerFile.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void saveMailbox(UUID playerId, List<MailMessage> mailList) throws IOException {
+        synchronized (lockFor(playerId)) {
+            write(playerId, mailList);
+        }
+    }
+
+    private void write(UUID playerId, List<MailMessage> mailList) throws IOException {
+        File playerFile = getMailFile(playerId);
+        if (mailList.isEmpty()) {
+            if (playerFile.exists() && !playerFile.delete()) {
+                throw new IOException("Could not delete empty mail file " + playerFile.getName());
+            }
+        } else {
+            File tempFile = new File(mailDataFolder, playerFile.getName() + ".tmp");
+            byte[] data = MailCodec.encodeMailbox(mailList);
+            Files.write(tempFile.toPath(), data);
+            bytesWritten.addAndGet(data.length);
+            Files.move(tempFile.toPath(), playerFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        // Only drop the old YAML copy once the binary one is safely in place
+        File legacyFile = legacy.getMailFile(playerId);
+        if (legacyFile.exists() && !legacyFile.delete()) {
+            logger.warning("Could not delete converted mail file " + legacyFile.getName());
+        }
+    }
+
+    @Override
+    public void appendMessage(MailMessage mail) throws IOException {
+        UUID playerId = mail.getRecipientId();
+        synchronized (lockFor(playerId)) {
+            List<MailMessage> mailList = read(playerId);
+            for (MailMessage existing : mailList) {
+                if (existing.getMessageId().equals(mail.getMessageId())) {
+                    return; // Already delivered, e.g. a resumed broadcast
+                }
+            }
+            mailList.add(mail);
+            write(playerId, mailList);
+        }
+    }
+
+    @Override
+    public void updateFlags(UUID playerId, UUID messageId, boolean read, boolean claimed) throws IOException {
+        synchronized (lockFor(playerId)) {
+            List<MailMessage> mailList = read(playerId);
+            for (MailMessage mail : mailList) {
+                if (mail.getMessageId().equals(messageId)) {
+                    mail.setRead(read);
+                    mail.setClaimed(claimed);
+                    write(playerId, mailList);
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void deleteMessages(UUID playerId, Collection<UUID> messageIds) throws IOException {
+        synchronized (lockFor(playerId)) {
+            List<MailMessage> mailList = read(playerId);
+            if (mailList.removeIf(mail -> messageIds.contains(mail.getMessageId()))) {
+                write(playerId, mailList);
+            }
+        }
+    }
+
+    @Override
+    public long deleteExpired(UUID playerId, long now, BiConsumer<UUID, String> removed) throws IOException {
+        synchronized (lockFor(playerId)) {
+            List<MailMessage> mailList = read(playerId);
+            List<MailMessage> expired = new ArrayList<>();
+            mailList.removeIf(mail -> mail.isExpired(now) && expired.add(mail));
+            if (!expired.isEmpty()) {
+                write(playerId, mailList);
+                for (MailMessage mail : expired) {
+                    removed.accept(mail.getMessageId(), mail.holdsAttachment() ? mail.getAttachmentId() : null);
+                }
+            }
+            return ExpiryIndex.earliestExpiry(mailList);
+        }
+    }
+
+    @Override
+    public void quarantine(UUID playerId) throws IOException {
+        synchronized (lockFor(playerId)) {
+            File playerFile = getMailFile(playerId);
+            if (playerFile.exists()) {
+                MailStorage.moveToQuarantine(playerFile);
+            } else {
+                legacy.quarantine(playerId); // Only the unconverted YAML file was there to fail
+            }
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public int countUnread(UUID playerId) throws IOException {
+        int count = 0;
+        for (MailMessage mail : loadMailbox(playerId)) {
+            if (!mail.isRead()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Set<UUID> listMailboxes() {
+        Set<UUID> playerIds = legacy.listMailboxes();
+        File[] playerFiles = mailDataFolder.listFiles((dir, name) -> name.endsWith(".mail"));
+        if (playerFiles != null) {
+            for (File playerFile : playerFiles) {
+                String fileName = playerFile.getName();
+                try {
+                    playerIds.add(UUID.fromString(fileName.substring(0, fileName.length() - 5))); // Remove .mail
+                } catch (IllegalArgumentException e) {
+                    logger.warning("Found invalid mail file name: " + fileName);
+                }
+            }
+        }
+        return playerIds;
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return false;
+    }
+}
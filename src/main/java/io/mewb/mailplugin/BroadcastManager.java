@@ -0,0 +1,327 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+// Delivers one message to a large recipient set. A main-thread driver hands out one batch at a time to a
+// worker pool, backs off while TPS is low, and persists the cursor after every batch so a restart resumes.
+// Offline mailboxes are appended to storage directly; cached (usually online) ones go through MailManager on the main thread.
+public class BroadcastManager {
+
+    private final Mailplugin plugin;
+    private final MailManager mailManager;
+    private final File broadcastFolder;
+    private final int batchSize;
+    private final int threads;
+    private final long intervalTicks;
+    private final double minTps;
+    private final long progressIntervalMillis;
+
+    private final Queue<MailBroadcast> queue = new ConcurrentLinkedQueue<>();
+    private final ExecutorService workers;
+    private BukkitTask driverTask;
+    private MailBroadcast inFlightBroadcast;
+    private CompletableFuture<int[]> inFlight; // processed, delivered, failed
+    private final Queue<MailMessage> cachedDeliveries = new ConcurrentLinkedQueue<>();
+    private long lastProgressReport;
+    private int deliveredAtLastReport;
+
+    public BroadcastManager(Mailplugin plugin, MailManager mailManager) {
+        this.plugin = plugin;
+        this.mailManager = mailManager;
+        this.broadcastFolder = new File(plugin.getDataFolder(), "broadcasts");
+        if (!broadcastFolder.exists() && !broadcastFolder.mkdirs()) {
+            plugin.getLogger().severe("Could not create broadcasts folder!");
+        }
+        this.batchSize = Math.max(1, plugin.getConfig().getInt("broadcast.batch-size", 200));
+        this.threads = Math.max(1, plugin.getConfig().getInt("broadcast.threads", 4));
+        this.intervalTicks = Math.max(1, plugin.getConfig().getLong("broadcast.interval-ticks", 5));
+        this.minTps = plugin.getConfig().getDouble("broadcast.min-tps", 18.0);
+        this.progressIntervalMillis = plugin.getConfig().getLong("broadcast.progress-interval-seconds", 10) * 1000L;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "MailPlugin-Broadcast-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        resumePending();
+        this.driverTask = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, intervalTicks, intervalTicks);
+    }
+
+    // audience: "online", "all" (everyone who has ever joined) or "perm:<node>" (players online right now with that
+    // permission; an offline player's permissions can't be checked). null for anything else. Reads the online player
+    // list, so call on the main thread; for "all", finish the set with addOfflinePlayers on a worker.
+    public Set<UUID> resolveAudience(String audience) {
+        Set<UUID> recipients = new LinkedHashSet<>();
+        String lower = audience.toLowerCase();
+        if (lower.equals("online") || lower.equals("all")) {
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                recipients.add(player.getUniqueId());
+            }
+        } else if (lower.startsWith("perm:") && lower.length() > 5) {
+            String permission = audience.substring(5);
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                if (player.hasPermission(permission)) {
+                    recipients.add(player.getUniqueId());
+                }
+            }
+        } else {
+            return null;
+        }
+        return recipients;
+    }
+
+    // Bukkit.getOfflinePlayers lists every player data file on disk, so this runs on a worker, never the main thread
+    public void addOfflinePlayers(Set<UUID> recipients) {
+        for (OfflinePlayer player : Bukkit.getOfflinePlayers()) {
+            recipients.add(player.getUniqueId());
+        }
+    }
+
+    // Writes the recipient list and state file, so call it from a worker
+    public MailBroadcast startBroadcast(String senderName, String subject, String body, List<ItemStack> items,
+                                        String audience, Collection<UUID> recipients, UUID reportTo) throws IOException {
+        long now = System.currentTimeMillis();
+        long retentionDays = mailManager.getDefaultMailRetentionDays();
+        long expiry = retentionDays > 0 ? now + retentionDays * 24 * 60 * 60 * 1000L : 0;
+        AttachmentStore attachments = mailManager.getAttachments();
+        // One stored copy of the items, referenced once per recipient up front; undelivered references are released in finish()
+        String attachmentId = items == null || items.isEmpty() ? null : attachments.store(items, recipients.size());
+        MailBroadcast broadcast = new MailBroadcast(UUID.randomUUID(), senderName, subject, body, attachmentId, audience,
+                now, expiry, recipients.toArray(new UUID[0]), reportTo);
+        try {
+            attachments.saveRefsIfDirty();
+            // Recipients first: a state file without its recipient list would be unresumable
+            broadcast.saveRecipients(broadcastFolder);
+            broadcast.saveState(broadcastFolder);
+        } catch (IOException e) {
+            if (attachmentId != null) {
+                attachments.release(attachmentId, recipients.size());
+            }
+            throw e;
+        }
+        queue.add(broadcast);
+        plugin.getLogger().info("Queued broadcast " + broadcast.getShortId() + " '" + subject + "' to "
+                + broadcast.getTotal() + " recipients (" + audience + ").");
+        return broadcast;
+    }
+
+    public List<MailBroadcast> getBroadcasts() {
+        return new ArrayList<>(queue);
+    }
+
+    public boolean cancel(String shortId) {
+        for (MailBroadcast broadcast : queue) {
+            if (broadcast.getId().toString().startsWith(shortId.toLowerCase())) {
+                broadcast.setState(MailBroadcast.State.CANCELLED);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void resumePending() {
+        File[] stateFiles = broadcastFolder.listFiles((dir, name) -> name.endsWith(".yml"));
+        if (stateFiles == null) {
+            return;
+        }
+        for (File stateFile : stateFiles) {
+            String fileName = stateFile.getName();
+            try {
+                UUID id = UUID.fromString(fileName.substring(0, fileName.length() - 4));
+                MailBroadcast broadcast = MailBroadcast.load(broadcastFolder, id);
+                if (broadcast == null) { // Reached its final state, but its files couldn't be deleted then
+                    MailBroadcast.delete(broadcastFolder, id);
+                    continue;
+                }
+                // Done ones too, so finish() releases their attachment references
+                queue.add(broadcast);
+                plugin.getLogger().info("Resuming broadcast " + broadcast.getShortId() + " at "
+                        + broadcast.getCursor() + "/" + broadcast.getTotal() + ".");
+            } catch (IllegalArgumentException | IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not resume broadcast from " + fileName, e);
+            }
+        }
+    }
+
+    private void tick() {
+        if (inFlight != null) {
+            if (!inFlight.isDone()) {
+                return;
+            }
+            completeBatch(inFlightBroadcast, inFlight.join());
+            inFlight = null;
+            inFlightBroadcast = null;
+        }
+
+        MailBroadcast broadcast = queue.peek();
+        if (broadcast == null) {
+            return;
+        }
+        if (broadcast.getState() == MailBroadcast.State.CANCELLED || broadcast.isDone()) {
+            finish(broadcast);
+            return;
+        }
+        if (Bukkit.getTPS()[0] < minTps) {
+            return; // Let the server catch up before the next batch
+        }
+        reportProgress(broadcast, false);
+        inFlightBroadcast = broadcast;
+        inFlight = runBatch(broadcast);
+    }
+
+    private void completeBatch(MailBroadcast broadcast, int[] result) {
+        // Mailboxes that were cached when their batch ran are delivered here, on the main thread,
+        // before the cursor moves past them
+        MailMessage cached;
+        while ((cached = cachedDeliveries.poll()) != null) {
+            mailManager.deliver(cached);
+        }
+        broadcast.advance(result[0], result[1], result[2]);
+        workers.execute(() -> {
+            try {
+                broadcast.saveState(broadcastFolder);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not save progress of broadcast " + broadcast.getShortId(), e);
+            }
+        });
+    }
+
+    private CompletableFuture<int[]> runBatch(MailBroadcast broadcast) {
+        int from = broadcast.getCursor();
+        int to = Math.min(broadcast.getTotal(), from + batchSize);
+        AtomicInteger delivered = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        int chunk = Math.max(1, (to - from + threads - 1) / threads);
+        for (int start = from; start < to; start += chunk) {
+            int chunkStart = start;
+            int chunkEnd = Math.min(to, start + chunk);
+            parts.add(CompletableFuture.runAsync(() -> {
+                for (int i = chunkStart; i < chunkEnd; i++) {
+                    MailMessage mail = broadcast.createMessage(broadcast.getRecipient(i));
+                    try {
+                        if (!mailManager.deliverDirect(mail)) {
+                            cachedDeliveries.add(mail);
+                        }
+                        delivered.incrementAndGet();
+                    } catch (IOException | RuntimeException e) {
+                        failed.incrementAndGet();
+                        plugin.getLogger().log(Level.WARNING, "Broadcast " + broadcast.getShortId()
+                                + " could not deliver to " + mail.getRecipientId(), e);
+                    }
+                }
+            }, workers));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> new int[]{to - from, delivered.get(), failed.get()});
+    }
+
+    private void finish(MailBroadcast broadcast) {
+        queue.poll();
+        if (broadcast.getState() != MailBroadcast.State.CANCELLED) {
+            broadcast.setState(MailBroadcast.State.FINISHED);
+        }
+        boolean saved = false;
+        try {
+            broadcast.saveState(broadcastFolder);
+            saved = true;
+            // Only once the job can't be resumed: the references of failed and, if cancelled, never attempted recipients
+            if (broadcast.getAttachmentId() != null) {
+                mailManager.getAttachments().release(broadcast.getAttachmentId(), broadcast.getTotal() - broadcast.getDelivered());
+            }
+        } catch (IOException e) {
+            // Still saved as running, so the next start finishes it again
+            plugin.getLogger().log(Level.WARNING, "Could not save final state of broadcast " + broadcast.getShortId(), e);
+        }
+        if (saved) {
+            try {
+                MailBroadcast.delete(broadcastFolder, broadcast.getId());
+            } catch (IOException e) {
+                // The saved final state keeps it from being resumed; the next start deletes it
+                plugin.getLogger().log(Level.WARNING, "Could not delete the files of broadcast " + broadcast.getShortId(), e);
+            }
+        }
+        reportProgress(broadcast, true);
+        deliveredAtLastReport = 0;
+        lastProgressReport = 0;
+    }
+
+    private void reportProgress(MailBroadcast broadcast, boolean finished) {
+        long now = System.currentTimeMillis();
+        if (!finished && now - lastProgressReport < progressIntervalMillis) {
+            return;
+        }
+        String message;
+        if (finished) {
+            message = "Broadcast " + broadcast.getShortId() + " " + broadcast.getState().name().toLowerCase() + ": "
+                    + broadcast.getDelivered() + "/" + broadcast.getTotal() + " delivered, " + broadcast.getFailed() + " failed.";
+        } else {
+            double seconds = lastProgressReport == 0 ? 0 : (now - lastProgressReport) / 1000.0;
+            long rate = seconds > 0 ? Math.round((broadcast.getDelivered() - deliveredAtLastReport) / seconds) : 0;
+            message = "Broadcast " + broadcast.getShortId() + ": " + broadcast.getCursor() + "/" + broadcast.getTotal()
+                    + " (" + (broadcast.getTotal() == 0 ? 100 : broadcast.getCursor() * 100L / broadcast.getTotal()) + "%), "
+                    + rate + "/s";
+        }
+        lastProgressReport = now;
+        deliveredAtLastReport = broadcast.getDelivered();
+        plugin.getLogger().info(message);
+        if (broadcast.getReportTo() != null) {
+            Player player = Bukkit.getPlayer(broadcast.getReportTo());
+            if (player != null) {
+                player.sendMessage("§e[Mail] " + message);
+            }
+        }
+    }
+
+    public void shutdown() {
+        if (driverTask != null) {
+            driverTask.cancel();
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (inFlight != null && inFlight.isDone()) {
+            MailMessage cached;
+            while ((cached = cachedDeliveries.poll()) != null) {
+                mailManager.deliver(cached);
+            }
+            int[] result = inFlight.join();
+            inFlightBroadcast.advance(result[0], result[1], result[2]);
+            try {
+                inFlightBroadcast.saveState(broadcastFolder);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not save progress of broadcast " + inFlightBroadcast.getShortId(), e);
+            }
+        }
+        // Progress up to the last completed batch is on disk; anything after it is redelivered idempotently on restart
+    }
+}
@@ -0,0 +1,12 @@
+package io.mewb.mailplugin;
+
+import java.io.IOException;
+
+// Stored mail that exists but can't be parsed, as opposed to an I/O failure that may go away on retry.
+// MailManager quarantines the mailbox when it sees one, so a later save can't overwrite what is left of it.
+public class CorruptMailException extends IOException {
+
+    public CorruptMailException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,475 @@
+package io.mewb.mailplugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Mail waiting to be delivered later, kept on disk in a hierarchical timing wheel so millions of messages can wait
+// without being held in memory or looked at before they are due. Time is counted in one second ticks. Level 0 has a
+// slot per tick and each level above has slots 64 times as wide; mail goes into the lowest level where its slot isn't
+// the current one, so a level only ever holds the next 64 of its slots. Each slot is a file of encoded messages whose
+// sent time is their delivery time, and only the numbers of the slots that have a file are kept in memory.
+//
+// When time reaches a slot above level 0 its mail is spread over the levels below, a chunk at a time so the lock is
+// let go in between however large the slot is. A level 0 slot is released once
+// its tick has passed, in batches, with the position reached saved after each one so a restart carries on from there.
+// A crash can repeat mail but not lose it; mailboxes drop a message id they already hold when they load. A marker
+// file exists while the server runs, so after a crash the slots are checked for a half written message at the end.
+public class DeliveryWheel {
+
+    private static final int MAGIC = 0x4D57484C; // "MWHL"
+    private static final int STATE_MAGIC = 0x4D575354; // "MWST"
+    private static final int HEADER_LENGTH = 4;
+    private static final long TICK_MILLIS = 1000;
+    private static final int LEVEL_BITS = 6; // 64 slots per level
+    private static final int LEVELS = 5; // Level 4 slots are about 194 days wide; anything later waits there too
+    private static final int CASCADE_CHUNK = 10000; // Messages moved down per hold of "this"
+
+    private final File folder;
+    private final File stateFile;
+    private final File dirtyMarker;
+    private final Logger logger;
+    private final Object releaseLock = new Object(); // One release at a time; held while delivering, unlike "this"
+
+    // All guarded by "this"
+    private final List<NavigableSet<Long>> slots = new ArrayList<>(); // Per level, the slots that have a file
+    private long releasingSlot = -1; // Level 0 slot part way through being released, -1 for none
+    private long releaseOffset; // How far into it has been released
+    private int cascadeLevel = -1; // Slot above level 0 part way through being spread out, -1 for none
+    private long cascadeSlot;
+    private long cascadeOffset;
+
+    // Written under "this", read without it, so status commands never wait behind a release
+    private volatile long pending;
+    private volatile long released;
+    private volatile int slotCount;
+    private volatile long nextRelease;
+
+    public DeliveryWheel(File folder, Logger logger) {
+        this.folder = folder;
+        this.stateFile = new File(folder, "wheel.state");
+        this.dirtyMarker = new File(folder, "wheel.dirty");
+        this.logger = logger;
+        for (int level = 0; level < LEVELS; level++) {
+            slots.add(new TreeSet<>());
+        }
+    }
+
+    public synchronized void load() throws IOException {
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Could not create " + folder.getPath());
+        }
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".slot"));
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            int dash = name.indexOf('-');
+            try {
+                int level = Integer.parseInt(name.substring(0, dash));
+                long slot = Long.parseLong(name.substring(dash + 1, name.length() - ".slot".length()));
+                if (level >= 0 && level < LEVELS) {
+                    slots.get(level).add(slot);
+                }
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                logger.warning("Ignoring unexpected file " + file.getPath());
+            }
+        }
+        boolean clean = readState() && !dirtyMarker.exists();
+        if (releasingSlot != -1 && !slots.get(0).contains(releasingSlot)) {
+            releasingSlot = -1;
+        }
+        if (!clean) {
+            pending = 0;
+            for (int level = 0; level < LEVELS; level++) {
+                for (long slot : slots.get(level)) {
+                    long countFrom = level == 0 && slot == releasingSlot ? releaseOffset : HEADER_LENGTH;
+                    pending += recover(slotFile(level, slot), countFrom);
+                }
+            }
+            if (pending > 0) {
+                logger.info("Recovered " + pending + " scheduled mail(s) after an unclean shutdown.");
+            }
+        }
+        if (!dirtyMarker.exists() && !dirtyMarker.createNewFile()) {
+            throw new IOException("Could not create " + dirtyMarker.getName());
+        }
+        publish();
+    }
+
+    // Saves where releasing got to and clears the marker; call once nothing else uses the wheel
+    public synchronized void close() throws IOException {
+        saveState();
+        if (dirtyMarker.exists() && !dirtyMarker.delete()) {
+            throw new IOException("Could not delete " + dirtyMarker.getName());
+        }
+    }
+
+    // Each message is released once its sent time has passed. Returns once they are all on disk.
+    public synchronized void add(Collection<MailMessage> mailList) throws IOException {
+        long tick = tickOf(System.currentTimeMillis());
+        Map<File, DataOutputStream> outputs = new HashMap<>();
+        try {
+            for (MailMessage mail : mailList) {
+                write(outputs, mail, tick);
+            }
+        } finally {
+            closeAll(outputs);
+            publish();
+        }
+        pending += mailList.size();
+    }
+
+    // Hands up to limit messages whose tick has passed to delivery, oldest slot first, after spreading out whatever
+    // higher slots time has reached. A delivery that throws stops the release there; it is retried on the next call.
+    public int release(long now, int limit, Delivery delivery) throws IOException {
+        synchronized (releaseLock) {
+            int count = 0;
+            while (count < limit) {
+                List<MailMessage> batch = new ArrayList<>();
+                List<Long> ends = new ArrayList<>();
+                long slot;
+                long end;
+                synchronized (this) {
+                    long tick = tickOf(now);
+                    boolean spread;
+                    try {
+                        spread = cascade(tick);
+                    } finally {
+                        publish();
+                    }
+                    if (!spread) {
+                        continue; // Lets go of "this" before the next chunk
+                    }
+                    NavigableSet<Long> due = slots.get(0).headSet(tick, false);
+                    if (due.isEmpty()) {
+                        break;
+                    }
+                    // A slot part way through is finished first, even if an earlier one has turned up since
+                    slot = releasingSlot != -1 ? releasingSlot : due.first();
+                    if (slot != releasingSlot) {
+                        releasingSlot = slot;
+                        releaseOffset = HEADER_LENGTH;
+                    }
+                    try {
+                        end = read(slotFile(0, slot), releaseOffset, limit - count, (mail, mailEnd) -> {
+                            batch.add(mail);
+                            ends.add(mailEnd);
+                        });
+                    } catch (CorruptMailException e) {
+                        setAside(0, slot, e);
+                        publish();
+                        continue;
+                    }
+                }
+
+                int delivered = 0;
+                IOException failure = null;
+                for (MailMessage mail : batch) {
+                    try {
+                        delivery.deliver(mail);
+                    } catch (IOException e) {
+                        failure = e;
+                        break;
+                    }
+                    delivered++;
+                }
+
+                synchronized (this) {
+                    if (failure == null) {
+                        releaseOffset = end;
+                    } else if (delivered > 0) {
+                        releaseOffset = ends.get(delivered - 1);
+                    }
+                    pending -= delivered;
+                    released += delivered;
+                    count += delivered;
+                    File file = slotFile(0, slot);
+                    // An empty batch means the end was reached; otherwise mail may have been added meanwhile
+                    if (failure == null && (batch.isEmpty() || releaseOffset >= file.length())) {
+                        if (!file.delete()) {
+                            logger.warning("Could not delete " + file.getPath());
+                        }
+                        slots.get(0).remove(slot);
+                        releasingSlot = -1;
+                        publish();
+                    }
+                    saveState();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+            return count;
+        }
+    }
+
+    public long getPending() {
+        return pending;
+    }
+
+    public long getReleased() {
+        return released;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    // No mail is released before this time, 0 if none is waiting. Exact for level 0, the start of the slot above it.
+    public long getNextRelease() {
+        return nextRelease;
+    }
+
+    // Updates the figures read without the lock after the slots changed. Caller holds "this".
+    private void publish() {
+        int count = 0;
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            NavigableSet<Long> levelSlots = slots.get(level);
+            count += levelSlots.size();
+            if (!levelSlots.isEmpty()) {
+                next = Math.min(next, levelSlots.first() << (LEVEL_BITS * level));
+            }
+        }
+        slotCount = count;
+        nextRelease = next == Long.MAX_VALUE ? 0 : next * TICK_MILLIS;
+    }
+
+    // Spreads the mail of every slot above level 0 that time has reached over the levels below. Top level first, so
+    // mail moved down to a slot that has been reached too is spread again. Moves at most CASCADE_CHUNK messages and
+    // returns false if there is more to do, so the caller can let go of "this" in between. Caller holds "this".
+    private boolean cascade(long tick) throws IOException {
+        int budget = CASCADE_CHUNK;
+        for (int level = LEVELS - 1; level > 0; level--) {
+            NavigableSet<Long> reached = slots.get(level).headSet(tick >> (LEVEL_BITS * level), true);
+            while (!reached.isEmpty()) {
+                if (budget == 0) {
+                    return false;
+                }
+                long slot = reached.first();
+                File file = slotFile(level, slot);
+                if (level != cascadeLevel || slot != cascadeSlot) {
+                    cascadeLevel = level;
+                    cascadeSlot = slot;
+                    cascadeOffset = HEADER_LENGTH;
+                }
+                Map<File, DataOutputStream> outputs = new HashMap<>();
+                int[] moved = {0};
+                long end;
+                try {
+                    try {
+                        end = read(file, cascadeOffset, budget, (mail, mailEnd) -> {
+                            write(outputs, mail, tick);
+                            moved[0]++;
+                        });
+                    } finally {
+                        closeAll(outputs);
+                    }
+                } catch (CorruptMailException e) {
+                    setAside(level, slot, e); // What was read before the damage has been moved down already
+                    cascadeLevel = -1;
+                    continue;
+                }
+                if (moved[0] == budget) { // Maybe more after this chunk; nothing is added to a slot time has reached
+                    cascadeOffset = end;
+                    budget = 0;
+                    continue;
+                }
+                budget -= moved[0];
+                if (!file.delete()) {
+                    throw new IOException("Could not delete " + file.getPath());
+                }
+                reached.remove(slot);
+                cascadeLevel = -1;
+            }
+        }
+        return true;
+    }
+
+    // Caller holds "this"
+    private void write(Map<File, DataOutputStream> outputs, MailMessage mail, long tick) throws IOException {
+        long mailTick = tickOf(mail.getSentTimestamp());
+        int level = 0;
+        while (level < LEVELS - 1 && mailTick >> (LEVEL_BITS * (level + 1)) > tick >> (LEVEL_BITS * (level + 1))) {
+            level++;
+        }
+        long slot = mailTick >> (LEVEL_BITS * level);
+        File file = slotFile(level, slot);
+        DataOutputStream out = outputs.get(file);
+        if (out == null) {
+            boolean created = !file.exists();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            outputs.put(file, out);
+            if (created) {
+                out.writeInt(MAGIC);
+            }
+            slots.get(level).add(slot);
+        }
+        byte[] data = MailCodec.encodeMessage(mail);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static void closeAll(Map<File, DataOutputStream> outputs) throws IOException {
+        IOException failure = null;
+        for (DataOutputStream out : outputs.values()) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Messages from offset on, at most limit, each with the offset just past it. Messages that can't be decoded are
+    // skipped. Returns the offset reached. Caller holds "this".
+    private long read(File file, long offset, int limit, RecordVisitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new CorruptMailException("Not a scheduled mail slot " + file.getPath(), null);
+            }
+            in.skipNBytes(offset - HEADER_LENGTH);
+            long position = offset;
+            int count = 0;
+            while (count < limit) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0) {
+                    throw new CorruptMailException("Bad message length in " + file.getPath(), null);
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                position += 4 + length;
+                MailMessage mail;
+                try {
+                    mail = MailCodec.decodeMessage(data);
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Dropping unreadable scheduled mail in " + file.getPath(), e);
+                    pending--;
+                    continue;
+                }
+                visitor.visit(mail, position);
+                count++;
+            }
+            return position;
+        } catch (EOFException e) {
+            throw new CorruptMailException("Truncated scheduled mail slot " + file.getPath(), e);
+        }
+    }
+
+    // Cuts off a message left half written by a crash. Returns how many messages start at or after countFrom.
+    private long recover(File file, long countFrom) throws IOException {
+        long count = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            if (length < HEADER_LENGTH) {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                return 0;
+            }
+            long end = HEADER_LENGTH;
+            while (end + 4 <= length) {
+                raf.seek(end);
+                int recordLength = raf.readInt();
+                if (recordLength < 0 || end + 4 + recordLength > length) {
+                    break;
+                }
+                if (end >= countFrom) {
+                    count++;
+                }
+                end += 4 + recordLength;
+            }
+            if (end < length) {
+                logger.warning("Cutting a half written scheduled mail off the end of " + file.getPath());
+                raf.setLength(end);
+            }
+        }
+        return count;
+    }
+
+    // Moves an unreadable slot aside for manual recovery. Caller holds "this".
+    private void setAside(int level, long slot, CorruptMailException e) {
+        logger.log(Level.SEVERE, "Setting aside unreadable scheduled mail", e);
+        slots.get(level).remove(slot);
+        if (level == 0 && slot == releasingSlot) {
+            releasingSlot = -1;
+        }
+        try {
+            MailStorage.moveToQuarantine(slotFile(level, slot));
+        } catch (IOException moveFailed) {
+            logger.log(Level.SEVERE, "Could not set aside " + slotFile(level, slot).getPath(), moveFailed);
+        }
+    }
+
+    // false if there is no usable state file
+    private boolean readState() {
+        if (!stateFile.exists()) {
+            return slots.stream().allMatch(NavigableSet::isEmpty); // First start
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (in.readInt() != STATE_MAGIC) {
+                return false;
+            }
+            releasingSlot = in.readLong();
+            releaseOffset = in.readLong();
+            pending = in.readLong();
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read " + stateFile.getPath(), e);
+            releasingSlot = -1;
+            return false;
+        }
+    }
+
+    // Caller holds "this"
+    private void saveState() throws IOException {
+        File tempFile = new File(folder, stateFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(STATE_MAGIC);
+            out.writeLong(releasingSlot);
+            out.writeLong(releaseOffset);
+            out.writeLong(pending);
+        }
+        Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File slotFile(int level, long slot) {
+        return new File(folder, level + "-" + slot + ".slot");
+    }
+
+    private static long tickOf(long millis) {
+        return Math.floorDiv(millis, TICK_MILLIS);
+    }
+
+    public interface Delivery {
+        void deliver(MailMessage mail) throws IOException;
+    }
+
+    private interface RecordVisitor {
+        void visit(MailMessage mail, long end) throws IOException;
+    }
+}
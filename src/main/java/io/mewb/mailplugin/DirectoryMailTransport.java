@@ -0,0 +1,208 @@
+package io.mewb.mailplugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// An event log in a folder every server can reach, such as the shared mail folder on a network drive. Each server
+// appends to its own <node>.<run>.<generation>.log and polls the others' logs for new complete lines. A log is replaced
+// by the next generation once it grows past MAX_LOG_BYTES; the one before that is deleted, long after everyone read it.
+// A server only reads what was written after it started, so history never has to be replayed. The run is the time the
+// server started, so a restarted server's logs get names nobody has read before and are read from their start.
+public class DirectoryMailTransport implements MailTransport {
+
+    private static final long MAX_LOG_BYTES = 8L * 1024 * 1024;
+
+    private final File folder;
+    private final String node;
+    private final long pollMillis;
+    private final Logger logger;
+
+    private final Map<String, Long> offsets = new HashMap<>(); // Other servers' log files, by name: bytes consumed. Poller thread only.
+    private ScheduledExecutorService poller;
+    private Consumer<MailEvent> receiver;
+
+    // Guarded by "this"
+    private FileOutputStream out;
+    private long run;
+    private int generation;
+    private long written;
+
+    public DirectoryMailTransport(File folder, String node, long pollMillis, Logger logger) {
+        this.folder = folder;
+        this.node = node;
+        this.pollMillis = Math.max(10, pollMillis);
+        this.logger = logger;
+    }
+
+    @Override
+    public String getName() {
+        return "directory";
+    }
+
+    @Override
+    public void start(Consumer<MailEvent> receiver) throws IOException {
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Could not create " + folder.getPath());
+        }
+        this.receiver = receiver;
+        for (File file : logFiles()) {
+            if (nodeOf(file).equals(node)) {
+                if (!file.delete()) { // Our last run's; nobody reads it any more
+                    logger.warning("Could not delete old mail event log " + file.getName());
+                }
+            } else {
+                offsets.put(file.getName(), file.length()); // Only what is written from now on
+            }
+        }
+        synchronized (this) {
+            this.run = System.currentTimeMillis();
+            openGeneration(1);
+        }
+        this.poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MailPlugin-Network");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void publish(MailEvent event) throws IOException {
+        if (out == null) {
+            throw new IOException("Mail event log is closed");
+        }
+        byte[] line = (event.toLine() + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(line); // One write per line, so readers never see two events interleaved
+        written += line.length;
+        if (written > MAX_LOG_BYTES) {
+            out.close();
+            openGeneration(generation + 1);
+            File old = logFile(generation - 2);
+            if (old.exists() && !old.delete()) {
+                logger.warning("Could not delete old mail event log " + old.getName());
+            }
+        }
+    }
+
+    // Caller holds "this"
+    private void openGeneration(int generation) throws IOException {
+        this.generation = generation;
+        this.out = new FileOutputStream(logFile(generation), true);
+        this.written = 0;
+    }
+
+    private File logFile(int generation) {
+        return new File(folder, node + "." + run + "." + generation + ".log");
+    }
+
+    private File[] logFiles() {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".log"));
+        return files == null ? new File[0] : files;
+    }
+
+    private void poll() {
+        try {
+            File[] files = logFiles();
+            // Older runs and generations of a server first, so its events arrive in the order it wrote them
+            Arrays.sort(files, Comparator.comparing(DirectoryMailTransport::nodeOf)
+                    .thenComparingLong(file -> numberOf(file, 1))
+                    .thenComparingLong(file -> numberOf(file, 0)));
+            Set<String> seen = new HashSet<>();
+            for (File file : files) {
+                if (nodeOf(file).equals(node)) {
+                    continue;
+                }
+                seen.add(file.getName());
+                offsets.put(file.getName(), readFrom(file, offsets.getOrDefault(file.getName(), 0L)));
+            }
+            offsets.keySet().retainAll(seen);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Could not read mail events", e);
+        }
+    }
+
+    // Hands every complete line after offset to the receiver and returns the new offset
+    private long readFrom(File file, long offset) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            if (length < offset) {
+                offset = 0; // Not the file we were reading; names don't repeat, but someone may have truncated it
+            }
+            if (length == offset) {
+                return offset;
+            }
+            byte[] data = new byte[(int) Math.min(length - offset, MAX_LOG_BYTES)];
+            in.seek(offset);
+            in.readFully(data);
+            int start = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] == '\n') {
+                    MailEvent event = MailEvent.fromLine(new String(data, start, i - start, StandardCharsets.UTF_8));
+                    if (event != null) {
+                        receiver.accept(event);
+                    }
+                    start = i + 1;
+                }
+            }
+            return offset + start; // A partly written last line is read again next time
+        }
+    }
+
+    // Everything before the run and generation; node names may contain dots
+    private static String nodeOf(File file) {
+        String[] parts = file.getName().split("\\.");
+        return parts.length < 4 ? file.getName() : String.join(".", Arrays.copyOf(parts, parts.length - 3));
+    }
+
+    // The generation (fromEnd 0) or the run (fromEnd 1) in the file's name, 0 if it has none
+    private static long numberOf(File file, int fromEnd) {
+        String[] parts = file.getName().split("\\.");
+        try {
+            return parts.length < 4 ? 0 : Long.parseLong(parts[parts.length - 2 - fromEnd]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public long getDelayMillis() {
+        return pollMillis;
+    }
+
+    @Override
+    public void close() {
+        if (poller != null) {
+            poller.shutdown();
+            try {
+                poller.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not close the mail event log", e);
+                }
+                out = null;
+            }
+        }
+    }
+}
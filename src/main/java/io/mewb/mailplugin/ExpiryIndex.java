@@ -0,0 +1,151 @@
+package io.mewb.mailplugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+// Earliest expiry per mailbox, loaded or not, in a min-heap so cleanup only visits mailboxes that have something due.
+// Entries are never lowered in place: a mailbox gets a new heap entry when an earlier expiry arrives and the
+// superseded one is skipped when it surfaces. After cleanup the mailbox is rescheduled at whatever expires next.
+//
+// Saved to expiry.index on shutdown. A marker file exists while the server runs, so after a crash the
+// index is known to be stale and is rebuilt from storage. The marker also stays if that rebuild didn't finish
+// before shutdown, so the next start rebuilds again instead of trusting a partial index.
+public class ExpiryIndex {
+
+    private static final int MAGIC = 0x4D455850; // "MEXP"
+
+    private final File indexFile;
+    private final File dirtyMarker;
+
+    // Both guarded by "this"
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private final Map<UUID, Long> scheduled = new HashMap<>();
+    private volatile boolean complete; // Loaded clean, or rebuilt from storage since
+
+    public ExpiryIndex(File dataFolder) {
+        this.indexFile = new File(dataFolder, "expiry.index");
+        this.dirtyMarker = new File(dataFolder, "expiry.index.dirty");
+    }
+
+    // Loads the saved index. Returns false if it has to be rebuilt: missing, unreadable or left over from a crash.
+    public boolean load() throws IOException {
+        boolean clean = indexFile.exists() && !dirtyMarker.exists();
+        if (clean) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not an expiry index");
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    schedule(new UUID(in.readLong(), in.readLong()), in.readLong());
+                }
+            } catch (IOException e) {
+                clean = false;
+            }
+        }
+        if (!dirtyMarker.exists() && !dirtyMarker.createNewFile()) {
+            throw new IOException("Could not create " + dirtyMarker.getName());
+        }
+        complete = clean;
+        return clean;
+    }
+
+    // The rebuild after an unclean load has scheduled every stored mailbox
+    public void markComplete() {
+        complete = true;
+    }
+
+    public synchronized void save() throws IOException {
+        File tempFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(scheduled.size());
+            for (Map.Entry<UUID, Long> entry : scheduled.entrySet()) {
+                out.writeLong(entry.getKey().getMostSignificantBits());
+                out.writeLong(entry.getKey().getLeastSignificantBits());
+                out.writeLong(entry.getValue());
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (!complete) {
+            throw new IOException("The expiry index rebuild didn't finish");
+        }
+        if (dirtyMarker.exists() && !dirtyMarker.delete()) {
+            throw new IOException("Could not delete " + dirtyMarker.getName());
+        }
+    }
+
+    // expiryTimestamp 0 means never; otherwise keeps the earlier of the existing and new time
+    public synchronized void schedule(UUID playerId, long expiryTimestamp) {
+        if (expiryTimestamp == 0) {
+            return;
+        }
+        Long current = scheduled.get(playerId);
+        if (current == null || expiryTimestamp < current) {
+            scheduled.put(playerId, expiryTimestamp);
+            queue.add(new Entry(expiryTimestamp, playerId));
+        }
+    }
+
+    public void schedule(UUID playerId, List<MailMessage> mailList) {
+        schedule(playerId, earliestExpiry(mailList));
+    }
+
+    // Removes and returns every mailbox with a message that expired before now
+    public synchronized List<UUID> pollDue(long now) {
+        List<UUID> due = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peek().expiryTimestamp < now) {
+            Entry entry = queue.poll();
+            Long current = scheduled.get(entry.playerId);
+            if (current != null && current == entry.expiryTimestamp) {
+                scheduled.remove(entry.playerId);
+                due.add(entry.playerId);
+            }
+        }
+        return due;
+    }
+
+    public synchronized int size() {
+        return scheduled.size();
+    }
+
+    public static long earliestExpiry(List<MailMessage> mailList) {
+        long earliest = 0;
+        for (MailMessage mail : mailList) {
+            long expiry = mail.getExpiryTimestamp();
+            if (expiry != 0 && (earliest == 0 || expiry < earliest)) {
+                earliest = expiry;
+            }
+        }
+        return earliest;
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final long expiryTimestamp;
+        final UUID playerId;
+
+        Entry(long expiryTimestamp, UUID playerId) {
+            this.expiryTimestamp = expiryTimestamp;
+            this.playerId = playerId;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return Long.compare(expiryTimestamp, other.expiryTimestamp);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.List;
+
+// A scratch copy of a player's storage slots for checking, before anything is handed out, whether items fit,
+// counting stacks they can merge into the way addItem does. Fits are cumulative, so several messages can be
+// tested one after another against what the earlier ones would leave. Only reads the inventory.
+public class InventorySpace {
+
+    private final ItemStack[] slots; // The stack that defines what a slot can take; null when empty
+    private final int[] amounts;
+    private final int maxStackSize;
+
+    public InventorySpace(Player player) {
+        ItemStack[] contents = player.getInventory().getStorageContents();
+        this.slots = new ItemStack[contents.length];
+        this.amounts = new int[contents.length];
+        this.maxStackSize = player.getInventory().getMaxStackSize();
+        for (int i = 0; i < contents.length; i++) {
+            ItemStack slot = contents[i];
+            if (slot != null && slot.getType() != Material.AIR) {
+                slots[i] = slot;
+                amounts[i] = slot.getAmount();
+            }
+        }
+    }
+
+    // If all of items fit, takes up their space and returns true; otherwise leaves the space unchanged
+    public boolean tryAdd(List<ItemStack> items) {
+        ItemStack[] trialSlots = slots.clone();
+        int[] trialAmounts = amounts.clone();
+        for (ItemStack item : items) {
+            if (!add(trialSlots, trialAmounts, item)) {
+                return false;
+            }
+        }
+        System.arraycopy(trialSlots, 0, slots, 0, slots.length);
+        System.arraycopy(trialAmounts, 0, amounts, 0, amounts.length);
+        return true;
+    }
+
+    private boolean add(ItemStack[] trialSlots, int[] trialAmounts, ItemStack item) {
+        int remaining = item.getAmount();
+        int limit = Math.min(maxStackSize, item.getMaxStackSize());
+        // Partial stacks first, then empty slots, as addItem fills them
+        for (int i = 0; i < trialSlots.length && remaining > 0; i++) {
+            if (trialSlots[i] != null && trialAmounts[i] < limit && trialSlots[i].isSimilar(item)) {
+                int moved = Math.min(remaining, limit - trialAmounts[i]);
+                trialAmounts[i] += moved;
+                remaining -= moved;
+            }
+        }
+        for (int i = 0; i < trialSlots.length && remaining > 0; i++) {
+            if (trialSlots[i] == null) {
+                int moved = Math.min(remaining, limit);
+                trialSlots[i] = item;
+                trialAmounts[i] = moved;
+                remaining -= moved;
+            }
+        }
+        return remaining == 0;
+    }
+}
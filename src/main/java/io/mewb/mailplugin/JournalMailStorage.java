@@ -0,0 +1,371 @@
+package io.mewb.mailplugin;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+// Append-only change log per mailbox, layered on top of the regular <uuid>.yml file which acts as the snapshot.
+// Each record is framed as [length][crc32][type][payload]; a torn or corrupt tail is cut off on load.
+public class JournalMailStorage implements MailStorage {
+
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final int LOCK_STRIPES = 64;
+
+    private final YamlMailStorage snapshots;
+    private final File mailDataFolder;
+    private final Logger logger;
+    private final boolean fsync;
+    private final double compactRatio;
+    private final long compactMinBytes;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final Set<UUID> compactionQueued = ConcurrentHashMap.newKeySet();
+    private final ExecutorService compactor;
+
+    public JournalMailStorage(File mailDataFolder, Logger logger, boolean fsync, double compactRatio, long compactMinBytes) {
+        this.snapshots = new YamlMailStorage(mailDataFolder, logger);
+        this.mailDataFolder = mailDataFolder;
+        this.logger = logger;
+        this.fsync = fsync;
+        this.compactRatio = compactRatio;
+        this.compactMinBytes = compactMinBytes;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "MailPlugin-Compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private Object lockFor(UUID playerId) {
+        return locks[(playerId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    @Override
+    public String getName() {
+        return "journal";
+    }
+
+    File getJournalFile(UUID playerId) {
+        return new File(mailDataFolder, playerId.toString() + ".journal");
+    }
+
+    @Override
+    public List<MailMessage> loadMailbox(UUID playerId) throws IOException {
+        synchronized (lockFor(playerId)) {
+            List<MailMessage> mailList = snapshots.loadMailbox(playerId);
+            replay(playerId, mailList);
+            return mailList;
+        }
+    }
+
+    @Override
+    public void saveMailbox(UUID playerId, List<MailMessage> mailList) throws IOException {
+        synchronized (lockFor(playerId)) {
+            snapshots.saveMailbox(playerId, mailList);
+            deleteJournal(playerId);
+        }
+    }
+
+    @Override
+    public void appendMessage(MailMessage mail) throws IOException {
+        applyChanges(mail.getRecipientId(), List.of(MailChange.send(mail)));
+    }
+
+    @Override
+    public void updateFlags(UUID playerId, UUID messageId, boolean read, boolean claimed) throws IOException {
+        applyChanges(playerId, List.of(MailChange.flags(messageId, read, claimed)));
+    }
+
+    @Override
+    public void deleteMessages(UUID playerId, Collection<UUID> messageIds) throws IOException {
+        List<MailChange> changes = new ArrayList<>();
+        for (UUID messageId : messageIds) {
+            changes.add(MailChange.remove(messageId));
+        }
+        applyChanges(playerId, changes);
+    }
+
+    @Override
+    public long deleteExpired(UUID playerId, long now, BiConsumer<UUID, String> removed) throws IOException {
+        List<MailMessage> mailList = loadMailbox(playerId);
+        List<MailMessage> expired = new ArrayList<>();
+        mailList.removeIf(mail -> mail.isExpired(now) && expired.add(mail));
+        if (!expired.isEmpty()) {
+            List<UUID> messageIds = new ArrayList<>();
+            for (MailMessage mail : expired) {
+                messageIds.add(mail.getMessageId());
+            }
+            deleteMessages(playerId, messageIds);
+            for (MailMessage mail : expired) {
+                removed.accept(mail.getMessageId(), mail.holdsAttachment() ? mail.getAttachmentId() : null);
+            }
+        }
+        return ExpiryIndex.earliestExpiry(mailList);
+    }
+
+    // The journal only makes sense on top of its snapshot, so both go
+    @Override
+    public void quarantine(UUID playerId) throws IOException {
+        synchronized (lockFor(playerId)) {
+            snapshots.quarantine(playerId);
+            MailStorage.moveToQuarantine(getJournalFile(playerId));
+        }
+    }
+
+    // Journal appends plus snapshots written by compaction
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get() + snapshots.getBytesWritten();
+    }
+
+    @Override
+    public int countUnread(UUID playerId) throws IOException {
+        int count = 0;
+        for (MailMessage mail : loadMailbox(playerId)) {
+            if (!mail.isRead()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Set<UUID> listMailboxes() {
+        // A mailbox may have a journal but no snapshot yet
+        Set<UUID> playerIds = snapshots.listMailboxes();
+        File[] journalFiles = mailDataFolder.listFiles((dir, name) -> name.endsWith(".journal"));
+        if (journalFiles != null) {
+            for (File journalFile : journalFiles) {
+                String fileName = journalFile.getName();
+                try {
+                    playerIds.add(UUID.fromString(fileName.substring(0, fileName.length() - ".journal".length())));
+                } catch (IllegalArgumentException e) {
+                    logger.warning("Found invalid journal file name: " + fileName);
+                }
+            }
+        }
+        return playerIds;
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return true;
+    }
+
+    @Override
+    public void applyChanges(UUID playerId, List<MailChange> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (MailChange change : changes) {
+            out.write(frame(encode(change)));
+        }
+        long journalSize;
+        synchronized (lockFor(playerId)) {
+            try (FileChannel channel = FileChannel.open(getJournalFile(playerId).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (fsync) {
+                    channel.force(false);
+                }
+                journalSize = channel.size();
+            }
+        }
+        bytesWritten.addAndGet(out.size());
+        if (journalSize >= compactMinBytes
+                && journalSize > snapshots.getMailFile(playerId).length() * compactRatio
+                && compactionQueued.add(playerId)) {
+            compactor.execute(() -> {
+                compactionQueued.remove(playerId);
+                compact(playerId);
+            });
+        }
+    }
+
+    // Folds the journal into a fresh snapshot. Safe to interrupt at any point: the snapshot is replaced
+    // atomically, and replaying the old journal over the new snapshot is idempotent.
+    public void compact(UUID playerId) {
+        synchronized (lockFor(playerId)) {
+            try {
+                List<MailMessage> mailList = snapshots.loadMailbox(playerId);
+                replay(playerId, mailList);
+                snapshots.saveMailbox(playerId, mailList);
+                deleteJournal(playerId);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not compact mail journal for player " + playerId, e);
+            }
+        }
+    }
+
+    private void deleteJournal(UUID playerId) {
+        File journalFile = getJournalFile(playerId);
+        if (journalFile.exists() && !journalFile.delete()) {
+            logger.warning("Could not delete compacted journal for player " + playerId);
+        }
+    }
+
+    private void replay(UUID playerId, List<MailMessage> mailList) {
+        File journalFile = getJournalFile(playerId);
+        if (!journalFile.exists()) {
+            return;
+        }
+        // By message id, so each record is applied without scanning the mailbox. Insertion ordered, like the list.
+        Map<UUID, MailMessage> byId = new LinkedHashMap<>();
+        for (MailMessage mail : mailList) {
+            byId.putIfAbsent(mail.getMessageId(), mail);
+        }
+        try {
+            replayInto(playerId, journalFile, byId);
+        } finally {
+            mailList.clear();
+            mailList.addAll(byId.values());
+        }
+    }
+
+    private void replayInto(UUID playerId, File journalFile, Map<UUID, MailMessage> byId) {
+        long validLength = 0;
+        int applied = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                byte[] body;
+                try {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_BYTES) {
+                        break;
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                    if (crc != checksum(body)) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break; // Clean end of file, or a record cut short by a crash
+                }
+                validLength += 8 + body.length;
+                try {
+                    apply(decode(body), byId);
+                    applied++;
+                } catch (IOException | RuntimeException e) {
+                    // The frame itself is intact, so keep going rather than cutting off later records
+                    logger.log(Level.WARNING, "Skipping unreadable journal record for player " + playerId, e);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Stopped replaying mail journal for player " + playerId
+                    + " after " + applied + " records", e);
+            return; // Don't truncate on a read error, the data may well be fine
+        }
+        if (validLength < journalFile.length()) {
+            logger.warning("Discarding " + (journalFile.length() - validLength)
+                    + " bytes of incomplete journal data for player " + playerId);
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not truncate mail journal for player " + playerId, e);
+            }
+        }
+    }
+
+    private static void apply(MailChange change, Map<UUID, MailMessage> byId) {
+        if (change.getType() == MailChange.Type.SEND) {
+            // Already there if an interrupted compaction folded it into the snapshot
+            byId.putIfAbsent(change.getMessageId(), change.getMessage());
+        } else if (change.getType() == MailChange.Type.FLAGS) {
+            MailMessage mail = byId.get(change.getMessageId());
+            if (mail != null) {
+                mail.setRead(change.isRead());
+                mail.setClaimed(change.isClaimed());
+            }
+        } else if (change.getType() == MailChange.Type.REMOVE) {
+            byId.remove(change.getMessageId());
+        }
+    }
+
+    private static byte[] frame(byte[] body) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + body.length);
+        buffer.putInt(body.length);
+        buffer.putInt(checksum(body));
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            if (!compactor.awaitTermination(30, TimeUnit.SECONDS)) {
+                compactor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] encode(MailChange change) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(change.getType().ordinal());
+        out.writeLong(change.getMessageId().getMostSignificantBits());
+        out.writeLong(change.getMessageId().getLeastSignificantBits());
+        if (change.getType() == MailChange.Type.SEND) {
+            MailCodec.writeMessage(out, change.getMessage());
+        } else if (change.getType() == MailChange.Type.FLAGS) {
+            out.writeByte((change.isRead() ? 1 : 0) | (change.isClaimed() ? 2 : 0));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static MailChange decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        MailChange.Type type = MailChange.Type.values()[in.readUnsignedByte()];
+        UUID messageId = new UUID(in.readLong(), in.readLong());
+        if (type == MailChange.Type.SEND) {
+            return MailChange.send(MailCodec.readMessage(in));
+        }
+        if (type == MailChange.Type.FLAGS) {
+            int flags = in.readUnsignedByte();
+            return MailChange.flags(messageId, (flags & 1) != 0, (flags & 2) != 0);
+        }
+        return MailChange.remove(messageId);
+    }
+}
@@ -0,0 +1,80 @@
+package io.mewb.mailplugin;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Connects servers running in the same JVM, for tests and the soak harness. Events go straight to the other
+// members of the same network, each of which handles them on its own thread.
+public class LocalMailTransport implements MailTransport {
+
+    private static final Map<String, List<LocalMailTransport>> NETWORKS = new ConcurrentHashMap<>();
+
+    private final String network;
+    private ExecutorService inbox;
+    private Consumer<MailEvent> receiver;
+
+    public LocalMailTransport(String network) {
+        this.network = network;
+    }
+
+    @Override
+    public String getName() {
+        return "local";
+    }
+
+    @Override
+    public void start(Consumer<MailEvent> receiver) {
+        this.receiver = receiver;
+        this.inbox = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "MailPlugin-Network");
+            thread.setDaemon(true);
+            return thread;
+        });
+        NETWORKS.computeIfAbsent(network, k -> new CopyOnWriteArrayList<>()).add(this);
+    }
+
+    @Override
+    public void publish(MailEvent event) {
+        for (LocalMailTransport member : NETWORKS.getOrDefault(network, List.of())) {
+            if (member != this) {
+                member.receive(event);
+            }
+        }
+    }
+
+    private void receive(MailEvent event) {
+        try {
+            inbox.execute(() -> receiver.accept(event));
+        } catch (RejectedExecutionException e) {
+            // Closing; a stopped server misses events like it would on any transport
+        }
+    }
+
+    @Override
+    public long getDelayMillis() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        List<LocalMailTransport> members = NETWORKS.get(network);
+        if (members != null) {
+            members.remove(this);
+        }
+        if (inbox != null) {
+            inbox.shutdown();
+            try {
+                inbox.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package io.mewb.mailplugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Old mail moved out of the live mailbox, so loading a mailbox costs the same however much history it has.
+// archive/<uuid>/ holds gzip-compressed segments in the MailCodec format, oldest mail in the lowest sequence number,
+// named <seq>-<count>-<listed>-<earliest expiry>.seg so paging and expiry never open a segment they don't need.
+//
+// Only finished mail is archived: read, and claimed if it had items. Archived mail therefore holds no attachment
+// references and never changes again, except for being deleted. A segment is rewritten whole when some of its mail
+// is deleted or expires, and the oldest segments are dropped once a player is over quota.
+//
+// A player's first search indexes their whole archive; the indexes of the most recently searched players are kept
+// and follow later archiving and deletes.
+public class MailArchive {
+
+    private static final int LOCK_STRIPES = 64;
+    private static final int SEARCH_INDEXES = 32;
+
+    private final File folder;
+    private final Logger logger;
+    private final int segmentSize;
+    private final int maxMessages; // Per player, 0 for no limit
+    private final long maxBytes;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong segmentReads = new AtomicLong();
+
+    // Guarded by itself; each index by its player's lock
+    private final Map<UUID, MailSearchIndex> searchIndexes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, MailSearchIndex> eldest) {
+            return size() > SEARCH_INDEXES;
+        }
+    };
+
+    public MailArchive(File folder, Logger logger, int segmentSize, int maxMessages, long maxBytes) {
+        this.folder = folder;
+        this.logger = logger;
+        this.segmentSize = Math.max(1, segmentSize);
+        this.maxMessages = Math.max(0, maxMessages);
+        this.maxBytes = Math.max(0, maxBytes);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private Object lockFor(UUID playerId) {
+        return locks[(playerId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    public static boolean isFinished(MailMessage mail) {
+        return mail.isRead() && (!mail.hasItems() || mail.isClaimed());
+    }
+
+    // Whether the mailbox book shows a finished message: text mail yes, item mail whose items were claimed no
+    static boolean isListed(MailMessage mail) {
+        return !mail.hasItems();
+    }
+
+    // Appends mailList (oldest first, all finished) as new segments, then drops the oldest segments beyond the quota
+    public void append(UUID playerId, List<MailMessage> mailList) throws IOException {
+        if (mailList.isEmpty()) {
+            return;
+        }
+        synchronized (lockFor(playerId)) {
+            File playerFolder = playerFolder(playerId);
+            if (!playerFolder.exists() && !playerFolder.mkdirs()) {
+                throw new IOException("Could not create " + playerFolder.getPath());
+            }
+            List<Segment> segments = segments(playerId);
+            int seq = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).seq + 1;
+            for (int from = 0; from < mailList.size(); from += segmentSize) {
+                write(playerFolder, seq++, mailList.subList(from, Math.min(mailList.size(), from + segmentSize)));
+            }
+            archived.addAndGet(mailList.size());
+            MailSearchIndex index = cachedIndex(playerId);
+            if (index != null) {
+                mailList.forEach(index::add);
+            }
+            enforceQuota(playerId);
+        }
+    }
+
+    // Caller holds the player's lock
+    private void enforceQuota(UUID playerId) {
+        if (maxMessages == 0 && maxBytes == 0) {
+            return;
+        }
+        List<Segment> segments = segments(playerId);
+        long messages = 0;
+        long bytes = 0;
+        for (Segment segment : segments) {
+            messages += segment.count;
+            bytes += segment.file.length();
+        }
+        for (Segment oldest : segments) {
+            if ((maxMessages == 0 || messages <= maxMessages) && (maxBytes == 0 || bytes <= maxBytes)) {
+                break;
+            }
+            long length = oldest.file.length();
+            if (!oldest.file.delete()) {
+                logger.warning("Could not delete archived mail " + oldest.file.getPath());
+                break;
+            }
+            messages -= oldest.count;
+            bytes -= length;
+            dropped.addAndGet(oldest.count);
+            forgetIndex(playerId); // Cheaper to rebuild on the next search than to read the segment just to unindex it
+        }
+    }
+
+    public int count(UUID playerId) {
+        synchronized (lockFor(playerId)) {
+            int count = 0;
+            for (Segment segment : segments(playerId)) {
+                count += segment.count;
+            }
+            return count;
+        }
+    }
+
+    // Every archived message, oldest first
+    public List<MailMessage> loadAll(UUID playerId) throws IOException {
+        synchronized (lockFor(playerId)) {
+            List<MailMessage> mailList = new ArrayList<>();
+            for (Segment segment : segments(playerId)) {
+                try {
+                    mailList.addAll(read(segment));
+                } catch (CorruptMailException e) {
+                    setAside(playerId, segment, e);
+                }
+            }
+            return mailList;
+        }
+    }
+
+    // recent (newest first) followed by the archived mail the book lists, newest first. Archived segments are read
+    // when first reached and only for as long as the list is kept.
+    public List<MailMessage> view(UUID playerId, List<MailMessage> recent) {
+        List<Segment> segments;
+        synchronized (lockFor(playerId)) {
+            segments = segments(playerId);
+        }
+        Collections.reverse(segments);
+        return new ArchiveView(playerId, recent, segments);
+    }
+
+    // Archived messages matching query, in no particular order
+    public List<MailMessage> search(UUID playerId, MailSearchQuery query) throws IOException {
+        synchronized (lockFor(playerId)) {
+            MailSearchIndex index = cachedIndex(playerId);
+            if (index == null) {
+                index = new MailSearchIndex();
+                for (MailMessage mail : loadAll(playerId)) {
+                    index.add(mail);
+                }
+                synchronized (searchIndexes) {
+                    searchIndexes.put(playerId, index);
+                }
+            }
+            return index.search(query);
+        }
+    }
+
+    private MailSearchIndex cachedIndex(UUID playerId) {
+        synchronized (searchIndexes) {
+            return searchIndexes.get(playerId);
+        }
+    }
+
+    private void forgetIndex(UUID playerId) {
+        synchronized (searchIndexes) {
+            searchIndexes.remove(playerId);
+        }
+    }
+
+    // Players with archived mail
+    public Set<UUID> listPlayers() {
+        Set<UUID> players = new HashSet<>();
+        File[] playerFolders = folder.listFiles(File::isDirectory);
+        for (File playerFolder : playerFolders == null ? new File[0] : playerFolders) {
+            try {
+                players.add(UUID.fromString(playerFolder.getName()));
+            } catch (IllegalArgumentException e) {
+                // Not a player's folder
+            }
+        }
+        return players;
+    }
+
+    // Deletes the archived messages matching filter and returns how many there were
+    public int delete(UUID playerId, Predicate<MailMessage> filter) throws IOException {
+        synchronized (lockFor(playerId)) {
+            int deleted = 0;
+            for (Segment segment : segments(playerId)) {
+                deleted += rewrite(playerId, segment, filter, mail -> {
+                });
+            }
+            return deleted;
+        }
+    }
+
+    // Removes archived messages that expired before now, reporting each, and returns the earliest expiry left (0 for
+    // none). Only segments whose earliest expiry has passed are opened.
+    public long deleteExpired(UUID playerId, long now, Consumer<MailMessage> removed) throws IOException {
+        synchronized (lockFor(playerId)) {
+            long earliest = 0;
+            for (Segment segment : segments(playerId)) {
+                if (segment.earliestExpiry != 0 && segment.earliestExpiry < now) {
+                    rewrite(playerId, segment, mail -> mail.isExpired(now), removed);
+                }
+            }
+            for (Segment segment : segments(playerId)) {
+                if (segment.earliestExpiry != 0 && (earliest == 0 || segment.earliestExpiry < earliest)) {
+                    earliest = segment.earliestExpiry;
+                }
+            }
+            return earliest;
+        }
+    }
+
+    // Earliest archived expiry of every player that has one, from the segment names alone
+    public Map<UUID, Long> scanExpiries() {
+        Map<UUID, Long> expiries = new HashMap<>();
+        for (UUID playerId : listPlayers()) {
+            synchronized (lockFor(playerId)) {
+                for (Segment segment : segments(playerId)) {
+                    if (segment.earliestExpiry != 0) {
+                        expiries.merge(playerId, segment.earliestExpiry, Math::min);
+                    }
+                }
+            }
+        }
+        return expiries;
+    }
+
+    public long getArchivedCount() {
+        return archived.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getSegmentReads() {
+        return segmentReads.get();
+    }
+
+    private File playerFolder(UUID playerId) {
+        return new File(folder, playerId.toString());
+    }
+
+    // Oldest first. A crash halfway through a rewrite can leave two segments with one number; the rewritten one
+    // is smaller, since rewrites only ever remove mail. Caller holds the player's lock.
+    private List<Segment> segments(UUID playerId) {
+        File[] files = playerFolder(playerId).listFiles((dir, name) -> name.endsWith(".seg"));
+        Map<Integer, Segment> bySeq = new HashMap<>();
+        for (File file : files == null ? new File[0] : files) {
+            Segment segment = Segment.parse(file);
+            if (segment == null) {
+                continue;
+            }
+            Segment other = bySeq.get(segment.seq);
+            if (other != null) {
+                Segment stale = other.count > segment.count ? other : segment;
+                if (!stale.file.delete()) {
+                    logger.warning("Could not delete archived mail " + stale.file.getPath());
+                }
+                segment = stale == other ? segment : other;
+            }
+            bySeq.put(segment.seq, segment);
+        }
+        List<Segment> segments = new ArrayList<>(bySeq.values());
+        segments.sort(Comparator.comparingInt(segment -> segment.seq));
+        return segments;
+    }
+
+    // Replaces segment with its mail minus what filter matches; returns how many were removed. Caller holds the lock.
+    private int rewrite(UUID playerId, Segment segment, Predicate<MailMessage> filter, Consumer<MailMessage> removed)
+            throws IOException {
+        List<MailMessage> mailList;
+        try {
+            mailList = read(segment);
+        } catch (CorruptMailException e) {
+            setAside(playerId, segment, e); // Otherwise every cleanup would trip over it again
+            return 0;
+        }
+        List<MailMessage> kept = new ArrayList<>();
+        List<MailMessage> gone = new ArrayList<>();
+        for (MailMessage mail : mailList) {
+            (filter.test(mail) ? gone : kept).add(mail);
+        }
+        if (gone.isEmpty()) {
+            return 0;
+        }
+        if (!kept.isEmpty()) {
+            write(segment.file.getParentFile(), segment.seq, kept); // A different name, since the count changed
+        }
+        if (!segment.file.delete()) {
+            throw new IOException("Could not delete " + segment.file.getPath());
+        }
+        MailSearchIndex index = cachedIndex(playerId);
+        for (MailMessage mail : gone) {
+            removed.accept(mail);
+            if (index != null) {
+                index.remove(mail.getMessageId());
+            }
+        }
+        return gone.size();
+    }
+
+    private void write(File playerFolder, int seq, List<MailMessage> mailList) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(MailCodec.encodeMailbox(mailList));
+        }
+        int listed = 0;
+        for (MailMessage mail : mailList) {
+            if (isListed(mail)) {
+                listed++;
+            }
+        }
+        File file = new File(playerFolder, seq + "-" + mailList.size() + "-" + listed + "-" + ExpiryIndex.earliestExpiry(mailList) + ".seg");
+        File tempFile = new File(playerFolder, file.getName() + ".tmp");
+        Files.write(tempFile.toPath(), bytes.toByteArray());
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<MailMessage> read(Segment segment) throws IOException {
+        segmentReads.incrementAndGet();
+        byte[] compressed = Files.readAllBytes(segment.file.toPath());
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return MailCodec.decodeMailbox(in.readAllBytes());
+        } catch (IOException e) {
+            throw new CorruptMailException("Unreadable archived mail " + segment.file.getPath(), e);
+        }
+    }
+
+    // Moves an unreadable segment into the player's corrupt/ folder for manual recovery. Caller holds the lock.
+    private void setAside(UUID playerId, Segment segment, CorruptMailException e) {
+        forgetIndex(playerId);
+        logger.log(Level.WARNING, "Setting aside unreadable archived mail", e);
+        try {
+            MailStorage.moveToQuarantine(segment.file);
+        } catch (IOException moveFailed) {
+            logger.log(Level.SEVERE, "Could not set aside " + segment.file.getPath(), moveFailed);
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final int seq;
+        final int count;
+        final int listed;
+        final long earliestExpiry;
+
+        Segment(File file, int seq, int count, int listed, long earliestExpiry) {
+            this.file = file;
+            this.seq = seq;
+            this.count = count;
+            this.listed = listed;
+            this.earliestExpiry = earliestExpiry;
+        }
+
+        static Segment parse(File file) {
+            String[] parts = file.getName().substring(0, file.getName().length() - 4).split("-");
+            if (parts.length != 4) {
+                return null;
+            }
+            try {
+                return new Segment(file, Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                        Long.parseLong(parts[3]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    // Sized from the segment names; a segment is decoded the first time one of its messages is asked for. One that
+    // turns out unreadable is set aside and its messages come back as null.
+    private final class ArchiveView extends AbstractList<MailMessage> {
+        private final UUID playerId;
+        private final List<MailMessage> recent;
+        private final List<Segment> segments; // Newest first
+        private final Map<Integer, List<MailMessage>> decoded = new HashMap<>(); // Segment index: its listed mail, newest first
+        private final int size;
+
+        ArchiveView(UUID playerId, List<MailMessage> recent, List<Segment> segments) {
+            this.playerId = playerId;
+            this.recent = recent;
+            this.segments = segments;
+            int total = recent.size();
+            for (Segment segment : segments) {
+                total += segment.listed;
+            }
+            this.size = total;
+        }
+
+        @Override
+        public MailMessage get(int index) {
+            if (index < recent.size()) {
+                return recent.get(index);
+            }
+            int offset = index - recent.size();
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                if (offset < segment.listed) {
+                    List<MailMessage> mailList = decoded.computeIfAbsent(i, k -> decode(segment));
+                    return offset < mailList.size() ? mailList.get(offset) : null;
+                }
+                offset -= segment.listed;
+            }
+            throw new IndexOutOfBoundsException(index);
+        }
+
+        private List<MailMessage> decode(Segment segment) {
+            synchronized (lockFor(playerId)) {
+                if (!segment.file.exists()) { // Rewritten or dropped since the view was made
+                    return List.of();
+                }
+                try {
+                    List<MailMessage> mailList = new ArrayList<>();
+                    for (MailMessage mail : read(segment)) {
+                        if (isListed(mail)) {
+                            mailList.add(mail);
+                        }
+                    }
+                    Collections.reverse(mailList);
+                    return mailList;
+                } catch (CorruptMailException e) {
+                    setAside(playerId, segment, e);
+                    return List.of();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not read archived mail " + segment.file.getPath(), e);
+                    return List.of();
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
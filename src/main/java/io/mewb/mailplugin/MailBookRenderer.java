@@ -0,0 +1,325 @@
+package io.mewb.mailplugin;
+
+import net.md_5.bungee.api.chat.BaseComponent;
+import net.md_5.bungee.api.chat.ClickEvent;
+import net.md_5.bungee.api.chat.HoverEvent;
+import net.md_5.bungee.api.chat.TextComponent;
+import net.md_5.bungee.api.chat.hover.content.Text;
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.BookMeta;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+// Builds the mailbox book off the main thread, one window of pages at a time. Each message's components are
+// cached per player and reused until that message's read/claimed state changes; only openBook runs on the main thread.
+// Archived mail follows the mailbox's own, and is only read from disk when a window reaches it.
+public class MailBookRenderer {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter SHORT_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneId.systemDefault());
+    private static final int MAX_BOOK_PAGES = 100; // Client limit
+    private static final int RESULTS_PER_PAGE = 6;
+    private static final int SNIPPET_LENGTH = 120;
+
+    private final Mailplugin plugin;
+    private final MailManager mailManager;
+    private final int messagesPerPage;
+    private final int pagesPerBook;
+
+    private final Map<UUID, Map<UUID, RenderedMessage>> rendered = new ConcurrentHashMap<>();
+    private final Map<UUID, Integer> lastWindow = new ConcurrentHashMap<>(); // So a refresh after claiming stays put
+    private final Map<Material, String> materialNames = new ConcurrentHashMap<>();
+
+    public MailBookRenderer(Mailplugin plugin, MailManager mailManager) {
+        this(plugin, mailManager, plugin.getConfig().getInt("book-ui.items-per-page", 1),
+                plugin.getConfig().getInt("book-ui.pages-per-book", 20));
+    }
+
+    // Also used by the benchmarks, which only call buildPages and pass no plugin
+    MailBookRenderer(Mailplugin plugin, MailManager mailManager, int messagesPerPage, int pagesPerBook) {
+        this.plugin = plugin;
+        this.mailManager = mailManager;
+        this.messagesPerPage = Math.max(1, messagesPerPage);
+        // One page is kept back for the navigation page
+        this.pagesPerBook = Math.max(1, Math.min(MAX_BOOK_PAGES - 1, pagesPerBook));
+    }
+
+    // window is 1-based; out of range values are clamped once the mailbox size is known
+    public void open(Player player, int window) {
+        UUID playerId = player.getUniqueId();
+        plugin.getWorkScheduler().runAsync(() -> {
+            ItemStack book;
+            try {
+                book = build(playerId, window);
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not build mail book for " + player.getName(), e);
+                return;
+            }
+            plugin.getWorkScheduler().runOnMain(() -> {
+                if (player.isOnline()) {
+                    player.openBook(book);
+                }
+            });
+        });
+    }
+
+    // Search results, one line or two each, with the body on hover. Own mail with unclaimed items links to the claim
+    // command; showOwner names whose mailbox each result is in, for the admin search. Call off the main thread.
+    public void openResults(Player player, String heading, List<MailMessage> results, boolean showOwner) {
+        List<BaseComponent[]> pages = new ArrayList<>();
+        List<BaseComponent> page = new ArrayList<>();
+        TextComponent header = new TextComponent(results.size() + " result(s) for " + heading + "\n\n");
+        header.setColor(net.md_5.bungee.api.ChatColor.DARK_GRAY);
+        page.add(header);
+        int onPage = 0;
+        for (MailMessage mail : results) {
+            if (onPage == RESULTS_PER_PAGE && pages.size() < MAX_BOOK_PAGES - 1) {
+                pages.add(page.toArray(new BaseComponent[0]));
+                page = new ArrayList<>();
+                onPage = 0;
+            }
+            page.addAll(renderResult(player.getUniqueId(), mail, showOwner));
+            onPage++;
+        }
+        if (results.isEmpty()) {
+            TextComponent none = new TextComponent("No mail matches.");
+            none.setColor(net.md_5.bungee.api.ChatColor.GRAY);
+            page.add(none);
+        }
+        pages.add(page.toArray(new BaseComponent[0]));
+
+        ItemStack book = new ItemStack(Material.WRITTEN_BOOK);
+        BookMeta bookMeta = (BookMeta) book.getItemMeta();
+        bookMeta.setTitle("Mail Search");
+        bookMeta.setAuthor(plugin.getConfig().getString("book-ui.author", "Server"));
+        bookMeta.spigot().setPages(pages);
+        book.setItemMeta(bookMeta);
+        plugin.getWorkScheduler().runOnMain(() -> {
+            if (player.isOnline()) {
+                player.openBook(book);
+            }
+        });
+    }
+
+    private List<BaseComponent> renderResult(UUID viewerId, MailMessage mail, boolean showOwner) {
+        String body = mail.getBody() == null ? "" : mail.getBody();
+        StringBuilder hover = new StringBuilder();
+        hover.append(mail.getSubject()).append('\n')
+                .append(body.length() > SNIPPET_LENGTH ? body.substring(0, SNIPPET_LENGTH) + "..." : body);
+        if (mail.hasItems()) {
+            hover.append(mail.isClaimed() ? "\n\nItems claimed" : "\n\nHas unclaimed items");
+        }
+
+        TextComponent subject = new TextComponent(mail.getSubject() + "\n");
+        subject.setColor(mail.isRead() ? net.md_5.bungee.api.ChatColor.GRAY : net.md_5.bungee.api.ChatColor.DARK_AQUA);
+        String details = SHORT_DATE_FORMAT.format(Instant.ofEpochMilli(mail.getSentTimestamp())) + " from " + mail.getSenderName();
+        if (showOwner) {
+            String owner = plugin.getPlayerDirectory().getName(mail.getRecipientId());
+            details += " to " + (owner != null ? owner : mail.getRecipientId().toString().substring(0, 8));
+        }
+        TextComponent detailLine = new TextComponent(details + "\n");
+        detailLine.setColor(net.md_5.bungee.api.ChatColor.DARK_GRAY);
+
+        List<BaseComponent> components = List.of(subject, detailLine);
+        for (BaseComponent component : components) {
+            component.setHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new Text(hover.toString())));
+            if (mail.hasItems() && !mail.isClaimed() && viewerId.equals(mail.getRecipientId())) {
+                component.setClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/mail claim " + mail.getMessageId()));
+            }
+        }
+        return components;
+    }
+
+    // Reopens whichever window the player last looked at
+    public void refresh(Player player) {
+        open(player, lastWindow.getOrDefault(player.getUniqueId(), 1));
+    }
+
+    public void forget(UUID playerId) {
+        rendered.remove(playerId);
+        lastWindow.remove(playerId);
+    }
+
+    private ItemStack build(UUID playerId, int requestedWindow) {
+        long started = System.nanoTime();
+        try {
+            return buildWindow(playerId, requestedWindow);
+        } finally {
+            plugin.getMetrics().getBookRenders().record(System.nanoTime() - started);
+        }
+    }
+
+    private ItemStack buildWindow(UUID playerId, int requestedWindow) {
+        List<MailMessage> mailList = new ArrayList<>();
+        for (MailMessage mail : mailManager.getMailForPlayer(playerId)) {
+            if (!mail.isClaimed() || !mail.hasItems()) { // Show unread, or messages that are just text even if read/claimed
+                mailList.add(mail);
+            }
+        }
+        Collections.reverse(mailList); // Newest first
+        List<BaseComponent[]> pages = buildPages(playerId, mailManager.withArchive(playerId, mailList), requestedWindow);
+
+        ItemStack book = new ItemStack(Material.WRITTEN_BOOK);
+        BookMeta bookMeta = (BookMeta) book.getItemMeta();
+        bookMeta.setTitle(plugin.getConfig().getString("book-ui.title", "Your Mailbox"));
+        bookMeta.setAuthor(plugin.getConfig().getString("book-ui.author", "Server"));
+        bookMeta.spigot().setPages(pages);
+        book.setItemMeta(bookMeta);
+        return book;
+    }
+
+    // The pages of one window over mailList (newest first), reusing the player's cached message components
+    List<BaseComponent[]> buildPages(UUID playerId, List<MailMessage> mailList, int requestedWindow) {
+        int messagesPerBook = messagesPerPage * pagesPerBook;
+        int windows = Math.max(1, (mailList.size() + messagesPerBook - 1) / messagesPerBook);
+        int window = Math.max(1, Math.min(windows, requestedWindow));
+        lastWindow.put(playerId, window);
+
+        List<BaseComponent[]> pages = new ArrayList<>();
+        if (mailList.isEmpty()) {
+            TextComponent pageContent = new TextComponent("Your mailbox is empty.");
+            pageContent.setColor(net.md_5.bungee.api.ChatColor.GRAY);
+            pages.add(new BaseComponent[]{pageContent});
+        } else {
+            Map<UUID, RenderedMessage> cache = rendered.computeIfAbsent(playerId, k -> new ConcurrentHashMap<>());
+            int from = (window - 1) * messagesPerBook;
+            int to = Math.min(mailList.size(), from + messagesPerBook);
+            Set<UUID> visible = new HashSet<>();
+            for (int pageStart = from; pageStart < to; pageStart += messagesPerPage) {
+                List<BaseComponent> page = new ArrayList<>();
+                for (int i = pageStart; i < Math.min(to, pageStart + messagesPerPage); i++) {
+                    MailMessage mail = mailList.get(i);
+                    if (mail == null) { // Archived mail that turned out unreadable
+                        continue;
+                    }
+                    visible.add(mail.getMessageId());
+                    RenderedMessage cached = cache.get(mail.getMessageId());
+                    if (cached == null || !cached.matches(mail)) {
+                        // Flags read once, so the cache entry describes exactly what was rendered
+                        boolean read = mail.isRead();
+                        boolean claimed = mail.isClaimed();
+                        cached = new RenderedMessage(read, claimed, render(mail, read, claimed));
+                        cache.put(mail.getMessageId(), cached);
+                    }
+                    if (i > pageStart) {
+                        page.add(new TextComponent("\n"));
+                    }
+                    page.addAll(Arrays.asList(cached.components));
+                }
+                pages.add(page.toArray(new BaseComponent[0]));
+            }
+            cache.keySet().retainAll(visible); // Only the window being looked at stays cached
+            if (windows > 1) {
+                pages.add(navigationPage(window, windows, from + 1, to, mailList.size()));
+            }
+        }
+        return pages;
+    }
+
+    private BaseComponent[] render(MailMessage mail, boolean read, boolean claimed) {
+        List<BaseComponent> components = new ArrayList<>();
+
+        TextComponent subject = new TextComponent("Subject: " + mail.getSubject() + "\n");
+        subject.setBold(true);
+        subject.setColor(read ? net.md_5.bungee.api.ChatColor.GRAY : net.md_5.bungee.api.ChatColor.DARK_AQUA);
+        components.add(subject);
+
+        components.add(new TextComponent("From: " + mail.getSenderName() + "\n"));
+        components.add(new TextComponent("Sent: " + DATE_FORMAT.format(Instant.ofEpochMilli(mail.getSentTimestamp())) + "\n"));
+
+        if (mail.getExpiryTimestamp() > 0) {
+            TextComponent expiry = new TextComponent("Expires: " + DATE_FORMAT.format(Instant.ofEpochMilli(mail.getExpiryTimestamp())) + "\n");
+            expiry.setColor(net.md_5.bungee.api.ChatColor.RED);
+            components.add(expiry);
+        }
+
+        components.add(new TextComponent("\n" + mail.getBody() + "\n\n"));
+
+        if (mail.hasItems() && !claimed) {
+            TextComponent itemsLabel = new TextComponent("Items: ");
+            itemsLabel.setBold(true);
+            components.add(itemsLabel);
+            for (ItemStack item : mail.getItems()) {
+                String name = getItemName(item);
+                TextComponent itemName = new TextComponent(item.getAmount() + "x " + name + " ");
+                itemName.setHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new Text(name + "\n" + item.getType().toString())));
+                components.add(itemName);
+            }
+            components.add(new TextComponent("\n"));
+
+            TextComponent claimButton = new TextComponent("[Claim Items]");
+            claimButton.setColor(net.md_5.bungee.api.ChatColor.GREEN);
+            claimButton.setBold(true);
+            claimButton.setClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/mail claim " + mail.getMessageId().toString()));
+            claimButton.setHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new Text("Click to claim items")));
+            components.add(claimButton);
+        } else if (mail.hasItems()) {
+            TextComponent claimedText = new TextComponent("[Items Claimed]");
+            claimedText.setColor(net.md_5.bungee.api.ChatColor.GRAY);
+            components.add(claimedText);
+        }
+        return components.toArray(new BaseComponent[0]);
+    }
+
+    private BaseComponent[] navigationPage(int window, int windows, int first, int last, int total) {
+        List<BaseComponent> components = new ArrayList<>();
+        components.add(new TextComponent("Showing mail " + first + "-" + last + " of " + total + "\n\n"));
+        if (window > 1) {
+            TextComponent newer = new TextComponent("[< Newer]\n");
+            newer.setColor(net.md_5.bungee.api.ChatColor.DARK_AQUA);
+            newer.setClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/mail open " + (window - 1)));
+            components.add(newer);
+        }
+        if (window < windows) {
+            TextComponent older = new TextComponent("[Older >]\n");
+            older.setColor(net.md_5.bungee.api.ChatColor.DARK_AQUA);
+            older.setClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/mail open " + (window + 1)));
+            components.add(older);
+        }
+        return components.toArray(new BaseComponent[0]);
+    }
+
+    private String getItemName(ItemStack item) {
+        if (item.hasItemMeta() && item.getItemMeta().hasDisplayName()) {
+            return item.getItemMeta().getDisplayName();
+        }
+        return materialNames.computeIfAbsent(item.getType(), material -> {
+            String materialName = material.toString().toLowerCase().replace('_', ' ');
+            return Arrays.stream(materialName.split(" "))
+                    .map(word -> Character.toUpperCase(word.charAt(0)) + word.substring(1))
+                    .collect(Collectors.joining(" "));
+        });
+    }
+
+    // A message's components only depend on its flags; everything else about a message never changes
+    private static final class RenderedMessage {
+        final boolean read;
+        final boolean claimed;
+        final BaseComponent[] components;
+
+        RenderedMessage(boolean read, boolean claimed, BaseComponent[] components) {
+            this.read = read;
+            this.claimed = claimed;
+            this.components = components;
+        }
+
+        boolean matches(MailMessage mail) {
+            return read == mail.isRead() && claimed == mail.isClaimed();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// One broadcast job: the message, its frozen recipient list and how far delivery has got.
+// State lives in broadcasts/<id>.yml, recipients in broadcasts/<id>.recipients, so a restart picks up at the cursor.
+// Both files are deleted once the job is finished or cancelled.
+public class MailBroadcast {
+
+    public enum State { RUNNING, FINISHED, CANCELLED }
+
+    private final UUID id;
+    private final String senderName;
+    private final String subject;
+    private final String body;
+    private final String attachmentId; // Shared AttachmentStore payload, null for text-only broadcasts
+    private final String audience;
+    private final long createdAt;
+    private final long expiryTimestamp;
+    private final UUID[] recipients;
+    private final UUID reportTo; // Player to send progress to, null for console only
+    private volatile int cursor;
+    private volatile int delivered;
+    private volatile int failed;
+    private volatile State state;
+
+    public MailBroadcast(UUID id, String senderName, String subject, String body, String attachmentId, String audience,
+                         long createdAt, long expiryTimestamp, UUID[] recipients, UUID reportTo) {
+        this.id = id;
+        this.senderName = senderName;
+        this.subject = subject;
+        this.body = body;
+        this.attachmentId = attachmentId;
+        this.audience = audience;
+        this.createdAt = createdAt;
+        this.expiryTimestamp = expiryTimestamp;
+        this.recipients = recipients;
+        this.reportTo = reportTo;
+        this.state = State.RUNNING;
+    }
+
+    public UUID getId() { return id; }
+    public String getShortId() { return id.toString().substring(0, 8); }
+    public String getSubject() { return subject; }
+    public String getAudience() { return audience; }
+    public String getAttachmentId() { return attachmentId; }
+    public UUID getReportTo() { return reportTo; }
+    public int getTotal() { return recipients.length; }
+    public int getCursor() { return cursor; }
+    public int getDelivered() { return delivered; }
+    public int getFailed() { return failed; }
+    public State getState() { return state; }
+    public boolean isDone() { return cursor >= recipients.length; }
+
+    public void setState(State state) { this.state = state; }
+
+    UUID getRecipient(int index) {
+        return recipients[index];
+    }
+
+    void advance(int processed, int deliveredCount, int failedCount) {
+        cursor += processed;
+        delivered += deliveredCount;
+        failed += failedCount;
+    }
+
+    // The message id is derived from the broadcast and recipient, so re-delivering after a crash is a no-op.
+    // Attachments go out as a reference only; MailManager resolves the shared items when the mailbox is loaded.
+    public MailMessage createMessage(UUID recipientId) {
+        UUID messageId = UUID.nameUUIDFromBytes((id.toString() + recipientId).getBytes(StandardCharsets.UTF_8));
+        MailMessage mail = new MailMessage(messageId, recipientId, senderName, subject, body, new ArrayList<>(),
+                createdAt, expiryTimestamp, false, false);
+        if (attachmentId != null) {
+            mail.setAttachment(attachmentId, List.of());
+        }
+        return mail;
+    }
+
+    static File stateFile(File folder, UUID id) {
+        return new File(folder, id + ".yml");
+    }
+
+    static File recipientsFile(File folder, UUID id) {
+        return new File(folder, id + ".recipients");
+    }
+
+    public void saveRecipients(File folder) throws IOException {
+        File file = recipientsFile(folder, id);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(recipients.length);
+            for (UUID recipient : recipients) {
+                out.writeLong(recipient.getMostSignificantBits());
+                out.writeLong(recipient.getLeastSignificantBits());
+            }
+        }
+    }
+
+    public synchronized void saveState(File folder) throws IOException {
+        FileConfiguration yaml = new YamlConfiguration();
+        yaml.set("sender", senderName);
+        yaml.set("subject", subject);
+        yaml.set("body", body);
+        yaml.set("attachment", attachmentId);
+        yaml.set("audience", audience);
+        yaml.set("created", createdAt);
+        yaml.set("expiry", expiryTimestamp);
+        yaml.set("report-to", reportTo == null ? null : reportTo.toString());
+        yaml.set("cursor", cursor);
+        yaml.set("delivered", delivered);
+        yaml.set("failed", failed);
+        yaml.set("state", state.name());
+        File file = stateFile(folder, id);
+        File tempFile = new File(folder, file.getName() + ".tmp");
+        yaml.save(tempFile);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Removes both files of a job that reached its final state
+    public static void delete(File folder, UUID id) throws IOException {
+        // State first: without it the job is never resumed, even if the recipient list stays behind
+        Files.deleteIfExists(stateFile(folder, id).toPath());
+        Files.deleteIfExists(recipientsFile(folder, id).toPath());
+    }
+
+    // null if the job already finished or was cancelled, in which case the recipient list isn't read
+    public static MailBroadcast load(File folder, UUID id) throws IOException {
+        FileConfiguration yaml = new YamlConfiguration();
+        try {
+            yaml.load(stateFile(folder, id));
+        } catch (InvalidConfigurationException e) {
+            throw new IOException("Malformed broadcast state " + id, e);
+        }
+        State state = State.valueOf(yaml.getString("state", State.RUNNING.name()));
+        if (state != State.RUNNING) {
+            return null;
+        }
+        UUID[] recipients;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(recipientsFile(folder, id))))) {
+            recipients = new UUID[in.readInt()];
+            for (int i = 0; i < recipients.length; i++) {
+                recipients[i] = new UUID(in.readLong(), in.readLong());
+            }
+        }
+        String reportTo = yaml.getString("report-to");
+        MailBroadcast broadcast = new MailBroadcast(id, yaml.getString("sender"), yaml.getString("subject"), yaml.getString("body"),
+                yaml.getString("attachment"), yaml.getString("audience"), yaml.getLong("created"), yaml.getLong("expiry"),
+                recipients, reportTo == null ? null : UUID.fromString(reportTo));
+        broadcast.cursor = Math.min(yaml.getInt("cursor"), recipients.length);
+        broadcast.delivered = yaml.getInt("delivered");
+        broadcast.failed = yaml.getInt("failed");
+        broadcast.state = state;
+        return broadcast;
+    }
+}
@@ -0,0 +1,45 @@
+package io.mewb.mailplugin;
+
+import java.util.UUID;
+
+// A single mailbox mutation, queued by the write-behind layer and handed to the storage backend
+public final class MailChange {
+
+    public enum Type { SEND, FLAGS, REMOVE }
+
+    private final Type type;
+    private final UUID messageId;
+    private final MailMessage message; // Only for SEND
+    private final boolean read;
+    private final boolean claimed;
+
+    private MailChange(Type type, UUID messageId, MailMessage message, boolean read, boolean claimed) {
+        this.type = type;
+        this.messageId = messageId;
+        this.message = message;
+        this.read = read;
+        this.claimed = claimed;
+    }
+
+    public static MailChange send(MailMessage mail) {
+        return new MailChange(Type.SEND, mail.getMessageId(), mail, mail.isRead(), mail.isClaimed());
+    }
+
+    public static MailChange flags(MailMessage mail) {
+        return new MailChange(Type.FLAGS, mail.getMessageId(), null, mail.isRead(), mail.isClaimed());
+    }
+
+    public static MailChange flags(UUID messageId, boolean read, boolean claimed) {
+        return new MailChange(Type.FLAGS, messageId, null, read, claimed);
+    }
+
+    public static MailChange remove(UUID messageId) {
+        return new MailChange(Type.REMOVE, messageId, null, false, false);
+    }
+
+    public Type getType() { return type; }
+    public UUID getMessageId() { return messageId; }
+    public MailMessage getMessage() { return message; }
+    public boolean isRead() { return read; }
+    public boolean isClaimed() { return claimed; }
+}
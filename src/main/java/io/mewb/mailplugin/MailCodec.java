@@ -0,0 +1,215 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+// Compact binary form of MailMessage. UUIDs are two longs, timestamps and lengths are varints,
+// flags share one byte and ItemStacks use Paper's own byte serialization.
+//
+// Mailbox file layout: magic "MAIL", version byte, varint message count, messages, CRC32 of everything before it.
+public final class MailCodec {
+
+    public static final int MAGIC = 0x4D41494C; // "MAIL"
+    public static final int VERSION = 2; // 2: shared attachment references
+
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    private static final int FLAG_READ = 1;
+    private static final int FLAG_CLAIMED = 1 << 1;
+    private static final int FLAG_EXPIRES = 1 << 2;
+    private static final int FLAG_ITEMS = 1 << 3;
+    private static final int FLAG_ATTACHMENT = 1 << 4; // Items are a reference into the AttachmentStore
+
+    private MailCodec() {
+    }
+
+    public static byte[] encodeMailbox(List<MailMessage> mailList) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + mailList.size() * 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeVarLong(out, mailList.size());
+        for (MailMessage mail : mailList) {
+            writeMessage(out, mail);
+        }
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static List<MailMessage> decodeMailbox(byte[] data) throws IOException {
+        if (data.length < 9) {
+            throw new IOException("Mail file is truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        int expected = ((data[data.length - 4] & 0xff) << 24) | ((data[data.length - 3] & 0xff) << 16)
+                | ((data[data.length - 2] & 0xff) << 8) | (data[data.length - 1] & 0xff);
+        if ((int) crc.getValue() != expected) {
+            throw new IOException("Mail file checksum mismatch");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a mail file");
+        }
+        int version = in.readUnsignedByte();
+        if (version > VERSION) {
+            throw new IOException("Mail file version " + version + " is newer than this plugin supports");
+        }
+        int count = readLength(in);
+        List<MailMessage> mailList = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            mailList.add(readMessage(in));
+        }
+        return mailList;
+    }
+
+    public static byte[] encodeMessage(MailMessage mail) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeMessage(out, mail);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static MailMessage decodeMessage(byte[] data) throws IOException {
+        return readMessage(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    public static void writeMessage(DataOutputStream out, MailMessage mail) throws IOException {
+        writeUuid(out, mail.getMessageId());
+        writeUuid(out, mail.getRecipientId());
+        int flags = (mail.isRead() ? FLAG_READ : 0)
+                | (mail.isClaimed() ? FLAG_CLAIMED : 0)
+                | (mail.getExpiryTimestamp() != 0 ? FLAG_EXPIRES : 0)
+                | (mail.getAttachmentId() != null ? FLAG_ATTACHMENT : mail.hasItems() ? FLAG_ITEMS : 0);
+        out.writeByte(flags);
+        writeVarLong(out, mail.getSentTimestamp());
+        if ((flags & FLAG_EXPIRES) != 0) {
+            writeVarLong(out, mail.getExpiryTimestamp());
+        }
+        writeString(out, mail.getSenderName());
+        writeString(out, mail.getSubject());
+        writeString(out, mail.getBody());
+        if ((flags & FLAG_ATTACHMENT) != 0) {
+            writeString(out, mail.getAttachmentId());
+        } else if ((flags & FLAG_ITEMS) != 0) {
+            writeItems(out, mail.getItems());
+        }
+    }
+
+    public static MailMessage readMessage(DataInputStream in) throws IOException {
+        UUID messageId = readUuid(in);
+        UUID recipientId = readUuid(in);
+        int flags = in.readUnsignedByte();
+        long sentTimestamp = readVarLong(in);
+        long expiryTimestamp = (flags & FLAG_EXPIRES) != 0 ? readVarLong(in) : 0;
+        String senderName = readString(in);
+        String subject = readString(in);
+        String body = readString(in);
+        String attachmentId = (flags & FLAG_ATTACHMENT) != 0 ? readString(in) : null;
+        List<ItemStack> items = (flags & FLAG_ITEMS) != 0 ? readItems(in) : new ArrayList<>();
+        MailMessage mail = new MailMessage(messageId, recipientId, senderName, subject, body, items,
+                sentTimestamp, expiryTimestamp, (flags & FLAG_CLAIMED) != 0, (flags & FLAG_READ) != 0);
+        if (attachmentId != null) {
+            mail.setAttachment(attachmentId, List.of());
+        }
+        return mail;
+    }
+
+    public static byte[] encodeItems(List<ItemStack> items) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeItems(out, items);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static List<ItemStack> decodeItems(byte[] data) throws IOException {
+        return readItems(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static void writeItems(DataOutputStream out, List<ItemStack> items) throws IOException {
+        writeVarLong(out, items.size());
+        for (ItemStack item : items) {
+            byte[] itemBytes = item.serializeAsBytes();
+            writeVarLong(out, itemBytes.length);
+            out.write(itemBytes);
+        }
+    }
+
+    private static List<ItemStack> readItems(DataInputStream in) throws IOException {
+        int count = readLength(in);
+        List<ItemStack> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] itemBytes = new byte[readLength(in)];
+            in.readFully(itemBytes);
+            items.add(ItemStack.deserializeBytes(itemBytes));
+        }
+        return items;
+    }
+
+    static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    static UUID readUuid(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Unsigned LEB128: 7 bits per byte, high bit set on all but the last
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    // Guards allocations against corrupt lengths
+    private static int readLength(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Length " + length + " out of range");
+        }
+        return (int) length;
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -1,11 +1,5 @@
 package io.mewb.mailplugin;
 
-import net.md_5.bungee.api.chat.BaseComponent;
-import net.md_5.bungee.api.chat.ClickEvent;
-import net.md_5.bungee.api.chat.HoverEvent;
-import net.md_5.bungee.api.chat.TextComponent;
-import net.md_5.bungee.api.chat.hover.content.Text;
-import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
 import org.bukkit.command.Command;
@@ -14,21 +8,39 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.meta.BookMeta;
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class MailCommand implements CommandExecutor, TabCompleter {
 
     private final Mailplugin plugin;
     private final MailManager mailManager;
-    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+    private static final List<String> STORAGE_MODES = List.of("yaml", "binary", "journal", "sql");
+    private static final List<String> PLAYER_SUBCOMMANDS = List.of("open", "claim", "claimall", "readall", "delete", "search", "send", "senditem");
+    private static final List<String> DELETE_FILTERS = List.of("read", "claimed", "all", "from:");
+    private static final List<String> ADMIN_SUBCOMMANDS = List.of("migrate", "broadcast", "schedule", "stats", "searchall");
+    private static final List<String> SCHEDULE_TARGETS = List.of("status", "online", "all", "perm:");
+    private static final Map<String, Long> DELAY_UNITS = Map.of("s", 1000L, "m", 60 * 1000L, "h", 60 * 60 * 1000L,
+            "d", 24 * 60 * 60 * 1000L, "w", 7 * 24 * 60 * 60 * 1000L);
+    private static final Pattern DELAY_PART = Pattern.compile("(\\d{1,9})([smhdw])");
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+    private static final int MAX_NAME_COMPLETIONS = 50;
 
     public MailCommand(Mailplugin plugin, MailManager mailManager) {
         this.plugin = plugin;
@@ -37,6 +49,31 @@ public class MailCommand implements CommandExecutor, TabCompleter {
 
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length > 0 && args[0].equalsIgnoreCase("migrate")) {
+            handleMigrate(sender, args);
+            return true;
+        }
+
+        if (args.length > 0 && args[0].equalsIgnoreCase("broadcast")) {
+            handleBroadcast(sender, args);
+            return true;
+        }
+
+        if (args.length > 0 && args[0].equalsIgnoreCase("schedule")) {
+            handleSchedule(sender, args);
+            return true;
+        }
+
+        if (args.length > 0 && args[0].equalsIgnoreCase("stats")) {
+            handleStats(sender);
+            return true;
+        }
+
+        if (args.length > 0 && args[0].equalsIgnoreCase("searchall")) {
+            handleSearchAll(sender, args);
+            return true;
+        }
+
         if (!(sender instanceof Player)) {
             sender.sendMessage("This command can only be used by players.");
             // TODO: Add console commands for sending mail, etc.
@@ -45,46 +82,100 @@ public class MailCommand implements CommandExecutor, TabCompleter {
 
         Player player = (Player) sender;
 
-        if (args.length == 0 || (args.length == 1 && args[0].equalsIgnoreCase("open"))) {
-            openMailBook(player);
+        if (args.length == 0 || args[0].equalsIgnoreCase("open")) {
+            int window = 1;
+            if (args.length > 1) {
+                try {
+                    window = Integer.parseInt(args[1]);
+                } catch (NumberFormatException e) {
+                    player.sendMessage(ChatColor.RED + "Usage: /mail open [page]");
+                    return true;
+                }
+            }
+            plugin.getBookRenderer().open(player, window);
             return true;
         }
 
         if (args.length > 0 && args[0].equalsIgnoreCase("claim")) {
             if (args.length < 2) {
-                player.sendMessage(ChatColor.RED + "Usage: /mail claim <mail_id>");
+                player.sendMessage(ChatColor.RED + "Usage: /mail claim <number|mail_id>");
                 return true;
             }
-            try {
-                UUID mailId = UUID.fromString(args[1]);
-                if (mailManager.claimMail(player, mailId)) {
-                    // Success message handled in claimMail, refresh book
-                    openMailBook(player);
-                } else {
-                    player.sendMessage(ChatColor.RED + "Could not claim mail. It might be already claimed, expired, or not exist.");
-                }
-            } catch (IllegalArgumentException e) {
-                player.sendMessage(ChatColor.RED + "Invalid mail ID format.");
+            UUID mailId = resolveMailId(player, args[1]);
+            if (mailId == null) {
+                player.sendMessage(ChatColor.RED + "No mail with that number or ID.");
+                return true;
+            }
+            if (mailManager.claimMail(player, mailId)) {
+                // Success message handled in claimMail, refresh book
+                plugin.getBookRenderer().refresh(player);
+            } else {
+                player.sendMessage(ChatColor.RED + "Could not claim mail. It might be already claimed, expired, or not exist.");
             }
             return true;
         }
 
+        if (args[0].equalsIgnoreCase("claimall")) {
+            int[] result = mailManager.claimAll(player); // claimed, didn't fit; claimAll reports both
+            if (result[0] > 0) {
+                plugin.getBookRenderer().refresh(player);
+            } else if (result[1] == 0) {
+                player.sendMessage(ChatColor.YELLOW + "Nothing to claim.");
+            }
+            return true;
+        }
+
+        if (args[0].equalsIgnoreCase("readall")) {
+            int read = mailManager.readAll(player.getUniqueId());
+            player.sendMessage(ChatColor.GREEN + "Marked " + read + " mail(s) as read.");
+            return true;
+        }
+
+        if (args[0].equalsIgnoreCase("delete")) {
+            Predicate<MailMessage> filter = args.length == 2 ? parseDeleteFilter(args[1]) : null;
+            if (filter == null) {
+                player.sendMessage(ChatColor.RED + "Usage: /mail delete <read|claimed|all|from:<player>>");
+                return true;
+            }
+            plugin.getWorkScheduler().runAsync(() -> { // Archived mail is deleted too, which means reading it
+                int deleted = mailManager.deleteMail(player.getUniqueId(), filter);
+                plugin.getWorkScheduler().runOnMain(() -> player.sendMessage(ChatColor.GREEN + "Deleted " + deleted
+                        + " mail(s). Mail with unclaimed items is kept."));
+            });
+            return true;
+        }
+
+        if (args[0].equalsIgnoreCase("search")) {
+            MailSearchQuery query = MailSearchQuery.parse(Arrays.asList(args).subList(1, args.length));
+            if (query == null) {
+                player.sendMessage(ChatColor.RED + "Usage: /mail search <words...> [from:<player>] [after:<yyyy-mm-dd>] [before:<yyyy-mm-dd>]");
+                return true;
+            }
+            String heading = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+            int limit = plugin.getConfig().getInt("search.max-results", 60);
+            plugin.getWorkScheduler().runAsync(() -> { // Archived mail is searched too, which may mean reading it
+                List<MailMessage> results = mailManager.search(player.getUniqueId(), query, limit);
+                plugin.getBookRenderer().openResults(player, heading, results, false);
+            });
+            return true;
+        }
+
         if (args.length > 0 && args[0].equalsIgnoreCase("send")) {
             // Usage: /mail send <player> <subject> <message...>
             if (args.length < 4) {
                 player.sendMessage(ChatColor.RED + "Usage: /mail send <player> <subject> <message...>");
                 return true;
             }
-            Player targetPlayer = Bukkit.getPlayer(args[1]);
-            if (targetPlayer == null) {
-                player.sendMessage(ChatColor.RED + "Player " + args[1] + " not found or offline (UUID lookup not implemented).");
+            UUID targetId = plugin.getPlayerDirectory().resolve(args[1]);
+            if (targetId == null) {
+                player.sendMessage(ChatColor.RED + "Player " + args[1] + " has never joined this server.");
                 return true;
             }
             String subject = args[2];
             String messageBody = String.join(" ", Arrays.copyOfRange(args, 3, args.length));
 
-            mailManager.sendMail(targetPlayer.getUniqueId(), player.getName(), subject, messageBody, null);
-            player.sendMessage(ChatColor.GREEN + "Mail sent to " + targetPlayer.getName() + "!");
+            mailManager.sendMail(targetId, player.getName(), subject, messageBody, null);
+            player.sendMessage(ChatColor.GREEN + "Mail sent to " + plugin.getPlayerDirectory().getName(targetId) + "!");
             return true;
         }
 
@@ -94,9 +185,9 @@ public class MailCommand implements CommandExecutor, TabCompleter {
                 player.sendMessage(ChatColor.RED + "Usage: /mail senditem <player> [subject]");
                 return true;
             }
-            Player targetPlayer = Bukkit.getPlayer(args[1]);
-            if (targetPlayer == null) {
-                player.sendMessage(ChatColor.RED + "Player " + args[1] + " not found or offline.");
+            UUID targetId = plugin.getPlayerDirectory().resolve(args[1]);
+            if (targetId == null) {
+                player.sendMessage(ChatColor.RED + "Player " + args[1] + " has never joined this server.");
                 return true;
             }
             ItemStack itemInHand = player.getInventory().getItemInMainHand();
@@ -106,128 +197,371 @@ public class MailCommand implements CommandExecutor, TabCompleter {
             }
             String subject = (args.length > 2) ? String.join(" ", Arrays.copyOfRange(args, 2, args.length)) : "Item Delivery";
 
-            mailManager.sendMail(targetPlayer.getUniqueId(), player.getName(), subject, "Please find the attached item.", List.of(itemInHand.clone()));
+            mailManager.sendMail(targetId, player.getName(), subject, "Please find the attached item.", List.of(itemInHand.clone()));
             player.getInventory().setItemInMainHand(null); // Remove item from sender's hand
-            player.sendMessage(ChatColor.GREEN + "Item sent to " + targetPlayer.getName() + "!");
+            player.sendMessage(ChatColor.GREEN + "Item sent to " + plugin.getPlayerDirectory().getName(targetId) + "!");
             return true;
         }
 
 
-        player.sendMessage(ChatColor.YELLOW + "Available commands: /mail open, /mail claim <id>, /mail send <player> <subject> <message>");
+        player.sendMessage(ChatColor.YELLOW + "Available commands: /mail open, /mail claim <id>, /mail claimall, /mail readall, /mail delete <filter>, /mail search <words>, /mail send <player> <subject> <message>");
         return true;
     }
 
-    private void openMailBook(Player player) {
-        List<MailMessage> mailList = mailManager.getMailForPlayer(player.getUniqueId())
-                .stream()
-                .filter(m -> !m.isClaimed() || !m.hasItems()) // Show unread, or messages that are just text even if read/claimed
-                .sorted((m1, m2) -> Long.compare(m2.getSentTimestamp(), m1.getSentTimestamp())) // Newest first
-                .collect(Collectors.toList());
-
-        ItemStack book = new ItemStack(Material.WRITTEN_BOOK);
-        BookMeta bookMeta = (BookMeta) book.getItemMeta();
-        if (bookMeta == null) { // Should not happen with WRITTEN_BOOK
-            player.sendMessage(ChatColor.RED + "Error creating mail book.");
-            return;
-        }
-        bookMeta.setTitle(plugin.getConfig().getString("book-ui.title", "Your Mailbox"));
-        bookMeta.setAuthor(plugin.getConfig().getString("book-ui.author", "Server"));
-
-        if (mailList.isEmpty()) {
-            TextComponent pageContent = new TextComponent("Your mailbox is empty.");
-            pageContent.setColor(net.md_5.bungee.api.ChatColor.GRAY);
-            bookMeta.spigot().addPage(new BaseComponent[]{pageContent});
-        } else {
-            for (MailMessage mail : mailList) {
-                List<BaseComponent> pageComponentsList = new ArrayList<>();
-
-                TextComponent subject = new TextComponent("Subject: " + mail.getSubject() + "\n");
-                subject.setBold(true);
-                subject.setColor(mail.isRead() ? net.md_5.bungee.api.ChatColor.GRAY : net.md_5.bungee.api.ChatColor.DARK_AQUA);
-                pageComponentsList.add(subject);
-
-                TextComponent sender = new TextComponent("From: " + mail.getSenderName() + "\n");
-                pageComponentsList.add(sender);
-
-                TextComponent date = new TextComponent("Sent: " + dateFormat.format(new Date(mail.getSentTimestamp())) + "\n");
-                pageComponentsList.add(date);
-
-                if (mail.getExpiryTimestamp() > 0) {
-                    TextComponent expiry = new TextComponent("Expires: " + dateFormat.format(new Date(mail.getExpiryTimestamp())) + "\n");
-                    expiry.setColor(net.md_5.bungee.api.ChatColor.RED);
-                    pageComponentsList.add(expiry);
-                }
+    // Accepts the short number shown in tab completion or a full message id, as used by the book's links
+    private UUID resolveMailId(Player player, String arg) {
+        UUID mailId = mailManager.getMailbox(player.getUniqueId()).resolveHandle(arg);
+        if (mailId != null) {
+            return mailId;
+        }
+        try {
+            return UUID.fromString(arg);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // null if the filter isn't recognised
+    private static Predicate<MailMessage> parseDeleteFilter(String filter) {
+        String lower = filter.toLowerCase();
+        if (lower.equals("read")) {
+            return MailMessage::isRead;
+        }
+        if (lower.equals("claimed")) {
+            return mail -> mail.hasItems() && mail.isClaimed();
+        }
+        if (lower.equals("all")) {
+            return mail -> true;
+        }
+        if (lower.startsWith("from:") && lower.length() > 5) {
+            String sender = filter.substring(5);
+            return mail -> sender.equalsIgnoreCase(mail.getSenderName());
+        }
+        return null;
+    }
 
-                pageComponentsList.add(new TextComponent("\n" + mail.getBody() + "\n\n"));
+    private void handleStats(CommandSender sender) {
+        if (!sender.hasPermission("mailplugin.admin")) {
+            sender.sendMessage(ChatColor.RED + "You don't have permission to do that.");
+            return;
+        }
+        // The snapshot walks every cached mailbox, so it is built off the main thread
+        plugin.getWorkScheduler().runAsync(() -> {
+            List<String> lines = new ArrayList<>();
+            Map<String, Number> stats = plugin.getMetrics().snapshot();
+            MailMetrics metrics = plugin.getMetrics();
+            lines.add(ChatColor.GOLD + "Mail stats (storage: " + mailManager.getStorage().getName() + ")");
+            lines.add(ChatColor.YELLOW + "Cache: " + ChatColor.WHITE + stats.get("CachedMailboxes") + " mailboxes, "
+                    + stats.get("CacheHits") + " hits, " + stats.get("CacheMisses") + " misses, " + stats.get("CacheEvictions") + " evictions");
+            lines.add(ChatColor.YELLOW + "Mailbox sizes: " + ChatColor.WHITE + "empty " + stats.get("MailboxesEmpty")
+                    + ", 1-9 " + stats.get("MailboxesUnder10") + ", 10-99 " + stats.get("MailboxesUnder100")
+                    + ", 100-999 " + stats.get("MailboxesUnder1000") + ", 1000+ " + stats.get("Mailboxes1000Plus"));
+            lines.add(ChatColor.YELLOW + "Loads: " + ChatColor.WHITE + metrics.getLoads().summary());
+            lines.add(ChatColor.YELLOW + "Saves: " + ChatColor.WHITE + metrics.getSaves().summary() + "; "
+                    + stats.get("BytesWritten").longValue() / 1024 + " KiB written, " + stats.get("PendingWrites") + " pending");
+            lines.add(ChatColor.YELLOW + "Cleanup: " + ChatColor.WHITE + metrics.getCleanups().summary());
+            lines.add(ChatColor.YELLOW + "Book renders: " + ChatColor.WHITE + metrics.getBookRenders().summary());
+            lines.add(ChatColor.YELLOW + "Searches: " + ChatColor.WHITE + metrics.getSearches().summary() + "; "
+                    + stats.get("SearchFilters") + " mailbox filters");
+            lines.add(ChatColor.YELLOW + "Login prefetch: " + ChatColor.WHITE + metrics.getLoginPrefetches().summary()
+                    + "; " + metrics.getWarmJoins() + " warm, " + metrics.getColdJoins() + " cold joins");
+            lines.add(ChatColor.YELLOW + "Scheduler: " + ChatColor.WHITE + stats.get("MainQueueDepth") + " main / "
+                    + stats.get("AsyncQueueDepth") + " async queued, last tick " + String.format("%.2f", stats.get("LastTickMillis").doubleValue())
+                    + "ms of " + stats.get("TickBudgetMillis") + "ms, " + stats.get("OverBudgetTicks") + " ticks over budget");
+            lines.add(ChatColor.YELLOW + "API queue: " + ChatColor.WHITE + stats.get("ServiceQueueDepth") + "/"
+                    + plugin.getMailService().getQueueCapacity());
+            lines.add(ChatColor.YELLOW + "Scheduled: " + ChatColor.WHITE + stats.get("ScheduledPending") + " waiting in "
+                    + stats.get("ScheduledSlots") + " slots, " + stats.get("ScheduledReleased") + " delivered");
+            if (mailManager.getArchive() != null) {
+                lines.add(ChatColor.YELLOW + "Archive: " + ChatColor.WHITE + stats.get("Archived") + " archived, "
+                        + stats.get("ArchiveDropped") + " dropped over quota, " + stats.get("ArchiveSegmentReads") + " segment reads");
+            }
+            MailNetwork network = mailManager.getNetwork();
+            if (network != null) {
+                lines.add(ChatColor.YELLOW + "Network: " + ChatColor.WHITE + network.getNode() + " owns " + stats.get("NetworkOwned")
+                        + " mailboxes; " + stats.get("NetworkForwards") + " sends forwarded, " + stats.get("NetworkForwardsPending")
+                        + " unconfirmed, " + stats.get("NetworkForwardsTimedOut") + " timed out; " + stats.get("NetworkEvents") + " events received");
+            }
+            plugin.getWorkScheduler().runOnMain(() -> lines.forEach(sender::sendMessage));
+        });
+    }
 
-                if (mail.hasItems() && !mail.isClaimed()) {
-                    TextComponent itemsLabel = new TextComponent("Items: ");
-                    itemsLabel.setBold(true);
-                    pageComponentsList.add(itemsLabel);
-                    for (ItemStack item : mail.getItems()) {
-                        TextComponent itemName = new TextComponent(item.getAmount() + "x " + getItemName(item) + " ");
-                        itemName.setHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new Text(getItemName(item) + "\n" + item.getType().toString())));
-                        pageComponentsList.add(itemName);
-                    }
-                    pageComponentsList.add(new TextComponent("\n"));
-
-                    TextComponent claimButton = new TextComponent("[Claim Items]");
-                    claimButton.setColor(net.md_5.bungee.api.ChatColor.GREEN);
-                    claimButton.setBold(true);
-                    claimButton.setClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/mail claim " + mail.getMessageId().toString()));
-                    claimButton.setHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new Text("Click to claim items")));
-                    pageComponentsList.add(claimButton);
-                } else if (mail.hasItems() && mail.isClaimed()) {
-                    TextComponent claimedText = new TextComponent("[Items Claimed]");
-                    claimedText.setColor(net.md_5.bungee.api.ChatColor.GRAY);
-                    pageComponentsList.add(claimedText);
+    // Usage: /mail searchall <words...> [from:<player>] [after:<yyyy-mm-dd>] [before:<yyyy-mm-dd>], across every mailbox
+    private void handleSearchAll(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("mailplugin.admin")) {
+            sender.sendMessage(ChatColor.RED + "You don't have permission to do that.");
+            return;
+        }
+        MailSearchQuery query = MailSearchQuery.parse(Arrays.asList(args).subList(1, args.length));
+        if (query == null) {
+            sender.sendMessage(ChatColor.RED + "Usage: /mail searchall <words...> [from:<player>] [after:<yyyy-mm-dd>] [before:<yyyy-mm-dd>]");
+            return;
+        }
+        String heading = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+        int limit = plugin.getConfig().getInt("search.max-results", 60);
+        sender.sendMessage(ChatColor.YELLOW + "Searching all mailboxes...");
+        plugin.getWorkScheduler().runAsync(() -> {
+            List<MailMessage> results;
+            try {
+                results = mailManager.searchAll(query, limit);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not search all mailboxes", e);
+                plugin.getWorkScheduler().runOnMain(() -> sender.sendMessage(ChatColor.RED + "The search failed, see the console for details."));
+                return;
+            }
+            if (sender instanceof Player) {
+                plugin.getBookRenderer().openResults((Player) sender, heading, results, true);
+                return;
+            }
+            plugin.getWorkScheduler().runOnMain(() -> {
+                sender.sendMessage(ChatColor.GOLD + "" + results.size() + " result(s) for " + heading);
+                for (MailMessage mail : results) {
+                    String owner = plugin.getPlayerDirectory().getName(mail.getRecipientId());
+                    sender.sendMessage(ChatColor.YELLOW + (owner != null ? owner : mail.getRecipientId().toString()) + ChatColor.WHITE
+                            + " from " + mail.getSenderName() + ": " + mail.getSubject() + ChatColor.GRAY + " (" + mail.getMessageId() + ")");
                 }
+            });
+        });
+    }
+
+    // Usage: /mail migrate <from> <to>, where each side is one of STORAGE_MODES
+    private void handleMigrate(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("mailplugin.admin")) {
+            sender.sendMessage(ChatColor.RED + "You don't have permission to do that.");
+            return;
+        }
+        if (args.length < 3) {
+            sender.sendMessage(ChatColor.RED + "Usage: /mail migrate <from> <to>, with " + String.join("|", STORAGE_MODES));
+            return;
+        }
+        String from = args[1].toLowerCase();
+        String to = args[2].toLowerCase();
+        if (!STORAGE_MODES.contains(from) || !STORAGE_MODES.contains(to) || from.equals(to)) {
+            sender.sendMessage(ChatColor.RED + "Pick two different storage modes out of " + String.join(", ", STORAGE_MODES) + ".");
+            return;
+        }
+        MailStorage active = mailManager.getStorage();
+        if (to.equals(active.getName())) {
+            sender.sendMessage(ChatColor.RED + "Can't migrate into the storage that is currently in use.");
+            return;
+        }
+        if (MailStorageMigrator.isRunning()) {
+            sender.sendMessage(ChatColor.RED + "A migration is already running.");
+            return;
+        }
 
-                BaseComponent[] pageAsArray = pageComponentsList.toArray(new BaseComponent[0]);
-                bookMeta.spigot().addPage(pageAsArray);
+        mailManager.flushPendingWrites(); // Make sure the source is up to date before copying it
+        boolean fromActive = from.equals(active.getName());
+        MailStorage source = fromActive ? active : mailManager.createStorage(from);
+        MailStorage target = mailManager.createStorage(to);
+        if (!target.getName().equals(to)) { // createStorage fell back to YAML
+            sender.sendMessage(ChatColor.RED + "Could not open " + to + " storage, see the console for details.");
+            if (!fromActive) {
+                source.close();
             }
+            return;
+        }
+        int batchSize = plugin.getConfig().getInt("storage.migration-batch-size", 500);
+        if (!new MailStorageMigrator(plugin, source, target, fromActive, batchSize, sender).start()) {
+            // Another migration started since the check above
+            target.close();
+            if (!fromActive) {
+                source.close();
+            }
+            sender.sendMessage(ChatColor.RED + "A migration is already running.");
+            return;
         }
-        book.setItemMeta(bookMeta);
-        player.openBook(book);
+        sender.sendMessage(ChatColor.YELLOW + "Started migrating mail from " + from + " to " + to + ".");
     }
 
-    private String getItemName(ItemStack item) {
-        if (item.hasItemMeta() && item.getItemMeta().hasDisplayName()) {
-            return item.getItemMeta().getDisplayName();
+    // Usage: /mail schedule <player|online|all|perm:<node>> <delay|date> <subject> <message...>, /mail schedule status.
+    // The delay is like 90s, 30m or 1d12h; the date is yyyy-mm-dd or yyyy-mm-ddThh:mm in the server's time zone.
+    private void handleSchedule(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("mailplugin.admin")) {
+            sender.sendMessage(ChatColor.RED + "You don't have permission to do that.");
+            return;
+        }
+        if (args.length == 2 && args[1].equalsIgnoreCase("status")) {
+            DeliveryWheel wheel = mailManager.getDeliveryWheel();
+            long next = wheel.getNextRelease();
+            sender.sendMessage(ChatColor.YELLOW + "" + wheel.getPending() + " scheduled mail(s) waiting in " + wheel.getSlotCount()
+                    + " slot file(s), " + wheel.getReleased() + " delivered since startup"
+                    + (next > 0 ? "; the next not before " + DATE_FORMAT.format(Instant.ofEpochMilli(next)) : "") + ".");
+            return;
+        }
+        if (args.length < 5) {
+            sender.sendMessage(ChatColor.RED + "Usage: /mail schedule <player|online|all|perm:<node>> <delay|date> <subject> <message...>");
+            sender.sendMessage(ChatColor.RED + "       perm:<node> only reaches players online right now");
+            sender.sendMessage(ChatColor.RED + "       /mail schedule status");
+            return;
+        }
+        long deliverAt = parseDeliveryTime(args[2]);
+        if (deliverAt < 0) {
+            sender.sendMessage(ChatColor.RED + "Give the time as a delay such as 30m or 1d12h, or a date such as 2025-12-24 or 2025-12-24T18:00.");
+            return;
         }
-        String materialName = item.getType().toString().toLowerCase().replace('_', ' ');
-        return Arrays.stream(materialName.split(" "))
-                .map(word -> Character.toUpperCase(word.charAt(0)) + word.substring(1))
-                .collect(Collectors.joining(" "));
+        BroadcastManager broadcastManager = plugin.getBroadcastManager();
+        Set<UUID> recipients = broadcastManager.resolveAudience(args[1]);
+        if (recipients == null) {
+            UUID targetId = plugin.getPlayerDirectory().resolve(args[1]);
+            if (targetId == null) {
+                sender.sendMessage(ChatColor.RED + "Player " + args[1] + " has never joined this server.");
+                return;
+            }
+            recipients = Set.of(targetId);
+        }
+        Set<UUID> audience = recipients;
+        boolean everyone = args[1].equalsIgnoreCase("all");
+        String subject = args[3];
+        String messageBody = String.join(" ", Arrays.copyOfRange(args, 4, args.length));
+        String senderName = sender.getName();
+        plugin.getWorkScheduler().runAsync(() -> {
+            if (everyone) {
+                broadcastManager.addOfflinePlayers(audience);
+            }
+            String reply;
+            try {
+                int scheduled = mailManager.scheduleMailBatch(new ArrayList<>(audience), senderName, subject, messageBody, null, deliverAt);
+                reply = ChatColor.GREEN + "Scheduled " + scheduled + " mail(s) for " + DATE_FORMAT.format(Instant.ofEpochMilli(deliverAt)) + ".";
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not schedule mail", e);
+                reply = ChatColor.RED + "Could not schedule the mail, see the console for details.";
+            }
+            String message = reply;
+            plugin.getWorkScheduler().runOnMain(() -> sender.sendMessage(message));
+        });
     }
 
+    // Epoch millis, or -1 if the argument is neither a delay nor a date
+    private static long parseDeliveryTime(String arg) {
+        String lower = arg.toLowerCase();
+        Matcher matcher = DELAY_PART.matcher(lower);
+        long delayMillis = 0;
+        int matched = 0;
+        while (matcher.find() && matcher.start() == matched) {
+            long amount = Long.parseLong(matcher.group(1));
+            delayMillis += amount * DELAY_UNITS.get(matcher.group(2));
+            matched = matcher.end();
+        }
+        if (matched > 0 && matched == lower.length()) {
+            return System.currentTimeMillis() + delayMillis;
+        }
+        try {
+            if (lower.contains("t")) {
+                return LocalDateTime.parse(arg.toUpperCase()).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+            return LocalDate.parse(arg).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    // Usage: /mail broadcast <online|all|perm:<node>> <subject> <message...>, /mail broadcast status, /mail broadcast cancel <id>.
+    // perm:<node> is checked against online players only, since an offline player's permissions aren't known.
+    private void handleBroadcast(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("mailplugin.admin")) {
+            sender.sendMessage(ChatColor.RED + "You don't have permission to do that.");
+            return;
+        }
+        BroadcastManager broadcastManager = plugin.getBroadcastManager();
+        if (args.length == 2 && args[1].equalsIgnoreCase("status")) {
+            List<MailBroadcast> broadcasts = broadcastManager.getBroadcasts();
+            if (broadcasts.isEmpty()) {
+                sender.sendMessage(ChatColor.YELLOW + "No broadcasts are running.");
+            }
+            for (MailBroadcast broadcast : broadcasts) {
+                sender.sendMessage(ChatColor.YELLOW + broadcast.getShortId() + " '" + broadcast.getSubject() + "' to "
+                        + broadcast.getAudience() + ": " + broadcast.getCursor() + "/" + broadcast.getTotal()
+                        + ", " + broadcast.getFailed() + " failed");
+            }
+            return;
+        }
+        if (args.length == 3 && args[1].equalsIgnoreCase("cancel")) {
+            if (broadcastManager.cancel(args[2])) {
+                sender.sendMessage(ChatColor.GREEN + "Broadcast " + args[2] + " cancelled.");
+            } else {
+                sender.sendMessage(ChatColor.RED + "No running broadcast with id " + args[2] + ".");
+            }
+            return;
+        }
+        if (args.length < 4) {
+            sender.sendMessage(ChatColor.RED + "Usage: /mail broadcast <online|all|perm:<node>> <subject> <message...>");
+            sender.sendMessage(ChatColor.RED + "       perm:<node> only reaches players online right now");
+            sender.sendMessage(ChatColor.RED + "       /mail broadcast status | cancel <id>");
+            return;
+        }
+        Set<UUID> recipients = broadcastManager.resolveAudience(args[1]);
+        if (recipients == null) {
+            sender.sendMessage(ChatColor.RED + "Unknown audience " + args[1] + ". Use online, all or perm:<node> (online players only).");
+            return;
+        }
+        boolean everyone = args[1].equalsIgnoreCase("all");
+        String audience = args[1];
+        String subject = args[2];
+        String messageBody = String.join(" ", Arrays.copyOfRange(args, 3, args.length));
+        String senderName = sender.getName();
+        UUID reportTo = sender instanceof Player ? ((Player) sender).getUniqueId() : null;
+        // Listing every player who ever joined and writing out the recipient list are disk work, kept off the main thread
+        plugin.getWorkScheduler().runAsync(() -> {
+            if (everyone) {
+                broadcastManager.addOfflinePlayers(recipients);
+            }
+            String reply;
+            try {
+                MailBroadcast broadcast = broadcastManager.startBroadcast(senderName, subject, messageBody, null,
+                        audience, recipients, reportTo);
+                reply = ChatColor.GREEN + "Broadcast " + broadcast.getShortId() + " queued for " + broadcast.getTotal() + " recipients.";
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not start broadcast", e);
+                reply = ChatColor.RED + "Could not start the broadcast, see the console for details.";
+            }
+            String message = reply;
+            plugin.getWorkScheduler().runOnMain(() -> sender.sendMessage(message));
+        });
+    }
 
     @Override
     public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        // Runs on every keystroke, so apart from the result nothing here allocates or scans more than it returns
+        if (args.length == 2 && (args[0].equalsIgnoreCase("send") || args[0].equalsIgnoreCase("senditem"))) {
+            return plugin.getPlayerDirectory().complete(args[1], MAX_NAME_COMPLETIONS); // Offline players too
+        }
         List<String> completions = new ArrayList<>();
         if (args.length == 1) {
-            List<String> subCommands = Arrays.asList("open", "claim", "send", "senditem");
-            for (String sub : subCommands) {
-                if (sub.toLowerCase().startsWith(args[0].toLowerCase())) {
-                    completions.add(sub);
-                }
+            addMatches(completions, PLAYER_SUBCOMMANDS, args[0]);
+            if (sender.hasPermission("mailplugin.admin")) {
+                addMatches(completions, ADMIN_SUBCOMMANDS, args[0]);
             }
-        } else if (args.length == 2) {
-            if (args[0].equalsIgnoreCase("send") || args[0].equalsIgnoreCase("senditem")) {
-                for (Player p : Bukkit.getOnlinePlayers()) {
-                    if (p.getName().toLowerCase().startsWith(args[1].toLowerCase())) {
-                        completions.add(p.getName());
+        } else if (args.length == 2 && args[0].equalsIgnoreCase("claim")) {
+            if(sender instanceof Player) {
+                Player player = (Player) sender;
+                Mailbox mailbox = mailManager.getMailbox(player.getUniqueId());
+                for (MailMessage mail : mailbox.getClaimable()) {
+                    String handle = mailbox.getHandle(mail.getMessageId());
+                    if (handle != null && handle.startsWith(args[1])) {
+                        completions.add(handle);
                     }
                 }
-            } else if (args[0].equalsIgnoreCase("claim")) {
-                if(sender instanceof Player) {
-                    Player player = (Player) sender;
-                    mailManager.getMailForPlayer(player.getUniqueId()).stream()
-                            .filter(m -> !m.isClaimed() && m.hasItems())
-                            .forEach(m -> completions.add(m.getMessageId().toString()));
-                }
             }
         }
+        if (args.length == 2 && args[0].equalsIgnoreCase("schedule") && sender.hasPermission("mailplugin.admin")) {
+            addMatches(completions, SCHEDULE_TARGETS, args[1]);
+            completions.addAll(plugin.getPlayerDirectory().complete(args[1], MAX_NAME_COMPLETIONS));
+        }
+        if (args.length == 2 && args[0].equalsIgnoreCase("delete")) {
+            addMatches(completions, DELETE_FILTERS, args[1]);
+        }
+        if ((args.length == 2 || args.length == 3) && args[0].equalsIgnoreCase("migrate") && sender.hasPermission("mailplugin.admin")) {
+            addMatches(completions, STORAGE_MODES, args[args.length - 1]);
+        }
         return completions;
     }
+
+    private static void addMatches(List<String> completions, List<String> options, String prefix) {
+        for (String option : options) {
+            if (option.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                completions.add(option);
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,58 @@
+package io.mewb.mailplugin;
+
+import java.util.Base64;
+import java.util.UUID;
+
+// One message between servers sharing mail, see MailNetwork. Travels as a single line of text, so any transport
+// that can carry lines can carry it.
+public final class MailEvent {
+
+    public enum Type {
+        HELLO,     // A server started; the others announce what they own
+        OWNER,     // node now owns playerId's mailbox, as of stamp
+        RELEASED,  // node wrote out and let go of the ownership it claimed at stamp
+        DELIVER,   // Please add the encoded message in payload; sent to the owner
+        DELIVERED, // The owner added the message whose id is in payload
+        CHANGED    // node wrote playerId's mailbox; cached copies elsewhere are stale
+    }
+
+    private final Type type;
+    private final String node;
+    private final UUID playerId; // null for HELLO
+    private final long stamp;
+    private final byte[] payload;
+
+    public MailEvent(Type type, String node, UUID playerId, long stamp, byte[] payload) {
+        this.type = type;
+        this.node = node;
+        this.playerId = playerId;
+        this.stamp = stamp;
+        this.payload = payload == null ? new byte[0] : payload;
+    }
+
+    public Type getType() { return type; }
+    public String getNode() { return node; }
+    public UUID getPlayerId() { return playerId; }
+    public long getStamp() { return stamp; }
+    public byte[] getPayload() { return payload; }
+
+    // TYPE node playerId stamp payload, with "-" for no player and the payload in base64. Node names never contain spaces.
+    public String toLine() {
+        return type + " " + node + " " + (playerId == null ? "-" : playerId.toString()) + " " + stamp + " "
+                + Base64.getEncoder().encodeToString(payload);
+    }
+
+    // null if the line isn't an event, e.g. one written by a newer version
+    public static MailEvent fromLine(String line) {
+        String[] parts = line.split(" ", -1);
+        if (parts.length != 5) {
+            return null;
+        }
+        try {
+            return new MailEvent(Type.valueOf(parts[0]), parts[1], parts[2].equals("-") ? null : UUID.fromString(parts[2]),
+                    Long.parseLong(parts[3]), Base64.getDecoder().decode(parts[4]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -3,11 +3,11 @@ package io.mewb.mailplugin;
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
-
-import java.util.List;
-import java.util.stream.Collectors;
+import org.bukkit.event.player.PlayerQuitEvent;
 
 public class MailListener implements Listener {
 
@@ -19,28 +19,47 @@ public class MailListener implements Listener {
         this.mailManager = mailManager;
     }
 
+    // MONITOR so only logins that no other plugin refused cost a load
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            mailManager.prefetchForLogin(event.getUniqueId());
+        }
+    }
+
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
+        Player player = event.getPlayer();
+        mailManager.prefetchMailbox(player.getUniqueId());
+        plugin.getPlayerDirectory().record(player.getUniqueId(), player.getName());
+
         if (!plugin.getConfig().getBoolean("notifications.notify-on-login", true)) {
             return;
         }
 
-        Player player = event.getPlayer();
-        // Delay slightly to ensure other plugins/login processes complete
-        plugin.getServer().getScheduler().runTaskLater(plugin, () -> {
+        // Delay slightly to ensure other plugins/login processes complete. Counted off the main thread in case the
+        // mailbox wasn't prefetched (e.g. after a reload); normally it is cached and the count is a field read.
+        plugin.getServer().getScheduler().runTaskLaterAsynchronously(plugin, () -> {
             if (!player.isOnline()) return;
 
-            List<MailMessage> unreadMail = mailManager.getMailForPlayer(player.getUniqueId())
-                    .stream()
-                    .filter(mail -> !mail.isRead() && (!mail.hasItems() || !mail.isClaimed()))
-                    .collect(Collectors.toList());
+            int unreadCount = mailManager.countNotifiable(player.getUniqueId());
 
-            if (!unreadMail.isEmpty()) {
+            if (unreadCount > 0) {
                 String message = plugin.getConfig().getString("notifications.login-notification-message",
                         "§eYou have %count% unread mail message(s). Type §f/mail §eto check your inbox.");
-                message = message.replace("%count%", String.valueOf(unreadMail.size()));
-                player.sendMessage(ChatColor.translateAlternateColorCodes('&', message));
+                String notice = ChatColor.translateAlternateColorCodes('&', message.replace("%count%", String.valueOf(unreadCount)));
+                plugin.getWorkScheduler().runOnMain(() -> {
+                    if (player.isOnline()) {
+                        player.sendMessage(notice);
+                    }
+                });
             }
         }, 20L * 2); // 2 seconds delay
     }
+
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        mailManager.releaseMailbox(event.getPlayer().getUniqueId());
+        plugin.getBookRenderer().forget(event.getPlayer().getUniqueId());
+    }
 }
\ No newline at end of file
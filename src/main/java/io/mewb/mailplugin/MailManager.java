@@ -1,132 +1,529 @@
 package io.mewb.mailplugin;
 
 import org.bukkit.Bukkit;
-import org.bukkit.configuration.file.FileConfiguration;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.logging.Level;
-import java.util.stream.Collectors;
 
 public class MailManager {
 
+    private static final long LOGIN_GRACE_MILLIS = 60_000; // How long a pre-login prefetch waits for its join
+
     private final Mailplugin plugin;
-    private final Map<UUID, List<MailMessage>> playerMailboxes = new ConcurrentHashMap<>();
+    private final MailboxCache mailboxCache;
+    private final File sharedFolder;
     private final File mailDataFolder;
     private long defaultMailRetentionDays;
+    private final long offlineIdleMillis;
+    private final long quitIdleMillis;
+    private final MailWriteBehind writeBehind; // null when changes are written synchronously
+    private final MailStorage storage;
+    private final AttachmentStore attachments;
+    private final ExpiryIndex expiryIndex;
+    private final MailArchive archive; // null when archiving is off
+    private final long archiveAfterMillis;
+    private final int archiveKeepRecent;
+    private final int archiveMinBatch;
+    private final MailSearchFilters searchFilters;
+    private final DeliveryWheel deliveryWheel; // Per server, so each scheduled message is delivered by one of them
+    private final int scheduleBatchSize;
+    private final MailNetwork network; // null unless several servers share mail
+    private final Object[] loadLocks = new Object[64];
+    private final AtomicInteger quarantined = new AtomicInteger();
+    // While a migration out of this storage is pending: the mailboxes written since it last copied them, and once
+    // it has finished, the mode it copied into. Guarded by migrationLock.
+    private final Object migrationLock = new Object();
+    private Set<UUID> migrationWrites;
+    private String migrationTarget;
 
     public MailManager(Mailplugin plugin) {
         this.plugin = plugin;
-        this.mailDataFolder = new File(plugin.getDataFolder(), "maildata");
-        if (!mailDataFolder.exists()) {
-            if (!mailDataFolder.mkdirs()) {
-                plugin.getLogger().severe("Could not create maildata folder!");
+        this.network = createNetwork();
+        // Mail lives in the shared folder when networked; the expiry index stays per server
+        this.sharedFolder = network != null ? network.getSharedFolder() : plugin.getDataFolder();
+        this.mailDataFolder = new File(sharedFolder, "maildata");
+        this.defaultMailRetentionDays = plugin.getConfig().getLong("mail.default-retention-days", 30);
+        this.mailboxCache = new MailboxCache(plugin.getConfig().getInt("cache.max-mailboxes", 2000));
+        this.offlineIdleMillis = plugin.getConfig().getLong("cache.offline-idle-seconds", 30) * 1000L;
+        this.quitIdleMillis = plugin.getConfig().getLong("cache.evict-after-quit-seconds", 300) * 1000L;
+        for (int i = 0; i < loadLocks.length; i++) {
+            loadLocks[i] = new Object();
+        }
+        this.storage = createStorage(plugin.getConfig().getString("storage.mode", "yaml"));
+        this.attachments = new AttachmentStore(new File(sharedFolder, "attachments"), plugin.getLogger(),
+                network != null ? network.getNode() : null);
+        if (plugin.getConfig().getBoolean("archive.enabled", true)) {
+            this.archive = new MailArchive(new File(sharedFolder, "archive"), plugin.getLogger(),
+                    plugin.getConfig().getInt("archive.segment-size", 200), plugin.getConfig().getInt("archive.max-messages", 2000),
+                    plugin.getConfig().getLong("archive.max-kilobytes", 1024) * 1024);
+        } else {
+            this.archive = null;
+        }
+        this.archiveAfterMillis = plugin.getConfig().getLong("archive.after-days", 7) * 24 * 60 * 60 * 1000;
+        this.archiveKeepRecent = Math.max(0, plugin.getConfig().getInt("archive.keep-recent", 100));
+        this.archiveMinBatch = Math.max(1, plugin.getConfig().getInt("archive.min-batch", 25));
+        this.expiryIndex = new ExpiryIndex(plugin.getDataFolder());
+        loadExpiryIndex();
+        this.searchFilters = new MailSearchFilters(plugin.getDataFolder());
+        try {
+            searchFilters.load();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not load the mail search filters", e);
+        }
+        this.deliveryWheel = new DeliveryWheel(new File(plugin.getDataFolder(), "scheduled"), plugin.getLogger());
+        this.scheduleBatchSize = Math.max(1, plugin.getConfig().getInt("schedule.batch-size", 1000));
+        try {
+            deliveryWheel.load();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not load scheduled mail", e);
+        }
+        if (plugin.getConfig().getBoolean("storage.write-behind.enabled", true)) {
+            this.writeBehind = new MailWriteBehind(plugin, this);
+            writeBehind.start();
+        } else {
+            this.writeBehind = null;
+        }
+        if (network != null) {
+            try {
+                network.start();
+            } catch (IOException e) {
+                // Without a transport, other servers would go on writing mailboxes this one thinks it owns
+                throw new IllegalStateException("Could not join the mail network", e);
             }
         }
-        this.defaultMailRetentionDays = plugin.getConfig().getLong("mail.default-retention-days", 30);
     }
 
-    private File getPlayerMailFile(UUID playerId) {
-        return new File(mailDataFolder, playerId.toString() + ".yml");
+    private MailNetwork createNetwork() {
+        if (!plugin.getConfig().getBoolean("network.enabled", false)) {
+            return null;
+        }
+        String folder = plugin.getConfig().getString("network.shared-folder", "");
+        if (folder == null || folder.isBlank()) {
+            plugin.getLogger().severe("network.enabled is set but network.shared-folder is empty; mail stays local to this server.");
+            return null;
+        }
+        try {
+            return new MailNetwork(plugin, this, new File(folder));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not set up the mail network", e);
+        }
     }
 
-    public void loadMailForPlayer(UUID playerId) {
-        File playerFile = getPlayerMailFile(playerId);
-        if (!playerFile.exists()) {
-            playerMailboxes.put(playerId, new ArrayList<>());
-            return;
+    // Falls back to YAML if the requested backend can't be opened, so the plugin still starts
+    public MailStorage createStorage(String mode) {
+        if ("binary".equalsIgnoreCase(mode)) {
+            return new BinaryMailStorage(mailDataFolder, plugin.getLogger());
+        }
+        if ("journal".equalsIgnoreCase(mode) && network != null) {
+            // Compaction runs later on a local thread and deletes the journal, which would drop records another
+            // server appended in the meantime
+            plugin.getLogger().severe("storage.mode journal can't be used with network.enabled, falling back to YAML");
+            return new YamlMailStorage(mailDataFolder, plugin.getLogger());
         }
-        FileConfiguration mailConfig = YamlConfiguration.loadConfiguration(playerFile);
-        List<?> rawMailList = mailConfig.getList("mail");
-        List<MailMessage> mailList = new ArrayList<>();
-        if (rawMailList != null) {
-            for (Object obj : rawMailList) {
-                if (obj instanceof MailMessage) {
-                    mailList.add((MailMessage) obj);
-                } else if (obj instanceof Map) {
-                    try {
-                        mailList.add(MailMessage.deserialize((Map<String, Object>) obj));
-                    } catch (Exception e) {
-                        plugin.getLogger().log(Level.WARNING, "Could not deserialize mail message from map for player " + playerId, e);
+        if ("journal".equalsIgnoreCase(mode)) {
+            return new JournalMailStorage(mailDataFolder, plugin.getLogger(),
+                    plugin.getConfig().getBoolean("storage.journal.fsync", false),
+                    plugin.getConfig().getDouble("storage.journal.compact-ratio", 1.0),
+                    plugin.getConfig().getLong("storage.journal.compact-min-bytes", 64 * 1024));
+        }
+        if ("sql".equalsIgnoreCase(mode) && network != null) {
+            // SQLite's locking doesn't hold across hosts on a network drive, so servers would corrupt the database
+            plugin.getLogger().severe("storage.mode sql can't be used with network.enabled, falling back to YAML");
+        } else if ("sql".equalsIgnoreCase(mode)) {
+            try {
+                return new SqlMailStorage(new File(sharedFolder, plugin.getConfig().getString("storage.sql.file", "mail.db")),
+                        plugin.getLogger());
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not open SQL mail storage, falling back to YAML", e);
+            }
+        } else if (!"yaml".equalsIgnoreCase(mode)) {
+            plugin.getLogger().warning("Unknown storage mode '" + mode + "', using yaml.");
+        }
+        return new YamlMailStorage(mailDataFolder, plugin.getLogger());
+    }
+
+    private void loadExpiryIndex() {
+        boolean clean;
+        try {
+            clean = expiryIndex.load();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not load the mail expiry index", e);
+            clean = false;
+        }
+        if (!clean) {
+            // First start or the last run didn't shut down cleanly: one full pass over storage, off the main thread
+            plugin.getLogger().info("Rebuilding the mail expiry index...");
+            plugin.getWorkScheduler().runAsync(() -> {
+                try {
+                    Map<UUID, Long> expiries = storage.scanExpiries();
+                    expiries.forEach(expiryIndex::schedule);
+                    if (archive != null) {
+                        archive.scanExpiries().forEach(expiryIndex::schedule);
                     }
+                    expiryIndex.markComplete();
+                    plugin.getLogger().info("Rebuilt the mail expiry index for " + expiries.size() + " mailboxes.");
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Could not rebuild the mail expiry index", e);
                 }
+            });
+        }
+    }
+
+    public MailStorage getStorage() {
+        return storage;
+    }
+
+    public AttachmentStore getAttachments() {
+        return attachments;
+    }
+
+    private Mailbox readMailFile(UUID playerId) {
+        long started = System.nanoTime();
+        try {
+            List<MailMessage> mailList = storage.loadMailbox(playerId);
+            plugin.getMetrics().getLoads().record(System.nanoTime() - started);
+            attachments.resolve(mailList);
+            expiryIndex.schedule(playerId, mailList); // Cheap, and heals an index that missed something
+            plugin.getLogger().fine("Loaded " + mailList.size() + " mail messages for player " + playerId);
+            if (archive != null && mailList.size() >= archiveMinBatch) { // Maybe enough to archive; it is cached by then
+                plugin.getWorkScheduler().runAsync(() -> archiveMailbox(playerId));
+            }
+            return new Mailbox(playerId, mailList);
+        } catch (CorruptMailException e) {
+            // Set aside, otherwise the next save would replace whatever could still be recovered by hand
+            quarantined.incrementAndGet();
+            try {
+                storage.quarantine(playerId);
+                plugin.getLogger().log(Level.WARNING, "Quarantined unreadable mail for player " + playerId, e);
+            } catch (IOException moveFailed) {
+                plugin.getLogger().log(Level.SEVERE, "Could not quarantine unreadable mail for player " + playerId, moveFailed);
             }
+            return new Mailbox(playerId, List.of());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not load mail for player " + playerId, e);
+            return new Mailbox(playerId, List.of());
         }
-        playerMailboxes.put(playerId, mailList.stream()
-                                              .filter(m -> m != null)
-                                              .collect(Collectors.toList()));
-        plugin.getLogger().info("Loaded " + mailList.size() + " mail messages for player " + playerId);
     }
 
-    public void saveMailForPlayer(UUID playerId) {
-        List<MailMessage> mailList = playerMailboxes.get(playerId);
-        if (mailList == null) { // No mail or player not loaded
-            File playerFile = getPlayerMailFile(playerId);
-            if (playerFile.exists()) {
-                playerFile.delete();
-                plugin.getLogger().info("Removed mail file for player " + playerId + " as they have no mail.");
+    public Mailbox loadMailForPlayer(UUID playerId) {
+        return loadMailForPlayer(playerId, System.currentTimeMillis() + offlineIdleMillis);
+    }
+
+    private Mailbox loadMailForPlayer(UUID playerId, long evictAfter) {
+        // Held across the read so deliverDirect can't append to storage between the read and the cache insert
+        synchronized (loadLockFor(playerId)) {
+            Mailbox cached = mailboxCache.peek(playerId);
+            if (cached != null) { // Another thread loaded it while we waited
+                mailboxCache.extend(playerId, evictAfter);
+                return cached;
             }
+            return mailboxCache.putIfAbsent(playerId, readMailFile(playerId), evictAfter);
+        }
+    }
+
+    private Object loadLockFor(UUID playerId) {
+        return loadLocks[(playerId.hashCode() & 0x7fffffff) % loadLocks.length];
+    }
+
+    // Returns the live cached mailbox, loading it on a miss. Offline mailboxes only stay cached briefly.
+    public Mailbox getMailbox(UUID playerId) {
+        Mailbox mailbox = mailboxCache.get(playerId);
+        if (mailbox == null) {
+            return loadMailForPlayer(playerId);
+        }
+        if (!mailboxCache.isPinned(playerId)) {
+            mailboxCache.extend(playerId, System.currentTimeMillis() + offlineIdleMillis);
+        }
+        return mailbox;
+    }
+
+    // For changes: holds the live mailbox against eviction until release(), so the change and its recordChange
+    // can't land on a copy the cache has already dropped. Loads it again if it was evicted in between.
+    private Mailbox acquireMailbox(UUID playerId) {
+        while (true) {
+            Mailbox mailbox = getMailbox(playerId);
+            if (mailbox.acquire()) {
+                return mailbox;
+            }
+        }
+    }
+
+    // Called on join: keeps the mailbox resident while online and warms it off the main thread
+    public void prefetchMailbox(UUID playerId) {
+        mailboxCache.pin(playerId);
+        if (network != null && !network.isOwner(playerId)) { // No pre-login claim, e.g. after a reload
+            plugin.getMetrics().countJoin(false);
+            plugin.getWorkScheduler().runAsync(() -> {
+                network.claim(playerId);
+                loadMailForPlayer(playerId);
+            });
             return;
         }
-        
-        if (mailList.isEmpty()) { // Mail list exists but is empty
-             File playerFile = getPlayerMailFile(playerId);
-             if (playerFile.exists()) {
-                 playerFile.delete();
-                 plugin.getLogger().info("Player " + playerId + " has no mail. Deleted their mail file.");
-             }
-             return;
+        boolean warm = mailboxCache.contains(playerId);
+        plugin.getMetrics().countJoin(warm);
+        if (!warm) {
+            plugin.getWorkScheduler().runAsync(() -> loadMailForPlayer(playerId));
         }
+    }
 
-        File playerFile = getPlayerMailFile(playerId);
-        FileConfiguration mailConfig = YamlConfiguration.loadConfiguration(playerFile); // Load existing to not overwrite other data if any
+    // Runs on the pre-login thread, one per connecting player, so a login storm loads mailboxes in parallel and
+    // off the main thread. Not pinned yet: the login can still be refused, in which case the mailbox ages out.
+    public void prefetchForLogin(UUID playerId) {
+        long started = System.nanoTime();
+        if (network != null) {
+            network.claim(playerId); // Waits for the server the player came from to write the mailbox out
+        }
+        loadMailForPlayer(playerId, System.currentTimeMillis() + Math.max(offlineIdleMillis, LOGIN_GRACE_MILLIS));
+        plugin.getMetrics().getLoginPrefetches().record(System.nanoTime() - started);
+    }
 
-        mailConfig.set("mail", mailList); // List of MailMessage objects
+    public void releaseMailbox(UUID playerId) {
+        mailboxCache.unpin(playerId, System.currentTimeMillis() + quitIdleMillis);
+        if (network != null) {
+            plugin.getWorkScheduler().runAsync(() -> {
+                flushMailbox(playerId); // The next server to load it must see everything
+                network.release(playerId);
+            });
+        }
+    }
+
+    public void evictIdleMailboxes() {
+        int evicted = mailboxCache.evict(System.currentTimeMillis(),
+                playerId -> writeBehind != null && writeBehind.isDirty(playerId));
+        if (evicted > 0) {
+            plugin.getLogger().fine("Evicted " + evicted + " idle mailboxes from the cache.");
+        }
+    }
 
+    // Answered from memory when the mailbox is cached, otherwise by the backend without caching it
+    public int countUnread(UUID playerId) {
+        Mailbox mailbox = mailboxCache.peek(playerId);
+        if (mailbox != null) {
+            return mailbox.getUnreadCount();
+        }
+        try {
+            return storage.countUnread(playerId);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not count unread mail for player " + playerId, e);
+            return 0;
+        }
+    }
+
+    public MailboxCache getMailboxCache() {
+        return mailboxCache;
+    }
+
+    // Full rewrite of the cached mailbox, regardless of backend
+    public void saveMailForPlayer(UUID playerId) {
+        if (writeBehind != null && !storage.isIncremental()) {
+            writeBehind.markDirty(playerId, List.of());
+            return;
+        }
         try {
-            mailConfig.save(playerFile);
+            saveSnapshot(playerId);
         } catch (IOException e) {
             plugin.getLogger().log(Level.SEVERE, "Could not save mail for player " + playerId, e);
         }
     }
 
-    public void loadAllMail() {
-        if (!mailDataFolder.exists() || !mailDataFolder.isDirectory()) {
-            plugin.getLogger().info("Mail data folder not found. No mail loaded.");
+    // Records a single change. Incremental backends get just the change, the others a full mailbox rewrite.
+    private void recordChange(UUID playerId, MailChange change) {
+        recordChanges(playerId, List.of(change));
+    }
+
+    // One commit for the whole batch: one write-behind entry, one transaction or journal append, or one rewrite
+    private void recordChanges(UUID playerId, List<MailChange> changes) {
+        if (changes.isEmpty()) {
             return;
         }
-        File[] playerFiles = mailDataFolder.listFiles((dir, name) -> name.endsWith(".yml"));
-        if (playerFiles == null || playerFiles.length == 0) {
-            plugin.getLogger().info("No player mail files found in maildata folder.");
+        if (writeBehind != null) {
+            writeBehind.markDirty(playerId, storage.isIncremental() ? changes : List.of());
             return;
         }
-        int count = 0;
-        for (File playerFile : playerFiles) {
-            String fileName = playerFile.getName();
-            try {
-                UUID playerId = UUID.fromString(fileName.substring(0, fileName.length() - 4)); // Remove .yml
-                loadMailForPlayer(playerId);
-                count++;
-            } catch (IllegalArgumentException e) {
-                plugin.getLogger().warning("Found invalid mail file name: " + fileName);
+        try {
+            writeMailForPlayer(playerId, changes);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not save mail for player " + playerId, e);
+        }
+    }
+
+    // Does the actual write. Called directly when write-behind is off, otherwise from the flusher.
+    void writeMailForPlayer(UUID playerId, List<MailChange> changes) throws IOException {
+        long started = System.nanoTime();
+        attachments.saveRefsIfDirty();
+        if (storage.isIncremental()) {
+            storage.applyChanges(playerId, changes);
+            forgetWrittenRemovals(playerId, changes);
+        } else {
+            saveSnapshot(playerId);
+        }
+        plugin.getMetrics().getSaves().record(System.nanoTime() - started);
+        noteWritten(playerId);
+        if (network != null) {
+            network.mailboxWritten(playerId);
+        }
+    }
+
+    public int getPendingWriteCount() {
+        return writeBehind == null ? 0 : writeBehind.getPendingCount();
+    }
+
+    private void saveSnapshot(UUID playerId) throws IOException {
+        Mailbox mailbox = mailboxCache.peek(playerId);
+        if (mailbox == null) { // Evicted or never loaded, the stored copy is already current
+            return;
+        }
+        attachments.saveRefsIfDirty();
+        Set<UUID> removed = mailbox.getRemoved(); // Taken first, so none of these are in the snapshot
+        storage.saveMailbox(playerId, mailbox.snapshot()); // A copy, so the main thread can keep mutating
+        mailbox.forgetRemoved(removed);
+    }
+
+    private void forgetWrittenRemovals(UUID playerId, List<MailChange> changes) {
+        Mailbox mailbox = mailboxCache.peek(playerId);
+        if (mailbox == null) {
+            return;
+        }
+        List<UUID> removed = new ArrayList<>();
+        for (MailChange change : changes) {
+            if (change.getType() == MailChange.Type.REMOVE) {
+                removed.add(change.getMessageId());
+            }
+        }
+        mailbox.forgetRemoved(removed);
+    }
+
+    // Writes out one mailbox's pending changes now
+    void flushMailbox(UUID playerId) {
+        if (writeBehind != null) {
+            writeBehind.flush(playerId);
+        }
+    }
+
+    public void flushPendingWrites() {
+        if (writeBehind != null) {
+            writeBehind.flushAll();
+        }
+    }
+
+    // Starts noting which mailboxes are written, for a migration about to copy this storage
+    void trackMigrationWrites() {
+        synchronized (migrationLock) {
+            migrationWrites = new HashSet<>();
+            migrationTarget = null;
+        }
+    }
+
+    // The mailboxes written since tracking started or since the last call
+    Set<UUID> takeMigrationWrites() {
+        synchronized (migrationLock) {
+            if (migrationWrites == null) {
+                return Set.of();
+            }
+            Set<UUID> written = migrationWrites;
+            migrationWrites = new HashSet<>();
+            return written;
+        }
+    }
+
+    // Keeps noting writes after a finished migration, and copies those mailboxes into target at shutdown, so
+    // switching storage.mode to it and restarting loses nothing. null stops tracking.
+    void keepMigrationInSync(String target) {
+        synchronized (migrationLock) {
+            migrationTarget = target;
+            if (target == null) {
+                migrationWrites = null;
+            }
+        }
+    }
+
+    private void noteWritten(UUID playerId) {
+        synchronized (migrationLock) {
+            if (migrationWrites != null) {
+                migrationWrites.add(playerId);
+            }
+        }
+    }
+
+    // Runs at shutdown, once everything is written: the last catch-up pass of a finished migration
+    private void syncMigrationTarget() {
+        String target;
+        Set<UUID> written;
+        synchronized (migrationLock) {
+            target = migrationTarget;
+            written = migrationWrites;
+            migrationTarget = null;
+            migrationWrites = null;
+        }
+        if (target == null || written.isEmpty()) {
+            return;
+        }
+        MailStorage copy = createStorage(target);
+        try {
+            if (!copy.getName().equals(target)) { // createStorage fell back to YAML
+                plugin.getLogger().severe("Could not open " + target + " storage to copy " + written.size()
+                        + " changed mailbox(es) into it; migrate again before switching to it.");
+                return;
             }
+            int batchSize = plugin.getConfig().getInt("storage.migration-batch-size", 500);
+            int[] copied = new MailStorageMigrator(plugin, storage, copy, true, batchSize, null).copy(written, true);
+            plugin.getLogger().info("Copied " + copied[0] + " mailbox(es) changed since the migration into " + target
+                    + " storage, " + copied[2] + " failed.");
+        } finally {
+            copy.close();
         }
-        plugin.getLogger().info("Finished loading mail for " + count + " players.");
+    }
+
+    // Drops attachment references whose claims and removals are now on disk, deleting blobs nobody uses
+    public void collectAttachmentGarbage() {
+        int deleted = attachments.collectGarbage(() -> {
+            flushPendingWrites();
+            return writeBehind == null || writeBehind.getPendingCount() == 0;
+        });
+        if (deleted > 0) {
+            plugin.getLogger().info("Deleted " + deleted + " unused mail attachment(s).");
+        }
+    }
+
+    public void loadAllMail() {
+        new MailPreloader(plugin, this).run();
+    }
+
+    // Loads a mailbox to keep until the cache needs the room. Returns its message count, or -1 if it was already cached.
+    int preloadMailbox(UUID playerId) {
+        if (mailboxCache.contains(playerId)) {
+            return -1;
+        }
+        return loadMailForPlayer(playerId, Long.MAX_VALUE).size();
+    }
+
+    public int getQuarantinedCount() {
+        return quarantined.get();
     }
 
     public void saveAllMail() {
+        if (storage.isIncremental()) { // Every change is already recorded, there is no full rewrite to do
+            flushPendingWrites();
+            return;
+        }
         plugin.getLogger().info("Saving all player mail data...");
         int count = 0;
-        for (UUID playerId : playerMailboxes.keySet()) {
-            if(playerMailboxes.containsKey(playerId)){
+        for (UUID playerId : mailboxCache.keys()) {
+            if(mailboxCache.contains(playerId)){
                  saveMailForPlayer(playerId);
                  count++;
             }
@@ -134,103 +531,735 @@ public class MailManager {
         plugin.getLogger().info("Finished saving mail for " + count + " players.");
     }
 
-    public void sendMail(UUID recipientId, String senderName, String subject, String body, List<ItemStack> items) {
-        if (!playerMailboxes.containsKey(recipientId)) {
-            loadMailForPlayer(recipientId);
+    public void shutdown() {
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+        }
+        if (network != null) {
+            network.shutdown(); // Lets go of every mailbox, now that all of them are written
+        }
+        collectAttachmentGarbage();
+        try {
+            expiryIndex.save();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not save the mail expiry index, it will be rebuilt on next start", e);
         }
+        try {
+            searchFilters.save();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not save the mail search filters, they will be rebuilt by searches", e);
+        }
+        try {
+            deliveryWheel.close();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not save scheduled mail progress, it will be recounted on next start", e);
+        }
+        syncMigrationTarget();
+        storage.close();
+        plugin.getLogger().info("Mailbox cache: " + mailboxCache.getHits() + " hits, " + mailboxCache.getMisses()
+                + " misses, " + mailboxCache.getEvictions() + " evictions.");
+        MailMetrics metrics = plugin.getMetrics();
+        if (metrics.getLoginPrefetches().getCount() > 0) {
+            plugin.getLogger().info("Login prefetch: " + metrics.getLoginPrefetches().summary() + "; " + metrics.getWarmJoins() + " of "
+                    + (metrics.getWarmJoins() + metrics.getColdJoins()) + " joins found their mailbox loaded.");
+        }
+    }
 
+    public MailMessage sendMail(UUID recipientId, String senderName, String subject, String body, List<ItemStack> items) {
         MailMessage mail = new MailMessage(recipientId, senderName, subject, body, items, defaultMailRetentionDays);
-        playerMailboxes.computeIfAbsent(recipientId, k -> new ArrayList<>()).add(mail);
-        saveMailForPlayer(recipientId); // Save after adding
+        if (mail.hasItems()) {
+            // Identical payloads, such as the same reward sent to many players, share one stored copy
+            try {
+                String attachmentId = attachments.store(mail.getItems(), 1);
+                mail.setAttachment(attachmentId, attachments.get(attachmentId));
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not store mail attachment, keeping the items inline", e);
+            }
+        }
+        deliver(mail);
+        return mail;
+    }
 
-        Player recipientPlayer = Bukkit.getPlayer(recipientId);
-        if (recipientPlayer != null && recipientPlayer.isOnline()) {
-            if (plugin.getConfig().getBoolean("notifications.notify-on-receive", true)) {
-                recipientPlayer.sendMessage("§aYou have new mail! Type /mail to check.");
+    // One message per recipient sharing one stored attachment. Mailboxes that aren't loaded are appended to in
+    // storage instead of being loaded. Returns how many recipients got the message.
+    public int sendMailBatch(List<UUID> recipientIds, String senderName, String subject, String body, List<ItemStack> items) {
+        String attachmentId = null;
+        if (items != null && !items.isEmpty()) {
+            try {
+                attachmentId = attachments.store(items, recipientIds.size());
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not store mail attachment, keeping the items inline", e);
             }
         }
+        int delivered = 0;
+        for (UUID recipientId : recipientIds) {
+            MailMessage mail = new MailMessage(recipientId, senderName, subject, body, items, defaultMailRetentionDays);
+            if (attachmentId != null) {
+                mail.setAttachment(attachmentId, attachments.get(attachmentId));
+            }
+            try {
+                if (!deliverDirect(mail)) {
+                    deliver(mail);
+                }
+                delivered++;
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not deliver mail to player " + recipientId, e);
+                if (attachmentId != null) {
+                    attachments.release(attachmentId);
+                }
+            }
+        }
+        return delivered;
     }
 
-    public List<MailMessage> getMailForPlayer(UUID playerId) {
-        if (!playerMailboxes.containsKey(playerId)) {
-            loadMailForPlayer(playerId);
+    // Saves a message to be delivered at deliverAt (epoch millis), which becomes its sent time; its expiry counts from
+    // then. A time already past delivers within a second. Survives restarts.
+    public MailMessage scheduleMail(UUID recipientId, String senderName, String subject, String body, List<ItemStack> items,
+                                    long deliverAt) throws IOException {
+        String attachmentId = storeScheduledItems(items, 1);
+        MailMessage mail = newScheduledMail(recipientId, senderName, subject, body, items, attachmentId, deliverAt);
+        deliveryWheel.add(List.of(mail));
+        return mail;
+    }
+
+    // One message per recipient sharing one stored attachment, all delivered at deliverAt. Returns how many were saved.
+    public int scheduleMailBatch(List<UUID> recipientIds, String senderName, String subject, String body, List<ItemStack> items,
+                                 long deliverAt) throws IOException {
+        String attachmentId = storeScheduledItems(items, recipientIds.size());
+        List<MailMessage> mailList = new ArrayList<>(recipientIds.size());
+        for (UUID recipientId : recipientIds) {
+            mailList.add(newScheduledMail(recipientId, senderName, subject, body, items, attachmentId, deliverAt));
         }
-        return playerMailboxes.getOrDefault(playerId, new ArrayList<>())
-                .stream()
-                .filter(mail -> !mail.isExpired())
-                .collect(Collectors.toList());
+        deliveryWheel.add(mailList);
+        return mailList.size();
     }
-    
-    public MailMessage getMailById(UUID playerId, UUID mailId) {
 
-        if (!playerMailboxes.containsKey(playerId)) {
-            loadMailForPlayer(playerId);
+    // The attachment id, or null to keep the items inline. The references are saved before the scheduled mail
+    // using them; should scheduling then fail they stay taken, which only keeps the items stored.
+    private String storeScheduledItems(List<ItemStack> items, int references) throws IOException {
+        if (items == null || items.isEmpty()) {
+            return null;
+        }
+        String attachmentId;
+        try {
+            attachmentId = attachments.store(items, references);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not store mail attachment, keeping the items inline", e);
+            return null;
         }
-        List<MailMessage> mailList = getMailForPlayer(playerId); // This already filters expired
-        for (MailMessage mail : mailList) {
-            if (mail.getMessageId().equals(mailId)) {
-                return mail;
+        attachments.saveRefsIfDirty();
+        return attachmentId;
+    }
+
+    private MailMessage newScheduledMail(UUID recipientId, String senderName, String subject, String body, List<ItemStack> items,
+                                         String attachmentId, long deliverAt) {
+        long expiry = defaultMailRetentionDays > 0 ? deliverAt + defaultMailRetentionDays * 24 * 60 * 60 * 1000L : 0;
+        List<ItemStack> inline = attachmentId == null && items != null ? new ArrayList<>(items) : new ArrayList<>();
+        MailMessage mail = new MailMessage(UUID.randomUUID(), recipientId, senderName, subject == null ? "New Mail" : subject,
+                body == null ? "" : body, inline, deliverAt, expiry, false, false);
+        if (attachmentId != null) {
+            mail.setAttachment(attachmentId, List.of());
+        }
+        return mail;
+    }
+
+    // Delivers scheduled mail that has come due, at most schedule.batch-size messages per call. Mailboxes that
+    // aren't loaded are appended to in storage. Runs on a worker thread every second.
+    public void releaseScheduledMail() {
+        try {
+            deliveryWheel.release(System.currentTimeMillis(), scheduleBatchSize, mail -> {
+                if (!deliverDirect(mail)) {
+                    deliver(mail);
+                }
+            });
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not deliver scheduled mail, retrying shortly", e);
+        }
+    }
+
+    public DeliveryWheel getDeliveryWheel() {
+        return deliveryWheel;
+    }
+
+    // Adds an already built message. Delivering the same message id twice is a no-op.
+    public void deliver(MailMessage mail) {
+        if (network != null) {
+            try {
+                if (network.route(mail)) {
+                    return;
+                }
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not pass mail for player " + mail.getRecipientId()
+                        + " to the mail network, delivering it here", e);
+            }
+        }
+        deliverLocal(mail);
+    }
+
+    // deliver, for a mailbox this server owns or when not networked
+    void deliverLocal(MailMessage mail) {
+        UUID recipientId = mail.getRecipientId();
+        attachments.resolve(mail);
+        Mailbox mailbox = acquireMailbox(recipientId);
+        try {
+            if (!mailbox.add(mail)) {
+                return;
+            }
+            searchFilters.add(recipientId, mail);
+            expiryIndex.schedule(recipientId, mail.getExpiryTimestamp());
+            recordChange(recipientId, MailChange.send(mail)); // Save after adding
+        } finally {
+            mailbox.release();
+        }
+
+        if (plugin.getConfig().getBoolean("notifications.notify-on-receive", true)) {
+            // deliver runs on API, broadcast and command threads alike; players are only looked up on the main thread
+            plugin.getWorkScheduler().runOnMain(() -> {
+                Player recipientPlayer = Bukkit.getPlayer(recipientId);
+                if (recipientPlayer != null && recipientPlayer.isOnline()) {
+                    recipientPlayer.sendMessage("§aYou have new mail! Type /mail to check.");
+                }
+            });
+        }
+    }
+
+    // Writes straight to storage without pulling the mailbox into the cache, for bulk delivery off the main thread.
+    // Returns false without doing anything if the mailbox is cached; the caller should use deliver() instead.
+    public boolean deliverDirect(MailMessage mail) throws IOException {
+        UUID recipientId = mail.getRecipientId();
+        if (network != null && !network.isOwner(recipientId)) {
+            deliver(mail); // Forwarded, or appended under the network's lock
+            return true;
+        }
+        synchronized (loadLockFor(recipientId)) {
+            if (mailboxCache.contains(recipientId)) {
+                return false;
+            }
+            attachments.saveRefsIfDirty();
+            searchFilters.add(recipientId, mail);
+            storage.appendMessage(mail);
+            noteWritten(recipientId);
+            expiryIndex.schedule(recipientId, mail.getExpiryTimestamp());
+            return true;
+        }
+    }
+
+    // Appends straight to shared storage, for mailboxes no server owns. A copy cached here is dropped first, so the
+    // next read here sees the message too.
+    void deliverShared(MailMessage mail) throws IOException {
+        UUID recipientId = mail.getRecipientId();
+        synchronized (loadLockFor(recipientId)) {
+            if (!dropCopy(recipientId)) {
+                throw new IOException("Mailbox " + recipientId + " is in use");
+            }
+            attachments.saveRefsIfDirty();
+            searchFilters.add(recipientId, mail);
+            network.withSharedLock(recipientId, () -> {
+                storage.appendMessage(mail);
+                return null;
+            });
+            noteWritten(recipientId);
+            expiryIndex.schedule(recipientId, mail.getExpiryTimestamp());
+        }
+        network.mailboxWritten(recipientId);
+    }
+
+    // Drops the cached copy of a mailbox, writing out anything pending for it first, so the next access reads
+    // storage. False if the mailbox is being changed right now; try again later.
+    boolean dropCopy(UUID playerId) {
+        flushMailbox(playerId);
+        return mailboxCache.invalidate(playerId, id -> writeBehind != null && writeBehind.isDirty(id));
+    }
+
+    // Another server claimed this mailbox: write out what is here and stop caching it
+    void handOff(UUID playerId) {
+        mailboxCache.unpin(playerId, 0);
+        for (int attempt = 0; attempt < 100 && !dropCopy(playerId); attempt++) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Someone else wrote to a mailbox this server owns, e.g. the previous owner writing out late after a handoff:
+    // adds whatever is in storage but not in memory, then writes the mailbox. Storage is read before anything pending
+    // here goes out, as a full rewrite would overwrite what was written there; mail removed here isn't brought back.
+    void mergeFromStorage(UUID playerId) {
+        Mailbox mailbox = mailboxCache.peek(playerId);
+        if (mailbox == null || !mailbox.acquire()) {
+            return; // Not loaded; the next load reads storage anyway
+        }
+        try {
+            Set<UUID> removed = mailbox.getRemoved(); // Before the read; a write finishing during it forgets what it wrote
+            List<MailMessage> stored = storage.loadMailbox(playerId);
+            attachments.resolve(stored);
+            List<MailChange> changes = new ArrayList<>();
+            Set<UUID> storedIds = new HashSet<>();
+            for (MailMessage mail : stored) {
+                storedIds.add(mail.getMessageId());
+                if (!removed.contains(mail.getMessageId()) && !mailbox.wasRemoved(mail.getMessageId()) && mailbox.add(mail)) {
+                    searchFilters.add(playerId, mail);
+                    expiryIndex.schedule(playerId, mail.getExpiryTimestamp());
+                    changes.add(MailChange.send(mail));
+                }
+            }
+            if (!storage.isIncremental()) { // Already in storage otherwise; a full rewrite has to include them
+                recordChanges(playerId, changes);
             }
+            mailbox.retainRemoved(storedIds);
+            flushMailbox(playerId);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not merge mail written elsewhere for player " + playerId, e);
+        } finally {
+            mailbox.release();
         }
-        return null;
     }
 
+    public MailNetwork getNetwork() {
+        return network;
+    }
+
+    public MailArchive getArchive() {
+        return archive;
+    }
+
+    // Archives every cached mailbox's old finished mail. Mailboxes that aren't cached are done when next loaded.
+    public void archiveOldMail() {
+        int archived = 0;
+        for (UUID playerId : mailboxCache.keys()) {
+            archived += archiveMailbox(playerId);
+        }
+        if (archived > 0) {
+            plugin.getLogger().info("Archived " + archived + " old mail messages.");
+        }
+    }
+
+    // Moves finished mail older than archive.after-days, or behind the newest archive.keep-recent messages, out of
+    // the mailbox into the archive, once there is at least archive.min-batch of it. The archive is written before
+    // the removal is, and the removal goes out at once, so a crash in between at worst leaves a message in both.
+    // Returns how many messages were archived.
+    int archiveMailbox(UUID playerId) {
+        if (archive == null || (network != null && !network.isOwner(playerId))) {
+            return 0;
+        }
+        Mailbox mailbox = mailboxCache.peek(playerId);
+        if (mailbox == null || !mailbox.acquire()) {
+            return 0;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            List<MailMessage> all = mailbox.snapshot(); // Oldest first
+            Set<UUID> chosen = new HashSet<>();
+            for (int i = 0; i < all.size(); i++) {
+                MailMessage mail = all.get(i);
+                boolean old = i < all.size() - archiveKeepRecent || mail.getSentTimestamp() < now - archiveAfterMillis;
+                if (old && MailArchive.isFinished(mail) && !mail.isExpired(now)) {
+                    chosen.add(mail.getMessageId());
+                }
+            }
+            if (chosen.size() < archiveMinBatch) {
+                return 0;
+            }
+            // Finished mail stays finished, so everything chosen is still archivable unless it was deleted meanwhile
+            List<MailMessage> moved = mailbox.removeAll(mail -> chosen.contains(mail.getMessageId()));
+            try {
+                archive.append(playerId, moved);
+            } catch (IOException e) {
+                moved.forEach(mailbox::add);
+                plugin.getLogger().log(Level.WARNING, "Could not archive mail for player " + playerId, e);
+                return 0;
+            }
+            List<MailChange> changes = new ArrayList<>(moved.size());
+            for (MailMessage mail : moved) {
+                changes.add(MailChange.remove(mail.getMessageId()));
+            }
+            recordChanges(playerId, changes);
+            flushMailbox(playerId);
+            return moved.size();
+        } finally {
+            mailbox.release();
+        }
+    }
+
+    public MailSearchFilters getSearchFilters() {
+        return searchFilters;
+    }
+
+    // The player's unexpired mail matching query, archived mail included, newest first and at most limit. Goes
+    // through the mailbox's and the archive's search indexes, building them if this is the first search.
+    public List<MailMessage> search(UUID playerId, MailSearchQuery query, int limit) {
+        long started = System.nanoTime();
+        List<MailMessage> found = new ArrayList<>(getMailbox(playerId).search(query));
+        if (archive != null) {
+            try {
+                found.addAll(archive.search(playerId, query));
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not search archived mail for player " + playerId, e);
+            }
+        }
+        List<MailMessage> results = newest(found, limit);
+        plugin.getMetrics().getSearches().record(System.nanoTime() - started);
+        return results;
+    }
+
+    // Unexpired mail matching query across every mailbox, newest first and at most limit. Only mailboxes whose
+    // search filter says they may match are read, one at a time and without caching them; reading one whole also
+    // rebuilds its filter. Runs on a worker thread.
+    public List<MailMessage> searchAll(MailSearchQuery query, int limit) throws IOException {
+        long started = System.nanoTime();
+        Set<UUID> playerIds = new HashSet<>(storage.listMailboxes());
+        playerIds.addAll(mailboxCache.keys());
+        if (archive != null) {
+            playerIds.addAll(archive.listPlayers());
+        }
+        // The newest limit matches so far, oldest on top, so a broad query never holds more than limit results
+        long now = System.currentTimeMillis();
+        PriorityQueue<MailMessage> found = new PriorityQueue<>(Comparator.comparingLong(MailMessage::getSentTimestamp));
+        Set<UUID> foundIds = new HashSet<>(); // A crash while archiving can leave a message in both places
+        for (UUID playerId : playerIds) {
+            if (!searchFilters.mayMatch(playerId, query)) {
+                continue;
+            }
+            searchFilters.beginRebuild(playerId);
+            List<MailMessage> all = new ArrayList<>();
+            try {
+                // Under the load lock the mailbox is either cached, and current, or only in storage
+                synchronized (loadLockFor(playerId)) {
+                    Mailbox mailbox = mailboxCache.peek(playerId);
+                    all.addAll(mailbox != null ? mailbox.snapshot() : storage.loadMailbox(playerId));
+                }
+                if (archive != null) {
+                    all.addAll(archive.loadAll(playerId));
+                }
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not search mail of player " + playerId, e);
+                searchFilters.cancelRebuild(playerId);
+                continue;
+            }
+            searchFilters.rebuild(playerId, all);
+            for (MailMessage mail : all) {
+                if (limit <= 0 || mail.isExpired(now) || foundIds.contains(mail.getMessageId()) || !query.matches(mail)) {
+                    continue;
+                }
+                if (found.size() >= limit) {
+                    if (mail.getSentTimestamp() <= found.peek().getSentTimestamp()) {
+                        continue;
+                    }
+                    foundIds.remove(found.poll().getMessageId());
+                }
+                found.add(mail);
+                foundIds.add(mail.getMessageId());
+            }
+        }
+        List<MailMessage> results = new ArrayList<>(found);
+        results.sort(Comparator.comparingLong(MailMessage::getSentTimestamp).reversed());
+        plugin.getMetrics().getSearches().record(System.nanoTime() - started);
+        return results;
+    }
+
+    // Newest first, without expired mail or the duplicate a crash while archiving can leave
+    private static List<MailMessage> newest(List<MailMessage> found, int limit) {
+        long now = System.currentTimeMillis();
+        found.sort(Comparator.comparingLong(MailMessage::getSentTimestamp).reversed());
+        Map<UUID, MailMessage> results = new LinkedHashMap<>();
+        for (MailMessage mail : found) {
+            if (results.size() >= limit) {
+                break;
+            }
+            if (!mail.isExpired(now)) {
+                results.putIfAbsent(mail.getMessageId(), mail);
+            }
+        }
+        return new ArrayList<>(results.values());
+    }
+
+    // recent, newest first, followed by the player's archived mail, which is only read when reached
+    public List<MailMessage> withArchive(UUID playerId, List<MailMessage> recent) {
+        return archive == null ? recent : archive.view(playerId, recent);
+    }
+
+    public long getDefaultMailRetentionDays() {
+        return defaultMailRetentionDays;
+    }
+
+    // Unexpired mail, oldest first
+    public List<MailMessage> getMailForPlayer(UUID playerId) {
+        return getMailbox(playerId).list(System.currentTimeMillis());
+    }
+
+    // Unexpired mail, oldest first, without caching the mailbox: a cached one is listed, any other read from storage.
+    // The messages of a cached mailbox are live.
+    public List<MailMessage> peekMailForPlayer(UUID playerId) throws IOException {
+        long now = System.currentTimeMillis();
+        List<MailMessage> stored;
+        // Under the load lock the mailbox is either cached, and current, or only in storage
+        synchronized (loadLockFor(playerId)) {
+            Mailbox mailbox = mailboxCache.peek(playerId);
+            if (mailbox != null) {
+                return mailbox.list(now);
+            }
+            stored = storage.loadMailbox(playerId);
+        }
+        attachments.resolve(stored);
+        List<MailMessage> visible = new ArrayList<>(stored.size());
+        for (MailMessage mail : stored) {
+            if (!mail.isExpired(now)) {
+                visible.add(mail);
+            }
+        }
+        visible.sort(Comparator.comparingLong(MailMessage::getSentTimestamp));
+        return visible;
+    }
+
+    public MailMessage getMailById(UUID playerId, UUID mailId) {
+        MailMessage mail = getMailbox(playerId).get(mailId);
+        return mail == null || mail.isExpired(System.currentTimeMillis()) ? null : mail;
+    }
+
+    // Unread mail minus item mail that was already claimed, for the login notice
+    public int countNotifiable(UUID playerId) {
+        return getMailbox(playerId).getNotifiableCount();
+    }
 
     public void markAsRead(UUID playerId, UUID mailId) {
-        MailMessage mail = getMailById(playerId, mailId);
-        if (mail != null && !mail.isRead()) {
-            mail.setRead(true);
-            saveMailForPlayer(playerId);
+        Mailbox mailbox = acquireMailbox(playerId);
+        try {
+            if (mailbox.markRead(mailId)) {
+                recordChange(playerId, MailChange.flags(mailbox.get(mailId)));
+            }
+        } finally {
+            mailbox.release();
         }
     }
 
     public boolean claimMail(Player player, UUID mailId) {
         UUID playerId = player.getUniqueId();
-        MailMessage mail = getMailById(playerId, mailId);
+        Mailbox mailbox = acquireMailbox(playerId);
+        try {
+            MailMessage mail = mailbox.get(mailId);
+            if (mail == null || mail.isClaimed() || mail.isExpired(System.currentTimeMillis())) {
+                return false;
+            }
+            List<ItemStack> items = mail.getItems();
+            if (!new InventorySpace(player).tryAdd(items)) {
+                player.sendMessage("§cYour inventory is full. Cannot claim items.");
+                return false;
+            }
+            String attachmentId = mail.holdsAttachment() ? mail.getAttachmentId() : null;
+            // Claim before handing anything out, so of two racing claims only the winner gets the items
+            if (!mailbox.markClaimed(mailId)) {
+                return false;
+            }
+            for (ItemStack item : items) {
+                for (ItemStack leftover : player.getInventory().addItem(item.clone()).values()) {
+                    player.getWorld().dropItemNaturally(player.getLocation(), leftover);
+                }
+            }
+            player.sendMessage("§aMail claimed: " + mail.getSubject());
+            recordChange(playerId, MailChange.flags(mail)); // Save after modification
+            if (attachmentId != null) {
+                attachments.release(attachmentId);
+            }
+            return true;
+        } finally {
+            mailbox.release();
+        }
+    }
 
-        if (mail != null && !mail.isClaimed()) {
-            if (mail.hasItems()) {
+    // Claims every unexpired message whose items fit, oldest first, skipping any that don't fit whole. The mailbox
+    // changes in one step and is written once. Returns how many messages were claimed and how many didn't fit.
+    public int[] claimAll(Player player) {
+        UUID playerId = player.getUniqueId();
+        Mailbox mailbox = acquireMailbox(playerId);
+        try {
+            long now = System.currentTimeMillis();
+            InventorySpace space = new InventorySpace(player);
+            List<UUID> fitting = new ArrayList<>();
+            int skipped = 0;
+            for (MailMessage mail : mailbox.getClaimable()) {
+                if (mail.isExpired(now)) {
+                    continue;
+                }
+                if (space.tryAdd(mail.getItems())) {
+                    fitting.add(mail.getMessageId());
+                } else {
+                    skipped++;
+                }
+            }
+            // Only what this call marked is handed out, so a concurrent claim of the same message can't pay twice
+            List<MailMessage> claimed = mailbox.markAllClaimed(fitting);
+            List<MailChange> changes = new ArrayList<>(claimed.size());
+            for (MailMessage mail : claimed) {
                 for (ItemStack item : mail.getItems()) {
-                    if (player.getInventory().firstEmpty() == -1) {
-                        player.sendMessage("§cYour inventory is full. Cannot claim items.");
-                        return false;
+                    for (ItemStack leftover : player.getInventory().addItem(item.clone()).values()) {
+                        player.getWorld().dropItemNaturally(player.getLocation(), leftover);
                     }
-                    player.getInventory().addItem(item.clone());
                 }
+                changes.add(MailChange.flags(mail));
             }
-            mail.setClaimed(true);
-            player.sendMessage("§aMail claimed: " + mail.getSubject());
-            saveMailForPlayer(playerId); // Save after modification
-            return true;
+            recordChanges(playerId, changes);
+            for (MailMessage mail : claimed) {
+                if (mail.getAttachmentId() != null) { // Held until this call claimed it
+                    attachments.release(mail.getAttachmentId());
+                }
+            }
+            if (!claimed.isEmpty()) {
+                player.sendMessage("§aClaimed " + claimed.size() + " mail(s).");
+            }
+            if (skipped > 0) {
+                player.sendMessage("§c" + skipped + " mail(s) didn't fit in your inventory and are still waiting.");
+            }
+            return new int[]{claimed.size(), skipped};
+        } finally {
+            mailbox.release();
         }
-        return false;
     }
 
+    public int readAll(UUID playerId) {
+        Mailbox mailbox = acquireMailbox(playerId);
+        try {
+            List<MailMessage> read = mailbox.markAllRead();
+            List<MailChange> changes = new ArrayList<>(read.size());
+            for (MailMessage mail : read) {
+                changes.add(MailChange.flags(mail));
+            }
+            recordChanges(playerId, changes);
+            return read.size();
+        } finally {
+            mailbox.release();
+        }
+    }
+
+    // Deletes the messages matching filter, archived ones included, except ones with unclaimed items, which are
+    // never thrown away here. Returns how many were deleted. Reads the archive, so call it off the main thread.
+    public int deleteMail(UUID playerId, Predicate<MailMessage> filter) {
+        int deleted;
+        Mailbox mailbox = acquireMailbox(playerId);
+        try {
+            List<MailMessage> removed = mailbox.removeAll(mail -> !(mail.hasItems() && !mail.isClaimed()) && filter.test(mail));
+            List<MailChange> changes = new ArrayList<>(removed.size());
+            for (MailMessage mail : removed) {
+                changes.add(MailChange.remove(mail.getMessageId()));
+            }
+            recordChanges(playerId, changes);
+            deleted = removed.size();
+        } finally {
+            mailbox.release();
+        }
+        if (archive != null) {
+            try {
+                deleted += archive.delete(playerId, filter); // Archived mail never has unclaimed items
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not delete archived mail for player " + playerId, e);
+            }
+        }
+        return deleted;
+    }
+
+    // Only visits mailboxes the expiry index says have something due, loaded or not
     public void cleanupExpiredMail() {
-        int globallyRemovedCount = 0;
-        // Iterate over a copy of keyset to avoid ConcurrentModificationException if a player's mail is loaded inside the loop
-        List<UUID> playerIdsToCheck = new ArrayList<>(playerMailboxes.keySet());
+        long started = System.nanoTime();
+        long now = System.currentTimeMillis();
+        int removedCount = 0;
+        for (UUID playerId : expiryIndex.pollDue(now)) {
+            try {
+                removedCount += expireMailbox(playerId, now);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not delete expired mail for player " + playerId, e);
+                expiryIndex.schedule(playerId, now); // Retry on the next run
+            }
+        }
+        if (removedCount > 0) {
+            plugin.getLogger().info("Removed " + removedCount + " expired mail messages during cleanup.");
+        }
+        collectAttachmentGarbage();
+        plugin.getMetrics().getCleanups().record(System.nanoTime() - started);
+    }
 
-        for (UUID playerId : playerIdsToCheck) {
-            List<MailMessage> mailList = playerMailboxes.get(playerId);
-            if (mailList == null) continue;
+    private int expireMailbox(UUID playerId, long now) throws IOException {
+        if (network != null && !network.isOwner(playerId)) {
+            return expireShared(playerId, now);
+        }
+        return expireRecent(playerId, now) + expireArchived(playerId, now);
+    }
 
-            int originalSize = mailList.size();
-            boolean modified = mailList.removeIf(MailMessage::isExpired);
-            int removedThisPlayer = originalSize - mailList.size();
+    private int expireRecent(UUID playerId, long now) throws IOException {
+        // The load lock keeps the mailbox from being loaded halfway through, so it is expired either in memory or in storage
+        synchronized (loadLockFor(playerId)) {
+            Mailbox mailbox = mailboxCache.peek(playerId);
+            if (mailbox == null || !mailbox.acquire()) { // Not cached, or evicted with nothing left unwritten
+                int[] removed = {0};
+                long next = storage.deleteExpired(playerId, now, (messageId, attachmentId) -> {
+                    removed[0]++;
+                    if (attachmentId != null) {
+                        attachments.release(attachmentId);
+                    }
+                });
+                expiryIndex.schedule(playerId, next);
+                if (removed[0] > 0) {
+                    noteWritten(playerId);
+                }
+                return removed[0];
+            }
 
-            if (modified) {
-                globallyRemovedCount += removedThisPlayer;
-                if (mailList.isEmpty()) {
-                    // If all mail for a player expired and was removed,
-                    // saveMailForPlayer will handle deleting the file if the list is empty.
-                     playerMailboxes.put(playerId, mailList); // Ensure the map reflects the emptied list
+            try {
+                List<MailMessage> expired = new ArrayList<>();
+                expiryIndex.schedule(playerId, mailbox.removeExpired(now, expired));
+                for (MailMessage mail : expired) {
+                    recordChange(playerId, MailChange.remove(mail.getMessageId()));
+                    if (mail.holdsAttachment()) {
+                        attachments.release(mail.getAttachmentId());
+                    }
                 }
-                 saveMailForPlayer(playerId); // Save changes for this player
+                return expired.size();
+            } finally {
+                mailbox.release();
             }
         }
-        if (globallyRemovedCount > 0) {
-            plugin.getLogger().info("Removed " + globallyRemovedCount + " expired mail messages during cleanup.");
+    }
+
+    // Expiry for a mailbox this server doesn't own: left to the owner if there is one, which has it scheduled too,
+    // otherwise done in shared storage under the network's lock
+    private int expireShared(UUID playerId, long now) throws IOException {
+        if (network.isOwnedElsewhere(playerId)) {
+            return 0;
+        }
+        int[] removed = {0};
+        long next;
+        synchronized (loadLockFor(playerId)) {
+            if (!dropCopy(playerId)) {
+                expiryIndex.schedule(playerId, now); // In use; retry on the next run
+                return 0;
+            }
+            next = network.withSharedLock(playerId, () -> {
+                removed[0] += expireArchived(playerId, now);
+                return storage.deleteExpired(playerId, now, (messageId, attachmentId) -> {
+                    removed[0]++;
+                    if (attachmentId != null) {
+                        attachments.release(attachmentId);
+                    }
+                });
+            });
+        }
+        expiryIndex.schedule(playerId, next);
+        if (removed[0] > 0) {
+            noteWritten(playerId);
+            network.mailboxWritten(playerId);
+        }
+        return removed[0];
+    }
+
+
+    // Archived mail holds no attachments, so expiring it only rewrites the archive
+    private int expireArchived(UUID playerId, long now) throws IOException {
+        if (archive == null) {
+            return 0;
         }
+        int[] removed = {0};
+        expiryIndex.schedule(playerId, archive.deleteExpired(playerId, now, mail -> removed[0]++));
+        return removed[0];
     }
 }
\ No newline at end of file
@@ -19,10 +19,11 @@ public class MailMessage implements ConfigurationSerializable {
     private String subject;
     private String body;
     private List<ItemStack> items;
+    private String attachmentId; // Set when the items live in the shared AttachmentStore rather than inline
     private final long sentTimestamp;
     private long expiryTimestamp; // 0 for no expiry
-    private boolean claimed;
-    private boolean read;
+    private volatile boolean claimed; // Changed under the owning Mailbox's lock, read from any thread
+    private volatile boolean read;
 
     public MailMessage(UUID recipientId, String senderName, String subject, String body, List<ItemStack> items, long retentionDays) {
         this.messageId = UUID.randomUUID();
@@ -31,9 +32,10 @@ public class MailMessage implements ConfigurationSerializable {
         this.subject = subject == null ? "New Mail" : subject;
         this.body = body == null ? "" : body;
         this.items = items == null ? new ArrayList<>() : new ArrayList<>(items); // Use mutable list
-        this.sentTimestamp = Instant.now().toEpochMilli();
+        Instant now = Instant.now();
+        this.sentTimestamp = now.toEpochMilli();
         if (retentionDays > 0) {
-            this.expiryTimestamp = Instant.now().plusSeconds(retentionDays * 24 * 60 * 60).toEpochMilli();
+            this.expiryTimestamp = now.plusSeconds(retentionDays * 24 * 60 * 60).toEpochMilli();
         } else {
             this.expiryTimestamp = 0; // Never expires
         }
@@ -41,8 +43,8 @@ public class MailMessage implements ConfigurationSerializable {
         this.read = false;
     }
 
-    // Private constructor for deserialization
-    private MailMessage(UUID messageId, UUID recipientId, String senderName, String subject, String body,
+    // Constructor for deserialization and storage backends
+    MailMessage(UUID messageId, UUID recipientId, String senderName, String subject, String body,
                         List<ItemStack> items, long sentTimestamp, long expiryTimestamp,
                         boolean claimed, boolean read) {
         this.messageId = messageId;
@@ -64,6 +66,7 @@ public class MailMessage implements ConfigurationSerializable {
     public String getSubject() { return subject; }
     public String getBody() { return body; }
     public List<ItemStack> getItems() { return items; }
+    public String getAttachmentId() { return attachmentId; }
     public long getSentTimestamp() { return sentTimestamp; }
     public long getExpiryTimestamp() { return expiryTimestamp; }
     public boolean isClaimed() { return claimed; }
@@ -72,8 +75,32 @@ public class MailMessage implements ConfigurationSerializable {
     // Setters
     public void setClaimed(boolean claimed) { this.claimed = claimed; }
     public void setRead(boolean read) { this.read = read; }
-    public boolean hasItems() { return items != null && !items.isEmpty(); }
-    public boolean isExpired() { return expiryTimestamp != 0 && Instant.now().toEpochMilli() > expiryTimestamp; }
+    public boolean hasItems() { return attachmentId != null || (items != null && !items.isEmpty()); }
+    public boolean isExpired() { return isExpired(Instant.now().toEpochMilli()); }
+    public boolean isExpired(long now) { return expiryTimestamp != 0 && now > expiryTimestamp; }
+    // True while this message keeps its shared attachment alive; claiming or removing it drops the reference
+    public boolean holdsAttachment() { return attachmentId != null && !claimed; }
+
+    // A detached copy, items cloned, for handing to code outside the plugin
+    MailMessage copy() {
+        List<ItemStack> itemCopies = null;
+        if (items != null) {
+            itemCopies = new ArrayList<>(items.size());
+            for (ItemStack item : items) {
+                itemCopies.add(item == null ? null : item.clone());
+            }
+        }
+        MailMessage copy = new MailMessage(messageId, recipientId, senderName, subject, body, itemCopies,
+                sentTimestamp, expiryTimestamp, claimed, read);
+        copy.attachmentId = attachmentId;
+        return copy;
+    }
+
+    // items is the store's shared, unmodifiable list, or empty until it is resolved
+    void setAttachment(String attachmentId, List<ItemStack> items) {
+        this.attachmentId = attachmentId;
+        this.items = items;
+    }
 
     @Override
     public Map<String, Object> serialize() {
@@ -83,7 +110,11 @@ public class MailMessage implements ConfigurationSerializable {
         map.put("recipientId", this.recipientId.toString());
         map.put("subject", this.subject);
         map.put("body", this.body);
-        map.put("items", this.items);
+        if (this.attachmentId != null) {
+            map.put("attachment", this.attachmentId);
+        } else {
+            map.put("items", this.items);
+        }
         map.put("sentTimestamp", this.sentTimestamp);
         map.put("expiryTimestamp", this.expiryTimestamp);
         map.put("claimed", this.claimed);
@@ -108,7 +139,12 @@ public class MailMessage implements ConfigurationSerializable {
         boolean claimed = (boolean) args.get("claimed");
         boolean read = (boolean) args.get("read");
 
-        return new MailMessage(messageId, recipientId, senderName, subject, body, items,
+        MailMessage mail = new MailMessage(messageId, recipientId, senderName, subject, body, items,
                                sentTimestamp, expiryTimestamp, claimed, read);
+        String attachmentId = (String) args.get("attachment");
+        if (attachmentId != null) {
+            mail.setAttachment(attachmentId, List.of());
+        }
+        return mail;
     }
 }
\ No newline at end of file
@@ -0,0 +1,274 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.Bukkit;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+// What the plugin costs: timings recorded where the work happens, plus gauges read from the components when a
+// snapshot is taken. The same snapshot backs /mail stats, the JMX bean (io.mewb.mailplugin:type=Metrics, one
+// attribute per key) and the optional CSV dump, which adds the server TPS so slow ticks can be lined up with it.
+public class MailMetrics implements DynamicMBean {
+
+    private static final String OBJECT_NAME = "io.mewb.mailplugin:type=Metrics";
+    private static final int[] MAILBOX_SIZE_BOUNDS = {1, 10, 100, 1000}; // Buckets: 0, 1-9, 10-99, 100-999, 1000+
+    private static final long JMX_SNAPSHOT_MAX_AGE_MILLIS = 1000;
+
+    private final Mailplugin plugin;
+    private final LatencyRecorder loads = new LatencyRecorder();
+    private final LatencyRecorder saves = new LatencyRecorder();
+    private final LatencyRecorder cleanups = new LatencyRecorder();
+    private final LatencyRecorder bookRenders = new LatencyRecorder();
+    private final LatencyRecorder searches = new LatencyRecorder();
+    private final LatencyRecorder loginPrefetches = new LatencyRecorder();
+    private final AtomicLong warmJoins = new AtomicLong(); // Joins that found the mailbox already loaded
+    private final AtomicLong coldJoins = new AtomicLong();
+    private volatile Map<String, Number> jmxSnapshot;
+    private volatile long jmxSnapshotTakenAt;
+    private ObjectName registeredName;
+    private ScheduledFuture<?> csvTask;
+
+    public MailMetrics(Mailplugin plugin) {
+        this.plugin = plugin;
+    }
+
+    public LatencyRecorder getLoads() {
+        return loads;
+    }
+
+    public LatencyRecorder getSaves() {
+        return saves;
+    }
+
+    public LatencyRecorder getCleanups() {
+        return cleanups;
+    }
+
+    public LatencyRecorder getBookRenders() {
+        return bookRenders;
+    }
+
+    public LatencyRecorder getSearches() {
+        return searches;
+    }
+
+    public LatencyRecorder getLoginPrefetches() {
+        return loginPrefetches;
+    }
+
+    public void countJoin(boolean warm) {
+        (warm ? warmJoins : coldJoins).incrementAndGet();
+    }
+
+    public long getWarmJoins() {
+        return warmJoins.get();
+    }
+
+    public long getColdJoins() {
+        return coldJoins.get();
+    }
+
+    // Ordered; keys double as JMX attribute and CSV column names
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        MailManager mailManager = plugin.getMailManager();
+        if (mailManager != null) {
+            MailboxCache cache = mailManager.getMailboxCache();
+            values.put("CacheHits", cache.getHits());
+            values.put("CacheMisses", cache.getMisses());
+            values.put("CacheEvictions", cache.getEvictions());
+            values.put("CachedMailboxes", cache.size());
+            long[] sizes = new long[MAILBOX_SIZE_BOUNDS.length + 1];
+            for (Mailbox mailbox : cache.values()) {
+                int bucket = 0;
+                while (bucket < MAILBOX_SIZE_BOUNDS.length && mailbox.size() >= MAILBOX_SIZE_BOUNDS[bucket]) {
+                    bucket++;
+                }
+                sizes[bucket]++;
+            }
+            values.put("MailboxesEmpty", sizes[0]);
+            values.put("MailboxesUnder10", sizes[1]);
+            values.put("MailboxesUnder100", sizes[2]);
+            values.put("MailboxesUnder1000", sizes[3]);
+            values.put("Mailboxes1000Plus", sizes[4]);
+            values.put("PendingWrites", mailManager.getPendingWriteCount());
+            values.put("BytesWritten", mailManager.getStorage().getBytesWritten());
+            values.put("Attachments", mailManager.getAttachments().getAttachmentCount());
+            values.put("Quarantined", mailManager.getQuarantinedCount());
+            values.put("SearchFilters", mailManager.getSearchFilters().size());
+            DeliveryWheel wheel = mailManager.getDeliveryWheel();
+            values.put("ScheduledPending", wheel.getPending());
+            values.put("ScheduledReleased", wheel.getReleased());
+            values.put("ScheduledSlots", wheel.getSlotCount());
+            MailArchive archive = mailManager.getArchive();
+            if (archive != null) {
+                values.put("Archived", archive.getArchivedCount());
+                values.put("ArchiveDropped", archive.getDroppedCount());
+                values.put("ArchiveSegmentReads", archive.getSegmentReads());
+            }
+            MailNetwork network = mailManager.getNetwork();
+            if (network != null) {
+                values.put("NetworkOwned", network.getOwnedCount());
+                values.put("NetworkForwards", network.getForwardsSent());
+                values.put("NetworkForwardsPending", network.getPendingForwards());
+                values.put("NetworkForwardsTimedOut", network.getForwardsTimedOut());
+                values.put("NetworkEvents", network.getEventsReceived());
+            }
+        }
+        putLatency(values, "Load", loads);
+        putLatency(values, "Save", saves);
+        putLatency(values, "Cleanup", cleanups);
+        putLatency(values, "BookRender", bookRenders);
+        putLatency(values, "Search", searches);
+        putLatency(values, "LoginPrefetch", loginPrefetches);
+        values.put("WarmJoins", warmJoins.get());
+        values.put("ColdJoins", coldJoins.get());
+        WorkScheduler scheduler = plugin.getWorkScheduler();
+        if (scheduler != null) {
+            values.put("MainQueueDepth", scheduler.getMainQueueDepth());
+            values.put("AsyncQueueDepth", scheduler.getAsyncQueueDepth());
+            values.put("TickBudgetMillis", scheduler.getBudgetMillis());
+            values.put("LastTickMillis", scheduler.getLastTickMillis());
+            values.put("TickP99Millis", scheduler.getTickUsage().getPercentileMillis(99));
+            values.put("OverBudgetTicks", scheduler.getOverBudgetTicks());
+        }
+        MailService service = plugin.getMailService();
+        if (service != null) {
+            values.put("ServiceQueueDepth", service.getQueueDepth());
+        }
+        return values;
+    }
+
+    // JMX consoles read attributes one at a time, so one snapshot serves them all for a second
+    private Map<String, Number> jmxSnapshot() {
+        long now = System.currentTimeMillis();
+        Map<String, Number> values = jmxSnapshot;
+        if (values == null || now - jmxSnapshotTakenAt > JMX_SNAPSHOT_MAX_AGE_MILLIS) {
+            values = snapshot();
+            jmxSnapshot = values;
+            jmxSnapshotTakenAt = now;
+        }
+        return values;
+    }
+
+    private static void putLatency(Map<String, Number> values, String name, LatencyRecorder recorder) {
+        values.put(name + "Count", recorder.getCount());
+        values.put(name + "MeanMillis", recorder.getMeanMillis());
+        values.put(name + "P99Millis", recorder.getPercentileMillis(99));
+        values.put(name + "MaxMillis", recorder.getMaxMillis());
+    }
+
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) { // Left over from before a reload
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not register mail metrics with JMX", e);
+        }
+    }
+
+    public void startCsvDump(long intervalMillis) {
+        File csvFile = new File(plugin.getDataFolder(), "metrics.csv");
+        csvTask = plugin.getWorkScheduler().runAsyncRepeating(() -> appendCsv(csvFile), intervalMillis, intervalMillis);
+    }
+
+    private void appendCsv(File csvFile) {
+        Map<String, Number> values = snapshot();
+        boolean header = !csvFile.exists() || csvFile.length() == 0;
+        try (Writer out = new FileWriter(csvFile, true)) {
+            if (header) {
+                out.write("Timestamp,Tps," + String.join(",", values.keySet()) + "\n");
+            }
+            StringBuilder row = new StringBuilder();
+            row.append(System.currentTimeMillis()).append(',').append(String.format("%.2f", Bukkit.getServer().getTPS()[0]));
+            for (Number value : values.values()) {
+                row.append(',').append(value);
+            }
+            out.write(row.append('\n').toString());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not write mail metrics to " + csvFile.getName(), e);
+        }
+    }
+
+    public void shutdown() {
+        if (csvTask != null) {
+            csvTask.cancel(false);
+        }
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                plugin.getLogger().log(Level.FINE, "Could not unregister mail metrics from JMX", e);
+            }
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = jmxSnapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = jmxSnapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        return null;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Number> entry : jmxSnapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "MailPlugin metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
@@ -0,0 +1,562 @@
+package io.mewb.mailplugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+// Lets several servers behind a proxy share one mail folder (network.shared-folder).
+//
+// A mailbox has at most one owner, the server its player is on, and only the owner changes it, so no two servers
+// ever write the same mailbox at once. A server claims a mailbox when its player logs in (OWNER, stamped; the later
+// claim wins) and waits for the previous owner to write out its changes and let go (RELEASED) before loading it.
+// Mail sent anywhere else is forwarded to the owner (DELIVER), which confirms it (DELIVERED); without a
+// confirmation inside the handoff timeout it is forwarded again, as a slow owner may still be writing the mailbox.
+// A mailbox that has an owner is never written by anyone else: mail a server couldn't hand over before shutting
+// down is parked in parked/<player>.mail, which the owner takes in when told, or whoever claims the mailbox next.
+// Mailboxes nobody owns, those of offline players, are appended to directly under a per-mailbox file lock. Whoever
+// writes a mailbox says so (CHANGED): other servers drop their cached copy, the owner merges.
+//
+// Ownership is never stored, only announced: a starting server says HELLO, which also tells the others it owns
+// nothing any more, and the others announce what they own.
+public class MailNetwork {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final Mailplugin plugin;
+    private final MailManager mailManager;
+    private final String node;
+    private final File sharedFolder;
+    private final File lockFolder;
+    private final File parkedFolder;
+    private final MailTransport transport;
+    private final long handoffTimeoutMillis;
+
+    // All guarded by "this"
+    private final Map<UUID, Owner> owners = new HashMap<>();
+    private final Map<UUID, CountDownLatch> handoffs = new HashMap<>(); // Our claims still waiting for a RELEASED
+    private final Map<UUID, List<MailMessage>> parked = new HashMap<>(); // Mail for those, delivered once the claim settles
+
+    private final Map<UUID, Forward> forwarded = new ConcurrentHashMap<>(); // By message id, until DELIVERED
+    private final Set<UUID> staleCopies = ConcurrentHashMap.newKeySet(); // Changed elsewhere, but couldn't be dropped yet
+    private final Object[] lockMonitors = new Object[LOCK_STRIPES];
+    private final AtomicLong forwardsSent = new AtomicLong();
+    private final AtomicLong forwardsTimedOut = new AtomicLong();
+    private final AtomicLong eventsReceived = new AtomicLong();
+    private ScheduledFuture<?> maintenance;
+
+    public MailNetwork(Mailplugin plugin, MailManager mailManager, File sharedFolder) throws IOException {
+        this.plugin = plugin;
+        this.mailManager = mailManager;
+        this.node = resolveNode(plugin);
+        this.sharedFolder = sharedFolder;
+        this.lockFolder = new File(sharedFolder, "locks");
+        this.parkedFolder = new File(sharedFolder, "parked");
+        this.handoffTimeoutMillis = Math.max(100, plugin.getConfig().getLong("network.handoff-timeout-ms", 3000));
+        for (int i = 0; i < lockMonitors.length; i++) {
+            lockMonitors[i] = new Object();
+        }
+        if (!lockFolder.exists() && !lockFolder.mkdirs()) {
+            throw new IOException("Could not create " + lockFolder.getPath());
+        }
+        String transportName = plugin.getConfig().getString("network.transport", "directory");
+        if ("local".equalsIgnoreCase(transportName)) {
+            this.transport = new LocalMailTransport(sharedFolder.getAbsolutePath());
+        } else {
+            if (!"directory".equalsIgnoreCase(transportName)) {
+                plugin.getLogger().warning("Unknown network transport '" + transportName + "', using directory.");
+            }
+            this.transport = new DirectoryMailTransport(new File(sharedFolder, "events"), node,
+                    plugin.getConfig().getLong("network.poll-interval-ms", 250), plugin.getLogger());
+        }
+    }
+
+    // network.node-id, or a name picked once and kept in the plugin folder, so refs-<node>.yml stays this server's
+    private static String resolveNode(Mailplugin plugin) throws IOException {
+        String configured = plugin.getConfig().getString("network.node-id", "");
+        if (configured != null && !configured.isBlank()) {
+            return configured.trim().replaceAll("[^A-Za-z0-9_-]", "_");
+        }
+        File file = new File(plugin.getDataFolder(), "node-id");
+        if (file.exists()) {
+            return Files.readString(file.toPath(), StandardCharsets.UTF_8).trim();
+        }
+        String generated = "node-" + UUID.randomUUID().toString().substring(0, 8);
+        Files.writeString(file.toPath(), generated, StandardCharsets.UTF_8);
+        return generated;
+    }
+
+    public void start() throws IOException {
+        transport.start(this::receive);
+        publish(MailEvent.Type.HELLO, null, 0, null);
+        long period = Math.max(100, transport.getDelayMillis());
+        this.maintenance = plugin.getWorkScheduler().runAsyncRepeating(this::maintain, period, period);
+        plugin.getLogger().info("Sharing mail as " + node + " over the " + transport.getName() + " transport in " + sharedFolder.getPath());
+    }
+
+    // Call after every pending mailbox write is on disk
+    public void shutdown() {
+        if (maintenance != null) {
+            maintenance.cancel(false);
+        }
+        // Unconfirmed forwards are parked or written here rather than lost; the owner ignores a message it already has
+        for (Forward forward : new ArrayList<>(forwarded.values())) {
+            try {
+                if (isOwnedElsewhere(forward.mail.getRecipientId())) {
+                    park(forward.mail);
+                } else if (isOwner(forward.mail.getRecipientId())) {
+                    mailManager.deliverLocal(forward.mail);
+                } else {
+                    mailManager.deliverShared(forward.mail);
+                }
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not deliver forwarded mail " + forward.mail.getMessageId(), e);
+            }
+        }
+        forwarded.clear();
+        List<Map.Entry<UUID, Owner>> owned = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<UUID, Owner> entry : owners.entrySet()) {
+                if (entry.getValue().node.equals(node)) {
+                    owned.add(Map.entry(entry.getKey(), entry.getValue()));
+                }
+            }
+            owners.clear();
+        }
+        for (Map.Entry<UUID, Owner> entry : owned) {
+            publish(MailEvent.Type.RELEASED, entry.getKey(), entry.getValue().stamp, null);
+        }
+        transport.close();
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public File getSharedFolder() {
+        return sharedFolder;
+    }
+
+    public synchronized boolean isOwner(UUID playerId) {
+        Owner owner = owners.get(playerId);
+        return owner != null && owner.node.equals(node);
+    }
+
+    // True if another server owns the mailbox, as far as this one knows
+    public synchronized boolean isOwnedElsewhere(UUID playerId) {
+        Owner owner = owners.get(playerId);
+        return owner != null && !owner.node.equals(node);
+    }
+
+    // Makes this server the mailbox's owner before its player's mailbox is loaded. Blocks for up to the handoff
+    // timeout while the previous owner writes out, so call it off the main thread, e.g. at pre-login.
+    public void claim(UUID playerId) {
+        Owner mine;
+        CountDownLatch released = null;
+        synchronized (this) {
+            Owner previous = owners.get(playerId);
+            if (previous != null && previous.node.equals(node)) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            mine = new Owner(node, previous == null ? now : Math.max(now, previous.stamp + 1));
+            owners.put(playerId, mine);
+            if (previous != null) {
+                released = new CountDownLatch(1);
+                handoffs.put(playerId, released);
+            }
+        }
+        publish(MailEvent.Type.OWNER, playerId, mine.stamp, null);
+        if (released != null) {
+            try {
+                if (!released.await(handoffTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    plugin.getLogger().fine("Previous owner of mailbox " + playerId + " did not release it in time.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // A copy cached while we didn't own it may be stale
+        if (!mailManager.dropCopy(playerId)) {
+            staleCopies.add(playerId);
+        }
+        List<MailMessage> waiting = new ArrayList<>();
+        synchronized (this) {
+            handoffs.remove(playerId);
+            List<MailMessage> inMemory = parked.remove(playerId);
+            if (inMemory != null) {
+                waiting.addAll(inMemory);
+            }
+        }
+        waiting.addAll(takeParked(playerId)); // Left by a server that shut down while the mailbox was owned
+        if (!waiting.isEmpty()) {
+            boolean ours = isOwner(playerId); // Another server may have claimed it after us
+            for (MailMessage mail : waiting) {
+                try {
+                    if (ours || !route(mail)) {
+                        deliverForwarded(mail);
+                    }
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Could not deliver mail to player " + playerId, e);
+                }
+            }
+        }
+    }
+
+    // Called once the player has left and their pending writes are on disk. A no-op if they came back meanwhile.
+    public void release(UUID playerId) {
+        if (mailManager.getMailboxCache().isPinned(playerId)) {
+            return;
+        }
+        Owner mine;
+        synchronized (this) {
+            mine = owners.get(playerId);
+            if (mine == null || !mine.node.equals(node)) {
+                return;
+            }
+            owners.remove(playerId);
+        }
+        mailManager.flushMailbox(playerId); // Anything that slipped in between the caller's flush and now
+        publish(MailEvent.Type.RELEASED, playerId, mine.stamp, null);
+    }
+
+    // Sends mail for a mailbox this server doesn't own to where it belongs. Returns false if the caller should
+    // deliver it locally.
+    public boolean route(MailMessage mail) throws IOException {
+        UUID playerId = mail.getRecipientId();
+        Owner owner;
+        synchronized (this) {
+            if (handoffs.containsKey(playerId)) { // Ours, but not loaded until the previous owner lets go
+                parked.computeIfAbsent(playerId, k -> new ArrayList<>()).add(mail);
+                return true;
+            }
+            owner = owners.get(playerId);
+        }
+        if (owner != null && owner.node.equals(node)) {
+            return false;
+        }
+        if (owner != null) {
+            forwarded.put(mail.getMessageId(), new Forward(mail, System.currentTimeMillis() + handoffTimeoutMillis));
+            forwardsSent.incrementAndGet();
+            publish(MailEvent.Type.DELIVER, playerId, 0, MailCodec.encodeMessage(mail));
+            return true;
+        }
+        mailManager.deliverShared(mail);
+        return true;
+    }
+
+    // Tells the other servers their copies of this mailbox are out of date
+    public void mailboxWritten(UUID playerId) {
+        publish(MailEvent.Type.CHANGED, playerId, 0, null);
+    }
+
+    // Runs action holding the cross-server lock for a mailbox nobody owns: a file lock, plus a monitor because a
+    // JVM can't hold two locks on the same file
+    public <T> T withSharedLock(UUID playerId, LockedAction<T> action) throws IOException {
+        int stripe = (playerId.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+        synchronized (lockMonitors[stripe]) {
+            try (FileChannel channel = FileChannel.open(new File(lockFolder, stripe + ".lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock lock = channel.lock()) {
+                return action.run();
+            }
+        }
+    }
+
+    public interface LockedAction<T> {
+        T run() throws IOException;
+    }
+
+    private void receive(MailEvent event) {
+        if (event.getNode().equals(node)) {
+            return;
+        }
+        eventsReceived.incrementAndGet();
+        try {
+            switch (event.getType()) {
+                case HELLO -> restarted(event.getNode());
+                case OWNER -> ownerClaimed(event.getPlayerId(), new Owner(event.getNode(), event.getStamp()));
+                case RELEASED -> released(event.getPlayerId(), new Owner(event.getNode(), event.getStamp()));
+                case DELIVER -> deliverRequested(event.getPlayerId(), MailCodec.decodeMessage(event.getPayload()));
+                case DELIVERED -> forwarded.remove(toUuid(event.getPayload()));
+                case CHANGED -> changedElsewhere(event.getPlayerId());
+            }
+        } catch (IOException | RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not handle mail event " + event.getType() + " from " + event.getNode(), e);
+        }
+    }
+
+    // A server that (re)starts owns nothing until it claims again, so forwards to it go elsewhere
+    private void restarted(String otherNode) {
+        synchronized (this) {
+            owners.values().removeIf(owner -> owner.node.equals(otherNode));
+        }
+        announceOwned();
+    }
+
+    private void announceOwned() {
+        List<Map.Entry<UUID, Owner>> owned = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<UUID, Owner> entry : owners.entrySet()) {
+                if (entry.getValue().node.equals(node)) {
+                    owned.add(Map.entry(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+        for (Map.Entry<UUID, Owner> entry : owned) {
+            publish(MailEvent.Type.OWNER, entry.getKey(), entry.getValue().stamp, null);
+        }
+    }
+
+    private void ownerClaimed(UUID playerId, Owner claim) {
+        Owner lost;
+        synchronized (this) {
+            Owner current = owners.get(playerId);
+            if (current != null && !claim.isNewerThan(current)) {
+                return; // Superseded before it got here
+            }
+            owners.put(playerId, claim);
+            lost = current != null && current.node.equals(node) ? current : null;
+            CountDownLatch ours = handoffs.get(playerId);
+            if (ours != null) {
+                ours.countDown(); // We lost a race for the mailbox; stop waiting
+            }
+        }
+        if (lost != null) {
+            mailManager.handOff(playerId);
+            publish(MailEvent.Type.RELEASED, playerId, lost.stamp, null);
+        }
+    }
+
+    private void released(UUID playerId, Owner owner) {
+        CountDownLatch waiting;
+        boolean ours;
+        synchronized (this) {
+            if (owner.equals(owners.get(playerId))) {
+                owners.remove(playerId);
+            }
+            waiting = handoffs.get(playerId);
+            ours = isOwner(playerId);
+        }
+        if (waiting != null) {
+            waiting.countDown();
+        } else if (ours) {
+            mailManager.mergeFromStorage(playerId); // Written out after we had already loaded it
+        }
+    }
+
+    private void deliverRequested(UUID playerId, MailMessage mail) {
+        synchronized (this) {
+            if (handoffs.containsKey(playerId)) {
+                parked.computeIfAbsent(playerId, k -> new ArrayList<>()).add(mail);
+                return;
+            }
+            if (!isOwner(playerId)) {
+                return; // The sender times out and routes it again
+            }
+        }
+        deliverForwarded(mail);
+    }
+
+    private void deliverForwarded(MailMessage mail) {
+        mailManager.deliverLocal(mail);
+        ByteBuffer id = ByteBuffer.allocate(16);
+        id.putLong(mail.getMessageId().getMostSignificantBits()).putLong(mail.getMessageId().getLeastSignificantBits());
+        publish(MailEvent.Type.DELIVERED, mail.getRecipientId(), 0, id.array());
+    }
+
+    private void changedElsewhere(UUID playerId) {
+        if (isOwner(playerId)) {
+            mailManager.mergeFromStorage(playerId);
+            for (MailMessage mail : takeParked(playerId)) {
+                mailManager.deliverLocal(mail);
+            }
+        } else {
+            mailManager.getSearchFilters().forget(playerId); // Our filter may lack whatever was written there
+            if (!mailManager.dropCopy(playerId)) {
+                staleCopies.add(playerId);
+            }
+        }
+    }
+
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        Iterator<Forward> it = forwarded.values().iterator();
+        while (it.hasNext()) {
+            Forward forward = it.next();
+            if (forward.deadline > now) {
+                continue;
+            }
+            it.remove();
+            forwardsTimedOut.incrementAndGet();
+            UUID playerId = forward.mail.getRecipientId();
+            // Still owned by the same server: it may only be slow, so it gets the mail again rather than having its
+            // mailbox written underneath it. Its restart (HELLO) or a new claim changes the owner.
+            try {
+                if (!route(forward.mail)) {
+                    mailManager.deliverLocal(forward.mail);
+                }
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not deliver mail to player " + playerId, e);
+            }
+        }
+        staleCopies.removeIf(mailManager::dropCopy);
+    }
+
+    // Keeps mail for a mailbox another server owns next to it, for the owner to take in; see takeParked
+    private void park(MailMessage mail) throws IOException {
+        UUID playerId = mail.getRecipientId();
+        byte[] data = MailCodec.encodeMessage(mail);
+        withSharedLock(playerId, () -> {
+            if (!parkedFolder.exists() && !parkedFolder.mkdirs()) {
+                throw new IOException("Could not create " + parkedFolder.getPath());
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(parkedFile(playerId), true)))) {
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            return null;
+        });
+        publish(MailEvent.Type.CHANGED, playerId, 0, null);
+    }
+
+    // Removes and returns the mail parked for a mailbox
+    private List<MailMessage> takeParked(UUID playerId) {
+        File file = parkedFile(playerId);
+        if (!file.exists()) {
+            return List.of();
+        }
+        try {
+            return withSharedLock(playerId, () -> {
+                List<MailMessage> mailList = new ArrayList<>();
+                if (!file.exists()) {
+                    return mailList;
+                }
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    while (true) {
+                        int length;
+                        try {
+                            length = in.readInt();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        byte[] data = new byte[length];
+                        in.readFully(data);
+                        mailList.add(MailCodec.decodeMessage(data));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Setting aside unreadable parked mail for player " + playerId, e);
+                    MailStorage.moveToQuarantine(file); // What was read before the damage is still delivered
+                    return mailList;
+                }
+                Files.delete(file.toPath());
+                return mailList;
+            });
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not take in parked mail for player " + playerId, e);
+            return List.of();
+        }
+    }
+
+    private File parkedFile(UUID playerId) {
+        return new File(parkedFolder, playerId + ".mail");
+    }
+
+    private void publish(MailEvent.Type type, UUID playerId, long stamp, byte[] payload) {
+        try {
+            transport.publish(new MailEvent(type, node, playerId, stamp, payload));
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not publish mail event " + type, e);
+        }
+    }
+
+    private static UUID toUuid(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    public synchronized int getOwnedCount() {
+        int count = 0;
+        for (Owner owner : owners.values()) {
+            if (owner.node.equals(node)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getPendingForwards() {
+        return forwarded.size();
+    }
+
+    public long getForwardsSent() {
+        return forwardsSent.get();
+    }
+
+    public long getForwardsTimedOut() {
+        return forwardsTimedOut.get();
+    }
+
+    public long getEventsReceived() {
+        return eventsReceived.get();
+    }
+
+    private static final class Owner {
+        final String node;
+        final long stamp;
+
+        Owner(String node, long stamp) {
+            this.node = node;
+            this.stamp = stamp;
+        }
+
+        // Ties go to the larger node name, so every server settles on the same owner
+        boolean isNewerThan(Owner other) {
+            return stamp != other.stamp ? stamp > other.stamp : node.compareTo(other.node) > 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Owner other && stamp == other.stamp && node.equals(other.node);
+        }
+
+        @Override
+        public int hashCode() {
+            return node.hashCode() * 31 + Long.hashCode(stamp);
+        }
+    }
+
+    private static final class Forward {
+        final MailMessage mail;
+        final long deadline;
+
+        Forward(MailMessage mail, long deadline) {
+            this.mail = mail;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.Bukkit;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+// Loads every stored mailbox into the cache on a small pool of threads, logging progress as it goes. Mailboxes
+// are independent files or rows, so loading is bound by storage latency and overlaps well. Unreadable mailboxes
+// are quarantined by MailManager and counted in the summary instead of stopping the load.
+// A fixed pool rather than virtual threads: each load reads storage inside MailManager's synchronized load lock,
+// which pins a virtual thread to its carrier on Java 21, and the disk or SQLite connection only takes a few
+// readers at once anyway, so storage.preload-threads is the useful limit.
+public class MailPreloader implements Runnable {
+
+    private final Mailplugin plugin;
+    private final MailManager mailManager;
+    private final int threads;
+    private final long progressIntervalMillis;
+    private volatile ExecutorService pool;
+    private volatile boolean cancelled;
+
+    public MailPreloader(Mailplugin plugin, MailManager mailManager) {
+        this.plugin = plugin;
+        this.mailManager = mailManager;
+        this.threads = Math.max(1, plugin.getConfig().getInt("storage.preload-threads", 4));
+        this.progressIntervalMillis = Math.max(1, plugin.getConfig().getLong("storage.preload-progress-seconds", 5)) * 1000L;
+    }
+
+    // Loads in the background; players joining meanwhile load their own mailbox on demand as usual
+    public void start() {
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, this);
+    }
+
+    public void cancel() {
+        cancelled = true;
+        ExecutorService running = pool;
+        if (running != null) {
+            running.shutdownNow();
+        }
+    }
+
+    @Override
+    public void run() {
+        long started = System.currentTimeMillis();
+        Set<UUID> playerIds;
+        try {
+            playerIds = mailManager.getStorage().listMailboxes();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not list stored mailboxes", e);
+            return;
+        }
+        if (playerIds.isEmpty()) {
+            plugin.getLogger().info("No stored player mail found.");
+            return;
+        }
+        plugin.getLogger().info("Loading mail for " + playerIds.size() + " players on " + threads + " threads...");
+
+        int quarantinedBefore = mailManager.getQuarantinedCount();
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger mailboxes = new AtomicInteger();
+        AtomicLong messages = new AtomicLong();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "MailPlugin-Preload-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool = executor;
+        for (UUID playerId : playerIds) {
+            executor.execute(() -> {
+                try {
+                    int loaded = mailManager.preloadMailbox(playerId);
+                    if (loaded >= 0) {
+                        mailboxes.incrementAndGet();
+                        messages.addAndGet(loaded);
+                    }
+                } catch (RuntimeException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Could not preload mail for player " + playerId, e);
+                } finally {
+                    done.incrementAndGet();
+                }
+            });
+        }
+        executor.shutdown();
+        if (cancelled) {
+            executor.shutdownNow(); // cancel() ran before the pool was published
+        }
+
+        try {
+            while (!executor.awaitTermination(progressIntervalMillis, TimeUnit.MILLISECONDS)) {
+                plugin.getLogger().info("Loaded mail for " + done.get() + "/" + playerIds.size() + " players...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+        String summary = mailboxes.get() + " mailboxes, " + messages.get() + " messages, "
+                + (mailManager.getQuarantinedCount() - quarantinedBefore) + " quarantined, in " + elapsed + "ms ("
+                + (mailboxes.get() * 1000L / elapsed) + " mailboxes/s)";
+        if (cancelled) {
+            plugin.getLogger().info("Mail preload stopped after " + summary + ".");
+        } else {
+            plugin.getLogger().info("Finished loading mail: " + summary + ".");
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package io.mewb.mailplugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A Bloom filter per mailbox over the prefixes of every word in it (up to MAX_KEY_LENGTH letters), archive included, so the admin search only
+// reads the mailboxes that may hold all the words it looks for. New mail adds its words; deleted mail leaves them
+// behind, which only costs a wasted read, until a search reads the whole mailbox and rebuilds its filter exactly.
+// A mailbox without a filter, such as one changed by another server, is always read.
+//
+// Saved to search.filters on shutdown. A marker file exists while the server runs; after a crash the saved filters
+// may miss words, so they are dropped and rebuilt by the searches that follow.
+public class MailSearchFilters {
+
+    private static final int MAGIC = 0x4D535246; // "MSRF"
+    private static final int HASHES = 4;
+    private static final int BITS_PER_KEY = 10; // About 1% false positives at the size a filter is built for
+    private static final int MIN_WORDS = 64; // Long arrays; 64 bits each
+    private static final int MAX_WORDS = 32768; // The most the saved length (an unsigned short) can hold
+    // Longer prefixes aren't indexed; a longer query word is looked up by its first MAX_KEY_LENGTH letters. Keeps
+    // the keys per word, and so the filter size, bounded.
+    private static final int MAX_KEY_LENGTH = 8;
+
+    private final File filterFile;
+    private final File dirtyMarker;
+    private final Map<UUID, long[]> filters = new ConcurrentHashMap<>(); // Each array guarded by itself
+    // Mailboxes being rebuilt right now. Entries exist only while a rebuild runs, so this stays small.
+    private final Map<UUID, Rebuild> rebuilding = new ConcurrentHashMap<>();
+
+    public MailSearchFilters(File dataFolder) {
+        this.filterFile = new File(dataFolder, "search.filters");
+        this.dirtyMarker = new File(dataFolder, "search.filters.dirty");
+    }
+
+    public void load() throws IOException {
+        if (filterFile.exists() && !dirtyMarker.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filterFile)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a search filter file");
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    UUID playerId = new UUID(in.readLong(), in.readLong());
+                    long[] bits = new long[in.readUnsignedShort()];
+                    for (int j = 0; j < bits.length; j++) {
+                        bits[j] = in.readLong();
+                    }
+                    if (bits.length > 0) {
+                        filters.put(playerId, bits);
+                    }
+                }
+            } catch (IOException e) {
+                filters.clear(); // Rebuilt as searches read the mailboxes again
+            }
+        }
+        if (!dirtyMarker.exists() && !dirtyMarker.createNewFile()) {
+            throw new IOException("Could not create " + dirtyMarker.getName());
+        }
+    }
+
+    public void save() throws IOException {
+        File tempFile = new File(filterFile.getParentFile(), filterFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            Map<UUID, long[]> copy = Map.copyOf(filters);
+            out.writeInt(copy.size());
+            for (Map.Entry<UUID, long[]> entry : copy.entrySet()) {
+                out.writeLong(entry.getKey().getMostSignificantBits());
+                out.writeLong(entry.getKey().getLeastSignificantBits());
+                long[] bits = entry.getValue();
+                synchronized (bits) {
+                    out.writeShort(bits.length);
+                    for (long word : bits) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), filterFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (dirtyMarker.exists() && !dirtyMarker.delete()) {
+            throw new IOException("Could not delete " + dirtyMarker.getName());
+        }
+    }
+
+    // New mail for a mailbox. Marked first, so a rebuild racing with this can tell its result is missing the mail.
+    public void add(UUID playerId, MailMessage mail) {
+        markChanged(playerId);
+        long[] bits = filters.get(playerId);
+        if (bits != null) {
+            Set<String> keys = new HashSet<>();
+            addKeys(mail, keys);
+            synchronized (bits) {
+                for (String key : keys) {
+                    set(bits, key);
+                }
+            }
+        }
+    }
+
+    // The mailbox changed somewhere this server can't see; it is read on every search until rebuilt
+    public void forget(UUID playerId) {
+        markChanged(playerId);
+        filters.remove(playerId);
+    }
+
+    // Call before reading the mailbox for rebuild, and follow with rebuild or cancelRebuild
+    public void beginRebuild(UUID playerId) {
+        rebuilding.compute(playerId, (id, rebuild) -> {
+            Rebuild started = rebuild != null ? rebuild : new Rebuild();
+            started.running++;
+            return started;
+        });
+    }
+
+    // The mailbox couldn't be read after beginRebuild
+    public void cancelRebuild(UUID playerId) {
+        endRebuild(playerId);
+    }
+
+    // All of the mailbox's mail, read after beginRebuild. Dropped if mail arrived in between, which leaves the old
+    // filter (already holding the new mail's words) or none.
+    public void rebuild(UUID playerId, Collection<MailMessage> mailList) {
+        Set<String> keys = new HashSet<>();
+        for (MailMessage mail : mailList) {
+            addKeys(mail, keys);
+        }
+        int words = MIN_WORDS;
+        while (words < MAX_WORDS && words * 64L < (long) keys.size() * BITS_PER_KEY) {
+            words *= 2;
+        }
+        long[] bits = new long[words];
+        for (String key : keys) {
+            set(bits, key);
+        }
+        filters.compute(playerId, (id, current) -> endRebuild(id) ? bits : current);
+    }
+
+    // True if no mail arrived while the rebuild ran. Overlapping rebuilds of one mailbox share the answer, which
+    // at worst drops a result that was in fact current.
+    private boolean endRebuild(UUID playerId) {
+        boolean[] unchanged = new boolean[1];
+        rebuilding.computeIfPresent(playerId, (id, rebuild) -> {
+            unchanged[0] = !rebuild.changed;
+            return --rebuild.running == 0 ? null : rebuild;
+        });
+        return unchanged[0];
+    }
+
+    private void markChanged(UUID playerId) {
+        rebuilding.computeIfPresent(playerId, (id, rebuild) -> {
+            rebuild.changed = true;
+            return rebuild;
+        });
+    }
+
+    // False only if the mailbox certainly lacks one of the words or the sender
+    public boolean mayMatch(UUID playerId, MailSearchQuery query) {
+        long[] bits = filters.get(playerId);
+        if (bits == null) {
+            return true;
+        }
+        synchronized (bits) {
+            if (query.getSender() != null && !isSet(bits, MailSearchQuery.SENDER_KEY + query.getSender())) {
+                return false;
+            }
+            for (String word : query.getWords()) {
+                if (!isSet(bits, word.length() > MAX_KEY_LENGTH ? word.substring(0, MAX_KEY_LENGTH) : word)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public int size() {
+        return filters.size();
+    }
+
+    // The prefixes of every word up to MAX_KEY_LENGTH, since query words match as prefixes, and the sender key whole
+    private static void addKeys(MailMessage mail, Set<String> keys) {
+        for (String word : MailSearchQuery.words(mail)) {
+            if (word.startsWith(MailSearchQuery.SENDER_KEY)) {
+                keys.add(word);
+                continue;
+            }
+            int longest = Math.min(word.length(), MAX_KEY_LENGTH);
+            for (int length = MailSearchQuery.MIN_WORD_LENGTH; length <= longest; length++) {
+                keys.add(word.substring(0, length));
+            }
+        }
+    }
+
+    private static void set(long[] bits, String key) {
+        for (int index : indexes(bits, key)) {
+            bits[index >>> 6] |= 1L << index;
+        }
+    }
+
+    private static boolean isSet(long[] bits, String key) {
+        for (int index : indexes(bits, key)) {
+            if ((bits[index >>> 6] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Double hashing over a 64-bit FNV-1a of the key
+    private static int[] indexes(long[] bits, String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        int size = bits.length * 64;
+        int[] indexes = new int[HASHES];
+        for (int i = 0; i < HASHES; i++) {
+            indexes[i] = Math.floorMod(h1 + i * h2, size);
+        }
+        return indexes;
+    }
+
+    private static final class Rebuild { // Guarded by the map's compute
+        int running;
+        boolean changed;
+    }
+}
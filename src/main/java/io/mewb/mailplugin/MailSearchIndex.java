@@ -0,0 +1,74 @@
+package io.mewb.mailplugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+// Inverted index over one mailbox's mail: each word of the subject, body and sender name, and the sender itself,
+// mapped to the messages containing it. Words are kept sorted, so a query word matches as a prefix with one range
+// lookup instead of a pass over the mail. Not thread-safe; the owner guards it.
+final class MailSearchIndex {
+
+    private final NavigableMap<String, Set<UUID>> postings = new TreeMap<>();
+    private final Map<UUID, MailMessage> messages = new HashMap<>();
+
+    void add(MailMessage mail) {
+        if (messages.putIfAbsent(mail.getMessageId(), mail) != null) {
+            return;
+        }
+        for (String word : MailSearchQuery.words(mail)) {
+            postings.computeIfAbsent(word, k -> new HashSet<>()).add(mail.getMessageId());
+        }
+    }
+
+    void remove(UUID messageId) {
+        MailMessage mail = messages.remove(messageId);
+        if (mail == null) {
+            return;
+        }
+        for (String word : MailSearchQuery.words(mail)) {
+            Set<UUID> ids = postings.get(word);
+            if (ids != null && ids.remove(messageId) && ids.isEmpty()) {
+                postings.remove(word);
+            }
+        }
+    }
+
+    // Matching messages, in no particular order
+    List<MailMessage> search(MailSearchQuery query) {
+        Set<UUID> candidates = null;
+        if (query.getSender() != null) {
+            candidates = new HashSet<>(postings.getOrDefault(MailSearchQuery.SENDER_KEY + query.getSender(), Set.of()));
+        }
+        for (String word : query.getWords()) {
+            Set<UUID> matching = new HashSet<>();
+            for (Set<UUID> ids : postings.subMap(word, true, word + Character.MAX_VALUE, true).values()) {
+                matching.addAll(ids);
+            }
+            if (candidates == null) {
+                candidates = matching;
+            } else {
+                candidates.retainAll(matching);
+            }
+            if (candidates.isEmpty()) {
+                return List.of();
+            }
+        }
+        Collection<UUID> ids = candidates == null ? messages.keySet() : candidates;
+        List<MailMessage> results = new ArrayList<>();
+        for (UUID id : ids) {
+            MailMessage mail = messages.get(id);
+            if (mail != null && query.matchesFilters(mail)) {
+                results.add(mail);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,145 @@
+package io.mewb.mailplugin;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// What /mail search looks for: words that must all appear in a message's subject, body or sender name, each
+// matching the start of a word ("diam" finds "Diamonds"), optionally narrowed to one sender and a range of send dates.
+public final class MailSearchQuery {
+
+    static final int MIN_WORD_LENGTH = 2;
+    static final String SENDER_KEY = "\u0000from:"; // Indexed next to the words, so a sender alone can be looked up
+
+    private final List<String> words;
+    private final String sender; // Lower case, null for anyone
+    private final long after; // Sent at or after, 0 for no bound
+    private final long before; // Sent before, Long.MAX_VALUE for no bound
+
+    private MailSearchQuery(List<String> words, String sender, long after, long before) {
+        this.words = words;
+        this.sender = sender;
+        this.after = after;
+        this.before = before;
+    }
+
+    // From command arguments such as: diamond trade from:Steve after:2024-01-31. Dates are whole days in the server's
+    // time zone. null if an argument is malformed or there is neither a word nor a sender to look for.
+    public static MailSearchQuery parse(List<String> args) {
+        List<String> words = new ArrayList<>();
+        String sender = null;
+        long after = 0;
+        long before = Long.MAX_VALUE;
+        try {
+            for (String arg : args) {
+                String lower = arg.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("from:") && lower.length() > 5) {
+                    sender = lower.substring(5);
+                } else if (lower.startsWith("after:")) {
+                    after = startOfDay(lower.substring(6));
+                } else if (lower.startsWith("before:")) {
+                    before = startOfDay(lower.substring(7));
+                } else {
+                    for (String word : words(arg)) {
+                        if (!words.contains(word)) {
+                            words.add(word);
+                        }
+                    }
+                }
+            }
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+        if (words.isEmpty() && sender == null) {
+            return null;
+        }
+        return new MailSearchQuery(words, sender, after, before);
+    }
+
+    private static long startOfDay(String date) {
+        return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    // The words to look up, lower case
+    public List<String> getWords() {
+        return words;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public boolean matches(MailMessage mail) {
+        if (!matchesFilters(mail)) {
+            return false;
+        }
+        Set<String> mailWords = words(mail);
+        for (String word : words) {
+            boolean found = false;
+            for (String mailWord : mailWords) {
+                if (mailWord.startsWith(word)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Sender and dates only, for candidates the words were already looked up for
+    boolean matchesFilters(MailMessage mail) {
+        if (sender != null && !sender.equalsIgnoreCase(mail.getSenderName())) {
+            return false;
+        }
+        return mail.getSentTimestamp() >= after && mail.getSentTimestamp() < before;
+    }
+
+    // Every word of the subject, body and sender name, plus the sender key
+    static Set<String> words(MailMessage mail) {
+        Set<String> words = new LinkedHashSet<>();
+        words.addAll(words(mail.getSubject()));
+        words.addAll(words(mail.getBody()));
+        words.addAll(words(mail.getSenderName()));
+        if (mail.getSenderName() != null) {
+            words.add(senderKey(mail.getSenderName()));
+        }
+        return words;
+    }
+
+    static String senderKey(String senderName) {
+        return SENDER_KEY + senderName.toLowerCase(Locale.ROOT);
+    }
+
+    // Lower case runs of letters and digits, with color codes removed; shorter than MIN_WORD_LENGTH is dropped
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (c == '§' && i + 1 < text.length()) {
+                i++; // Skip the code after the section sign
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else {
+                if (word.length() >= MIN_WORD_LENGTH) {
+                    words.add(word.toString());
+                }
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+}
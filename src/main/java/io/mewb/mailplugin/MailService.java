@@ -0,0 +1,45 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+// Entry point for other plugins, registered with Bukkit's ServicesManager:
+//
+//   MailService mail = Bukkit.getServicesManager().load(MailService.class);
+//   mail.send(playerId, "Shop", "Your order", "Thanks!", List.of(item)).thenAccept(id -> ...);
+//
+// Every method may be called from any thread and returns without touching disk. Work is queued for a small
+// pool; when the queue is full the returned future fails with a RejectedExecutionException rather than
+// blocking the caller, and isSaturated() turns true a little before that so callers can slow down first.
+// Futures complete on the pool's threads, so hop back to the main thread before touching the world.
+public interface MailService {
+
+    // items may be null or empty. Items are copied before this returns. Completes with the new message's id.
+    CompletableFuture<UUID> send(UUID recipientId, String senderName, String subject, String body, List<ItemStack> items);
+
+    // The same message to every recipient, sharing one stored copy of the items. Completes with how many got it.
+    CompletableFuture<Integer> sendBatch(Collection<UUID> recipientIds, String senderName, String subject, String body, List<ItemStack> items);
+
+    // Delivered at deliverAt (epoch millis), also across restarts; a time already past delivers within a second.
+    // Completes with the message's id once it is saved.
+    CompletableFuture<UUID> schedule(UUID recipientId, String senderName, String subject, String body, List<ItemStack> items, long deliverAt);
+
+    // sendBatch, delivered at deliverAt. Completes with how many were scheduled.
+    CompletableFuture<Integer> scheduleBatch(Collection<UUID> recipientIds, String senderName, String subject, String body,
+                                             List<ItemStack> items, long deliverAt);
+
+    CompletableFuture<Integer> unreadCount(UUID playerId);
+
+    // Unexpired mail, newest first; page is 1-based. The messages are copies: changing them changes nothing stored.
+    CompletableFuture<List<MailMessage>> fetchPage(UUID playerId, int page, int pageSize);
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    boolean isSaturated();
+}
@@ -0,0 +1,97 @@
+package io.mewb.mailplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+public interface MailStorage {
+
+    String getName();
+
+    List<MailMessage> loadMailbox(UUID playerId) throws IOException;
+
+    // Replaces everything stored for the player; an empty list removes the mailbox
+    void saveMailbox(UUID playerId, List<MailMessage> mailList) throws IOException;
+
+    // saveMailbox for many players at once, for bulk copies. Backends with transactions write them as one.
+    default void saveMailboxes(Map<UUID, List<MailMessage>> mailboxes) throws IOException {
+        for (Map.Entry<UUID, List<MailMessage>> entry : mailboxes.entrySet()) {
+            saveMailbox(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // Must be idempotent: appending a message id that is already stored does nothing
+    void appendMessage(MailMessage mail) throws IOException;
+
+    void updateFlags(UUID playerId, UUID messageId, boolean read, boolean claimed) throws IOException;
+
+    void deleteMessages(UUID playerId, Collection<UUID> messageIds) throws IOException;
+
+    // Removes the player's messages that expired before now, reporting each as (message id, attachment id it still
+    // held or null). Returns the earliest expiry left in the mailbox, 0 if nothing in it expires.
+    long deleteExpired(UUID playerId, long now, BiConsumer<UUID, String> removed) throws IOException;
+
+    // Earliest expiry of every mailbox that has one, for rebuilding the expiry index
+    default Map<UUID, Long> scanExpiries() throws IOException {
+        Map<UUID, Long> expiries = new HashMap<>();
+        for (UUID playerId : listMailboxes()) {
+            try {
+                long earliest = ExpiryIndex.earliestExpiry(loadMailbox(playerId));
+                if (earliest != 0) {
+                    expiries.put(playerId, earliest);
+                }
+            } catch (IOException e) {
+                // Unreadable mailboxes are reported when they are loaded; they have nothing to expire until then
+            }
+        }
+        return expiries;
+    }
+
+    int countUnread(UUID playerId) throws IOException;
+
+    Set<UUID> listMailboxes() throws IOException;
+
+    // False when single changes cost a full mailbox rewrite, in which case the manager batches them into saveMailbox
+    boolean isIncremental();
+
+    default void applyChanges(UUID playerId, List<MailChange> changes) throws IOException {
+        for (MailChange change : changes) {
+            switch (change.getType()) {
+                case SEND -> appendMessage(change.getMessage());
+                case FLAGS -> updateFlags(playerId, change.getMessageId(), change.isRead(), change.isClaimed());
+                case REMOVE -> deleteMessages(playerId, List.of(change.getMessageId()));
+            }
+        }
+    }
+
+    // Moves a mailbox that failed with CorruptMailException out of the way, keeping the files for manual recovery
+    default void quarantine(UUID playerId) throws IOException {
+    }
+
+    // Bytes written to disk since startup, or 0 where the backend can't tell
+    default long getBytesWritten() {
+        return 0;
+    }
+
+    default void close() {
+    }
+
+    // Moves file into a corrupt/ folder next to it, with a timestamp so repeated failures don't collide
+    static void moveToQuarantine(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        File folder = new File(file.getParentFile(), "corrupt");
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Could not create " + folder.getPath());
+        }
+        Files.move(file.toPath(), new File(folder, file.getName() + "." + System.currentTimeMillis()).toPath());
+    }
+}
@@ -0,0 +1,156 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+// Copies every mailbox from one backend to another in batches, off the main thread. Each batch is written with
+// one saveMailboxes call, a single transaction where the backend has them. When the source is the storage in use,
+// MailManager notes every mailbox written from the start of the copy: those are copied again at the end, and
+// again at shutdown, so the target is current when the server restarts on it.
+public class MailStorageMigrator implements Runnable {
+
+    private static final AtomicBoolean RUNNING = new AtomicBoolean();
+
+    private final Mailplugin plugin;
+    private final MailStorage source;
+    private final MailStorage target;
+    private final boolean sourceActive;
+    private final int batchSize;
+    private final CommandSender sender;
+
+    public MailStorageMigrator(Mailplugin plugin, MailStorage source, MailStorage target, boolean sourceActive, int batchSize, CommandSender sender) {
+        this.plugin = plugin;
+        this.source = source;
+        this.target = target;
+        this.sourceActive = sourceActive;
+        this.batchSize = Math.max(1, batchSize);
+        this.sender = sender;
+    }
+
+    public static boolean isRunning() {
+        return RUNNING.get();
+    }
+
+    public boolean start() {
+        if (!RUNNING.compareAndSet(false, true)) {
+            return false;
+        }
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, this);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        long started = System.currentTimeMillis();
+        MailManager mailManager = plugin.getMailManager();
+        boolean finished = false;
+        try {
+            if (sourceActive) {
+                mailManager.trackMigrationWrites(); // Before listing, so a mailbox written from here on can't be missed
+            }
+            List<UUID> playerIds = new ArrayList<>(source.listMailboxes());
+            report("Migrating " + playerIds.size() + " mailboxes from " + source.getName() + " to " + target.getName() + "...");
+            int[] copied = copy(playerIds, false);
+            String caughtUp = "";
+            if (sourceActive) {
+                // Mail kept changing during the copy; copying what changed again is a much shorter pass
+                mailManager.flushPendingWrites();
+                int[] again = copy(mailManager.takeMigrationWrites(), true);
+                mailManager.keepMigrationInSync(target.getName());
+                caughtUp = " Copied " + again[0] + " mailboxes again that changed meanwhile; later changes are copied at shutdown.";
+                copied[2] += again[2];
+            }
+            report("Migration finished: " + copied[0] + " mailboxes, " + copied[1] + " messages, " + copied[2] + " failed, in "
+                    + (System.currentTimeMillis() - started) / 1000 + "s." + caughtUp
+                    + " Set storage.mode to " + target.getName() + " and restart to use it.");
+            finished = true;
+        } catch (IOException | RuntimeException e) {
+            plugin.getLogger().log(Level.SEVERE, "Mail storage migration aborted", e);
+            report("Migration aborted: " + e.getMessage());
+        } finally {
+            if (sourceActive && !finished) {
+                mailManager.keepMigrationInSync(null);
+            }
+            target.close();
+            if (!sourceActive) {
+                source.close();
+            }
+            RUNNING.set(false);
+        }
+    }
+
+    // Copies the given mailboxes a batch at a time. With replace, empty mailboxes are written too, which removes
+    // them from the target. Returns mailboxes copied, messages copied and mailboxes that failed.
+    int[] copy(Collection<UUID> playerIds, boolean replace) {
+        int[] counts = new int[3];
+        Map<UUID, List<MailMessage>> batch = new LinkedHashMap<>();
+        int done = 0;
+        for (UUID playerId : playerIds) {
+            try {
+                List<MailMessage> mailList = source.loadMailbox(playerId);
+                if (replace || !mailList.isEmpty()) {
+                    batch.put(playerId, mailList);
+                } else {
+                    counts[0]++;
+                }
+            } catch (IOException e) {
+                counts[2]++;
+                plugin.getLogger().log(Level.WARNING, "Could not migrate mailbox of player " + playerId, e);
+            }
+            done++;
+            if (batch.size() >= batchSize) {
+                writeBatch(batch, counts);
+                if (done < playerIds.size()) {
+                    report("Migrated " + done + "/" + playerIds.size() + " mailboxes...");
+                }
+            }
+        }
+        writeBatch(batch, counts);
+        return counts;
+    }
+
+    private void writeBatch(Map<UUID, List<MailMessage>> batch, int[] counts) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            target.saveMailboxes(batch);
+            for (List<MailMessage> mailList : batch.values()) {
+                counts[0]++;
+                counts[1] += mailList.size();
+            }
+        } catch (IOException e) {
+            // Retry one by one, so a single bad mailbox doesn't fail the rest of the batch
+            plugin.getLogger().log(Level.WARNING, "Could not write a batch of " + batch.size() + " mailboxes, retrying them one at a time", e);
+            batch.forEach((playerId, mailList) -> {
+                try {
+                    target.saveMailbox(playerId, mailList);
+                    counts[0]++;
+                    counts[1] += mailList.size();
+                } catch (IOException e2) {
+                    counts[2]++;
+                    plugin.getLogger().log(Level.WARNING, "Could not migrate mailbox of player " + playerId, e2);
+                }
+            });
+        }
+        batch.clear();
+    }
+
+    private void report(String message) {
+        plugin.getLogger().info(message);
+        if (sender instanceof Player) {
+            Bukkit.getScheduler().runTask(plugin, () -> sender.sendMessage("§e[Mail] " + message));
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package io.mewb.mailplugin;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+// How servers sharing mail reach each other. Every event published is delivered to every other server on the
+// network, each server's own events in the order it published them; there is no order between servers. Events
+// published while a server is down may be lost to it, which MailNetwork tolerates.
+public interface MailTransport {
+
+    String getName();
+
+    // receiver is called from the transport's own thread, one event at a time
+    void start(Consumer<MailEvent> receiver) throws IOException;
+
+    void publish(MailEvent event) throws IOException;
+
+    // Upper bound on how long a published event takes to reach the other servers, barring failures
+    long getDelayMillis();
+
+    default void close() {
+    }
+}
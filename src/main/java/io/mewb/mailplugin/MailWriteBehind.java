@@ -0,0 +1,204 @@
+package io.mewb.mailplugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+public class MailWriteBehind {
+
+    private static final int SHUTDOWN_ATTEMPTS = 3;
+
+    private final Mailplugin plugin;
+    private final MailManager mailManager;
+    private final long flushIntervalMillis;
+    private final long maxDelayMillis;
+    private final int maxPending;
+
+    // Insertion ordered so the oldest dirty mailbox is always first. Guarded by "this".
+    private final Map<UUID, PendingWrite> pending = new LinkedHashMap<>();
+    // Held from taking one mailbox's entry out of the queue until it is written, so changes for a mailbox
+    // always reach the disk in order. Only ever held for a single write. Always acquired before "this".
+    private final Object ioLock = new Object();
+    // Mailboxes taken out of the queue whose write hasn't finished yet; still dirty as far as eviction is concerned.
+    // Guarded by "this".
+    private final Set<UUID> inFlight = new HashSet<>();
+    private ScheduledExecutorService flusher;
+
+    public MailWriteBehind(Mailplugin plugin, MailManager mailManager) {
+        this.plugin = plugin;
+        this.mailManager = mailManager;
+        this.flushIntervalMillis = Math.max(50, plugin.getConfig().getLong("storage.write-behind.flush-interval-ms", 2000));
+        this.maxDelayMillis = Math.max(flushIntervalMillis, plugin.getConfig().getLong("storage.write-behind.max-delay-ms", 10000));
+        this.maxPending = Math.max(1, plugin.getConfig().getInt("storage.write-behind.max-pending", 5000));
+    }
+
+    public void start() {
+        // A dedicated thread rather than a Bukkit async task, so onDisable can wait for an in-flight write to finish
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MailPlugin-Flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushDue, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // changes are written together by the next flush. Empty for non-incremental backends, where the whole mailbox
+    // is rewritten anyway.
+    public void markDirty(UUID playerId, List<MailChange> changes) {
+        long now = System.currentTimeMillis();
+        boolean overflow;
+        synchronized (this) {
+            PendingWrite write = pending.computeIfAbsent(playerId, k -> new PendingWrite(now));
+            write.lastDirty = now;
+            write.changes.addAll(changes);
+            overflow = pending.size() > maxPending;
+        }
+        if (overflow) {
+            // Queue is full: the caller pays for writing out the oldest mailbox, like a caller-runs policy
+            UUID oldest;
+            synchronized (this) {
+                Iterator<UUID> it = pending.keySet().iterator();
+                oldest = it.hasNext() ? it.next() : null;
+            }
+            if (oldest != null) {
+                writeNow(oldest);
+            }
+        }
+    }
+
+    public synchronized boolean isDirty(UUID playerId) {
+        return pending.containsKey(playerId) || inFlight.contains(playerId);
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private void flushDue() {
+        long now = System.currentTimeMillis();
+        List<UUID> due = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<UUID, PendingWrite> entry : pending.entrySet()) {
+                PendingWrite write = entry.getValue();
+                // Wait for the mailbox to go quiet for one interval, but never hold it longer than max-delay
+                if (now - write.lastDirty >= flushIntervalMillis || now - write.firstDirty >= maxDelayMillis) {
+                    due.add(entry.getKey());
+                }
+            }
+        }
+        due.forEach(this::writeNow);
+    }
+
+    // Writes one mailbox's pending changes now, e.g. before another server takes it over
+    public void flush(UUID playerId) {
+        writeNow(playerId);
+    }
+
+    // Returns how many mailboxes were written; failed ones go back in the queue
+    public int flushAll() {
+        List<UUID> all;
+        synchronized (this) {
+            all = new ArrayList<>(pending.keySet());
+        }
+        int written = 0;
+        for (UUID playerId : all) {
+            if (writeNow(playerId)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    // Takes whatever is queued for the mailbox and writes it, holding ioLock for just this one write. Returns false
+    // if the write failed or something else already wrote it.
+    private boolean writeNow(UUID playerId) {
+        synchronized (ioLock) {
+            PendingWrite write;
+            synchronized (this) {
+                write = pending.remove(playerId);
+                if (write == null) {
+                    return false;
+                }
+                inFlight.add(playerId);
+            }
+            return write(playerId, write);
+        }
+    }
+
+    // Caller must hold ioLock and have moved the entry from pending to inFlight
+    private boolean write(UUID playerId, PendingWrite write) {
+        try {
+            mailManager.writeMailForPlayer(playerId, write.changes);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            plugin.getLogger().log(Level.SEVERE, "Write-behind flush failed for player " + playerId + ", will retry", e);
+            requeue(playerId, write.changes);
+            return false;
+        } finally {
+            synchronized (this) {
+                inFlight.remove(playerId);
+            }
+        }
+    }
+
+    // Puts failed changes back ahead of anything queued since, so the backend sees them in order
+    private synchronized void requeue(UUID playerId, List<MailChange> changes) {
+        PendingWrite retry = new PendingWrite(System.currentTimeMillis());
+        retry.changes.addAll(changes);
+        PendingWrite newer = pending.remove(playerId);
+        if (newer != null) {
+            retry.changes.addAll(newer.changes);
+        }
+        pending.put(playerId, retry);
+    }
+
+    public void shutdown() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                if (!flusher.awaitTermination(30, TimeUnit.SECONDS)) {
+                    plugin.getLogger().warning("Mail flusher did not stop in time, flushing remaining mail on the main thread.");
+                    flusher.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Nothing will retry after this, so give failed writes a few more chances before giving up on them
+        int written = 0;
+        for (int attempt = 0; attempt < SHUTDOWN_ATTEMPTS && getPendingCount() > 0; attempt++) {
+            written += flushAll();
+        }
+        if (written > 0) {
+            plugin.getLogger().info("Flushed " + written + " pending mailbox write(s).");
+        }
+        Set<UUID> unwritten;
+        synchronized (this) {
+            unwritten = new HashSet<>(pending.keySet());
+        }
+        if (!unwritten.isEmpty()) {
+            plugin.getLogger().severe("Could not write mail for " + unwritten.size() + " player(s) before shutdown, their latest changes are lost: " + unwritten);
+        }
+    }
+
+    private static final class PendingWrite {
+        final long firstDirty;
+        long lastDirty;
+        final List<MailChange> changes = new ArrayList<>();
+
+        PendingWrite(long now) {
+            this.firstDirty = now;
+            this.lastDirty = now;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package io.mewb.mailplugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+// One player's mail: indexed by message id, kept in send order, with running counts so lookups, claims and the
+// login notice neither scan nor copy. Flags must be changed through markRead/markClaimed so the counts stay right.
+//
+// Concurrency: writers serialize on the mailbox's monitor. Readers never lock: the id index is a concurrent map,
+// the counters are volatile, and the ordered views are immutable lists republished after each change (rebuilt
+// lazily, so a burst of writes costs one copy). A reader may see the state just before a concurrent write,
+// never a half-applied one.
+//
+// Lifecycle: code that changes a mailbox brackets the change and its recordChange with acquire/release. The cache
+// only evicts a mailbox through retireIfIdle, which fails while anyone holds it; once retired, acquire fails and
+// the caller looks the mailbox up again, getting a fresh copy from storage. This keeps a change from landing on a
+// copy that has already been dropped from the cache.
+//
+// Search: the first search builds an inverted index of the mailbox, which from then on follows every add and remove.
+public class Mailbox {
+
+    private final UUID ownerId;
+    private final Map<UUID, MailMessage> byId = new ConcurrentHashMap<>();
+    // Short names for commands: "1", "2", ... in the order messages arrive. Only stable while the mailbox stays
+    // loaded, which it does while its owner is online; links that must survive a reload use the message id.
+    private final Map<String, UUID> byHandle = new ConcurrentHashMap<>();
+    private final Map<UUID, String> handles = new ConcurrentHashMap<>();
+
+    // Guarded by "this"
+    private final List<MailMessage> bySentTime = new ArrayList<>(); // Oldest first
+    private final Map<UUID, MailMessage> claimable = new LinkedHashMap<>(); // Unclaimed messages with items
+    private MailSearchIndex searchIndex; // null until the first search
+    private final Set<UUID> removedIds = new HashSet<>(); // Removed here, possibly still in storage; see forgetRemoved
+    private int users;
+    private boolean retired;
+    private int nextHandle;
+
+    // Written under "this", read without it
+    private volatile int unread;
+    private volatile int notifiable; // Unread, minus item mail whose items were already claimed: what the login notice counts
+    private volatile List<MailMessage> sortedView; // null when stale
+    private volatile List<MailMessage> claimableView;
+
+    public Mailbox(UUID ownerId, List<MailMessage> mailList) {
+        this.ownerId = ownerId;
+        List<MailMessage> sorted = new ArrayList<>(mailList);
+        sorted.sort(Comparator.comparingLong(MailMessage::getSentTimestamp));
+        synchronized (this) {
+            for (MailMessage mail : sorted) {
+                if (byId.putIfAbsent(mail.getMessageId(), mail) == null) {
+                    bySentTime.add(mail);
+                    count(mail, 1);
+                    assignHandle(mail);
+                }
+            }
+        }
+    }
+
+    public UUID getOwnerId() {
+        return ownerId;
+    }
+
+    // False if the mailbox was evicted; look it up again
+    public synchronized boolean acquire() {
+        if (retired) {
+            return false;
+        }
+        users++;
+        return true;
+    }
+
+    public synchronized void release() {
+        users--;
+    }
+
+    // Called by the cache when it drops the mailbox
+    synchronized boolean retireIfIdle() {
+        if (users > 0) {
+            return false;
+        }
+        retired = true;
+        return true;
+    }
+
+    // False if a message with this id is already here
+    public synchronized boolean add(MailMessage mail) {
+        if (byId.putIfAbsent(mail.getMessageId(), mail) != null) {
+            return false;
+        }
+        // New mail is almost always the newest, so this walks back zero steps
+        int index = bySentTime.size();
+        while (index > 0 && bySentTime.get(index - 1).getSentTimestamp() > mail.getSentTimestamp()) {
+            index--;
+        }
+        bySentTime.add(index, mail);
+        count(mail, 1);
+        assignHandle(mail);
+        if (searchIndex != null) {
+            searchIndex.add(mail);
+        }
+        changed();
+        return true;
+    }
+
+    public MailMessage get(UUID messageId) {
+        return byId.get(messageId);
+    }
+
+    // null if no message has that handle
+    public UUID resolveHandle(String handle) {
+        return byHandle.get(handle);
+    }
+
+    public String getHandle(UUID messageId) {
+        return handles.get(messageId);
+    }
+
+    // Returns false if the message is missing or already read
+    public synchronized boolean markRead(UUID messageId) {
+        MailMessage mail = byId.get(messageId);
+        if (mail == null || mail.isRead()) {
+            return false;
+        }
+        count(mail, -1);
+        mail.setRead(true);
+        count(mail, 1);
+        changed();
+        return true;
+    }
+
+    // Returns false if the message is missing or already claimed, so of two racing claims exactly one wins
+    public synchronized boolean markClaimed(UUID messageId) {
+        MailMessage mail = byId.get(messageId);
+        if (mail == null || mail.isClaimed()) {
+            return false;
+        }
+        count(mail, -1);
+        mail.setClaimed(true);
+        count(mail, 1);
+        changed();
+        return true;
+    }
+
+    // Batch forms of the above: one lock hold and one view rebuild for the whole batch, so other writers see all of
+    // it or none of it. Each returns the messages it actually changed.
+    public synchronized List<MailMessage> markAllRead() {
+        List<MailMessage> changed = new ArrayList<>();
+        for (MailMessage mail : bySentTime) {
+            if (!mail.isRead()) {
+                count(mail, -1);
+                mail.setRead(true);
+                count(mail, 1);
+                changed.add(mail);
+            }
+        }
+        if (!changed.isEmpty()) {
+            changed();
+        }
+        return changed;
+    }
+
+    public synchronized List<MailMessage> markAllClaimed(Collection<UUID> messageIds) {
+        List<MailMessage> changed = new ArrayList<>();
+        for (UUID messageId : messageIds) {
+            MailMessage mail = byId.get(messageId);
+            if (mail != null && !mail.isClaimed()) {
+                count(mail, -1);
+                mail.setClaimed(true);
+                count(mail, 1);
+                changed.add(mail);
+            }
+        }
+        if (!changed.isEmpty()) {
+            changed();
+        }
+        return changed;
+    }
+
+    public synchronized List<MailMessage> removeAll(Predicate<MailMessage> filter) {
+        List<MailMessage> removed = new ArrayList<>();
+        Iterator<MailMessage> it = bySentTime.iterator();
+        while (it.hasNext()) {
+            MailMessage mail = it.next();
+            if (filter.test(mail)) {
+                it.remove();
+                byId.remove(mail.getMessageId());
+                count(mail, -1);
+                dropHandle(mail);
+                noteRemoved(mail);
+                removed.add(mail);
+            }
+        }
+        if (!removed.isEmpty()) {
+            changed();
+        }
+        return removed;
+    }
+
+    public synchronized MailMessage remove(UUID messageId) {
+        MailMessage mail = byId.remove(messageId);
+        if (mail != null) {
+            bySentTime.remove(mail);
+            count(mail, -1);
+            dropHandle(mail);
+            noteRemoved(mail);
+            changed();
+        }
+        return mail;
+    }
+
+    // Removes messages that expired before now into removed, and returns the earliest expiry left (0 for none)
+    public synchronized long removeExpired(long now, List<MailMessage> removed) {
+        long earliest = 0;
+        Iterator<MailMessage> it = bySentTime.iterator();
+        while (it.hasNext()) {
+            MailMessage mail = it.next();
+            if (mail.isExpired(now)) {
+                it.remove();
+                byId.remove(mail.getMessageId());
+                count(mail, -1);
+                dropHandle(mail);
+                noteRemoved(mail);
+                removed.add(mail);
+            } else if (mail.getExpiryTimestamp() != 0 && (earliest == 0 || mail.getExpiryTimestamp() < earliest)) {
+                earliest = mail.getExpiryTimestamp();
+            }
+        }
+        if (!removed.isEmpty()) {
+            changed();
+        }
+        return earliest;
+    }
+
+    // Unexpired mail, oldest first
+    public List<MailMessage> list(long now) {
+        List<MailMessage> all = sorted();
+        List<MailMessage> visible = new ArrayList<>(all.size());
+        for (MailMessage mail : all) {
+            if (!mail.isExpired(now)) {
+                visible.add(mail);
+            }
+        }
+        return visible;
+    }
+
+    // Matching messages, expired ones included, in no particular order. Holds the lock, unlike the other readers,
+    // but only for index lookups.
+    public synchronized List<MailMessage> search(MailSearchQuery query) {
+        if (searchIndex == null) {
+            searchIndex = new MailSearchIndex();
+            bySentTime.forEach(searchIndex::add);
+        }
+        return searchIndex.search(query);
+    }
+
+    // Immutable, oldest first
+    public List<MailMessage> getClaimable() {
+        List<MailMessage> view = claimableView;
+        if (view != null) {
+            return view;
+        }
+        synchronized (this) {
+            if (claimableView == null) {
+                claimableView = Collections.unmodifiableList(new ArrayList<>(claimable.values()));
+            }
+            return claimableView;
+        }
+    }
+
+    // Everything, including mail that expired but hasn't been cleaned up yet, for writing to storage. Immutable.
+    public List<MailMessage> snapshot() {
+        return sorted();
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    public int getUnreadCount() {
+        return unread;
+    }
+
+    public int getNotifiableCount() {
+        return notifiable;
+    }
+
+    public int getClaimableCount() {
+        return getClaimable().size();
+    }
+
+    private List<MailMessage> sorted() {
+        List<MailMessage> view = sortedView;
+        if (view != null) {
+            return view;
+        }
+        synchronized (this) {
+            if (sortedView == null) {
+                sortedView = Collections.unmodifiableList(new ArrayList<>(bySentTime));
+            }
+            return sortedView;
+        }
+    }
+
+    // Caller holds "this"
+    private void assignHandle(MailMessage mail) {
+        String handle = Integer.toString(++nextHandle);
+        byHandle.put(handle, mail.getMessageId());
+        handles.put(mail.getMessageId(), handle);
+    }
+
+    // Caller holds "this"
+    private void dropHandle(MailMessage mail) {
+        String handle = handles.remove(mail.getMessageId());
+        if (handle != null) {
+            byHandle.remove(handle);
+        }
+    }
+
+    // Whether a message was removed from this copy, so a merge with storage written elsewhere doesn't bring it back
+    public synchronized boolean wasRemoved(UUID messageId) {
+        return removedIds.contains(messageId);
+    }
+
+    // Removals not yet known to be in storage. A merge takes this before reading storage, since a write that
+    // finishes during its read may forget some of them.
+    public synchronized Set<UUID> getRemoved() {
+        return removedIds.isEmpty() ? Set.of() : new HashSet<>(removedIds);
+    }
+
+    // Forgets removals that storage has caught up with: those no longer among the stored ids
+    public synchronized void retainRemoved(Set<UUID> storedIds) {
+        removedIds.retainAll(storedIds);
+    }
+
+    // Forgets removals a successful write has just put in storage
+    public synchronized void forgetRemoved(Collection<UUID> messageIds) {
+        if (!removedIds.isEmpty()) {
+            removedIds.removeAll(messageIds);
+        }
+    }
+
+    // Caller holds "this"
+    private void noteRemoved(MailMessage mail) {
+        removedIds.add(mail.getMessageId());
+        if (searchIndex != null) {
+            searchIndex.remove(mail.getMessageId());
+        }
+    }
+
+    // Caller holds "this"
+    private void changed() {
+        sortedView = null;
+        claimableView = null;
+    }
+
+    // Adds (delta 1) or removes (delta -1) the message's contribution to the counters. Caller holds "this".
+    private void count(MailMessage mail, int delta) {
+        boolean hasItems = mail.hasItems();
+        if (!mail.isRead()) {
+            unread += delta;
+            if (!hasItems || !mail.isClaimed()) {
+                notifiable += delta;
+            }
+        }
+        if (hasItems && !mail.isClaimed()) {
+            if (delta > 0) {
+                claimable.put(mail.getMessageId(), mail);
+            } else {
+                claimable.remove(mail.getMessageId());
+            }
+        }
+    }
+}
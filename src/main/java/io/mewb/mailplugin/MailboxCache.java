@@ -0,0 +1,164 @@
+package io.mewb.mailplugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+public class MailboxCache {
+
+    private final int maxSize;
+    // Access ordered, so iteration starts at the least recently used mailbox
+    private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Same entries, for lookups that must not count as an access (get on "entries" moves the entry to the back)
+    private final Map<UUID, Entry> index = new HashMap<>();
+    private final Set<UUID> pinned = new HashSet<>(); // Online players, never evicted
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public MailboxCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    public synchronized Mailbox get(UUID playerId) {
+        Entry entry = entries.get(playerId);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.mailbox;
+    }
+
+    // No stats and no LRU touch, for background readers such as the flusher
+    public synchronized Mailbox peek(UUID playerId) {
+        Entry entry = index.get(playerId);
+        return entry == null ? null : entry.mailbox;
+    }
+
+    public synchronized boolean contains(UUID playerId) {
+        return entries.containsKey(playerId);
+    }
+
+    // Keeps an existing entry if another thread loaded the mailbox first, and returns whichever mailbox won
+    public synchronized Mailbox putIfAbsent(UUID playerId, Mailbox mailbox, long evictAfter) {
+        Entry entry = entries.get(playerId);
+        if (entry != null) {
+            entry.evictAfter = Math.max(entry.evictAfter, evictAfter);
+            return entry.mailbox;
+        }
+        entry = new Entry(mailbox, evictAfter);
+        entries.put(playerId, entry);
+        index.put(playerId, entry);
+        return mailbox;
+    }
+
+    public synchronized void extend(UUID playerId, long evictAfter) {
+        Entry entry = entries.get(playerId);
+        if (entry != null) {
+            entry.evictAfter = Math.max(entry.evictAfter, evictAfter);
+        }
+    }
+
+    public synchronized void pin(UUID playerId) {
+        pinned.add(playerId);
+    }
+
+    public synchronized void unpin(UUID playerId, long evictAfter) {
+        pinned.remove(playerId);
+        Entry entry = entries.get(playerId);
+        if (entry != null) {
+            entry.evictAfter = evictAfter;
+        }
+    }
+
+    public synchronized boolean isPinned(UUID playerId) {
+        return pinned.contains(playerId);
+    }
+
+    public synchronized List<UUID> keys() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public synchronized List<Mailbox> values() {
+        List<Mailbox> mailboxes = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            mailboxes.add(entry.mailbox);
+        }
+        return mailboxes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Drops mailboxes whose idle time ran out, then the least recently used ones until back under the cap.
+    // Mailboxes that still have unwritten changes or are being changed right now are skipped; they are picked up
+    // on a later pass.
+    public synchronized int evict(long now, Predicate<UUID> isDirty) {
+        int removed = 0;
+        int overCap = entries.size() - maxSize;
+        Iterator<Map.Entry<UUID, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<UUID, Entry> e = it.next();
+            UUID playerId = e.getKey();
+            if (pinned.contains(playerId)) {
+                continue;
+            }
+            boolean expired = e.getValue().evictAfter <= now;
+            // retireIfIdle last: once it succeeds the mailbox must leave the cache
+            if ((expired || removed < overCap) && !isDirty.test(playerId) && e.getValue().mailbox.retireIfIdle()) {
+                it.remove();
+                index.remove(playerId);
+                removed++;
+            }
+        }
+        evictions += removed;
+        return removed;
+    }
+
+    // Drops one mailbox, pinned or not, so the next access reloads it from storage. False if it has unwritten
+    // changes or is being changed right now.
+    public synchronized boolean invalidate(UUID playerId, Predicate<UUID> isDirty) {
+        Entry entry = entries.get(playerId);
+        if (entry == null) {
+            return true;
+        }
+        if (isDirty.test(playerId) || !entry.mailbox.retireIfIdle()) {
+            return false;
+        }
+        entries.remove(playerId);
+        index.remove(playerId);
+        return true;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private static final class Entry {
+        final Mailbox mailbox;
+        long evictAfter;
+
+        Entry(Mailbox mailbox, long evictAfter) {
+            this.mailbox = mailbox;
+            this.evictAfter = evictAfter;
+        }
+    }
+}
@@ -2,13 +2,27 @@ package io.mewb.mailplugin;
 
 import org.bukkit.Bukkit;
 import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitTask;
 
+import java.util.concurrent.ScheduledFuture;
+
 public final class Mailplugin extends JavaPlugin {
 
     private MailManager mailManager;
-    private BukkitTask expirationTask;
+    private BroadcastManager broadcastManager;
+    private MailBookRenderer bookRenderer;
+    private MailPreloader preloader;
+    private PlayerDirectory playerDirectory;
+    private QueuedMailService mailService;
+    private WorkScheduler workScheduler;
+    private MailMetrics metrics;
+    private ScheduledFuture<?> expirationTask;
+    private ScheduledFuture<?> archiveTask;
+    private ScheduledFuture<?> scheduledMailTask;
+    private BukkitTask cacheSweepTask;
 
     @Override
     public void onLoad() {
@@ -24,9 +38,23 @@ public final class Mailplugin extends JavaPlugin {
         saveDefaultConfig();
 
 
-        this.mailManager = new MailManager(this);
-        mailManager.loadAllMail(); // Load mail after MailManager is initialized
+        startCore();
+        this.playerDirectory = new PlayerDirectory(getDataFolder(), getLogger());
+        playerDirectory.load();
+        for (Player player : Bukkit.getOnlinePlayers()) { // Players already online after a reload
+            mailManager.prefetchMailbox(player.getUniqueId());
+            playerDirectory.record(player.getUniqueId(), player.getName());
+        }
+
+
+        this.broadcastManager = new BroadcastManager(this, mailManager);
+        broadcastManager.start(); // Resumes broadcasts interrupted by a restart
+
 
+        this.bookRenderer = new MailBookRenderer(this, mailManager);
+
+        this.mailService = new QueuedMailService(this, mailManager);
+        getServer().getServicesManager().register(MailService.class, mailService, this, ServicePriority.Normal);
 
         MailCommand mailCommand = new MailCommand(this, mailManager);
         getCommand("mail").setExecutor(mailCommand);
@@ -36,35 +64,128 @@ public final class Mailplugin extends JavaPlugin {
         getServer().getPluginManager().registerEvents(new MailListener(this, mailManager), this);
 
 
-        long cleanupIntervalTicks = getConfig().getLong("mail.cleanup-interval-minutes", 60) * 60 * 20; // Default 1 hour
-        if (cleanupIntervalTicks > 0) {
-            this.expirationTask = Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
+        long sweepIntervalTicks = Math.max(1, getConfig().getLong("cache.sweep-interval-seconds", 30)) * 20;
+        this.cacheSweepTask = Bukkit.getScheduler().runTaskTimer(this, mailManager::evictIdleMailboxes, sweepIntervalTicks, sweepIntervalTicks);
+
+        long cleanupIntervalMillis = getConfig().getLong("mail.cleanup-interval-minutes", 60) * 60 * 1000; // Default 1 hour
+        if (cleanupIntervalMillis > 0) {
+            this.expirationTask = workScheduler.runAsyncRepeating(() -> {
                 getLogger().info("Running scheduled mail cleanup...");
                 mailManager.cleanupExpiredMail();
-            }, 20L * 60, cleanupIntervalTicks);
+                playerDirectory.saveIfDirty();
+            }, 60 * 1000, cleanupIntervalMillis);
+        }
+
+        long archiveIntervalMillis = getConfig().getLong("archive.interval-minutes", 10) * 60 * 1000;
+        if (mailManager.getArchive() != null && archiveIntervalMillis > 0) {
+            this.archiveTask = workScheduler.runAsyncRepeating(mailManager::archiveOldMail, archiveIntervalMillis, archiveIntervalMillis);
+        }
+
+        this.scheduledMailTask = workScheduler.runAsyncRepeating(mailManager::releaseScheduledMail, 1000, 1000);
+
+        if (getConfig().getBoolean("metrics.jmx", true)) {
+            metrics.registerMBean();
+        }
+        long csvIntervalMillis = getConfig().getLong("metrics.csv-interval-seconds", 0) * 1000;
+        if (csvIntervalMillis > 0) {
+            metrics.startCsvDump(csvIntervalMillis);
         }
 
         getLogger().info("MailPlugin has been enabled successfully.");
     }
 
+    // Everything the mail itself needs, without commands, listeners or services. The soak test in src/loadtest
+    // starts just this, against a stand-in server.
+    void startCore() {
+        this.workScheduler = new WorkScheduler(this);
+        workScheduler.start();
+        this.metrics = new MailMetrics(this);
+
+        this.mailManager = new MailManager(this);
+        if (getConfig().getBoolean("storage.preload-all", false)) {
+            this.preloader = new MailPreloader(this, mailManager);
+            if (getConfig().getBoolean("storage.preload-async", true)) {
+                preloader.start(); // The server keeps starting; mailboxes not loaded yet are loaded on demand
+            } else {
+                preloader.run();
+            }
+        }
+    }
+
     @Override
     public void onDisable() {
 
         getLogger().info("MailPlugin is disabling.");
 
-        if (expirationTask != null && !expirationTask.isCancelled()) {
-            expirationTask.cancel();
+        if (preloader != null) {
+            preloader.cancel();
+        }
+        if (metrics != null) {
+            metrics.shutdown();
+        }
+        if (expirationTask != null) {
+            expirationTask.cancel(false); // A cleanup already running is allowed to finish
+        }
+        if (archiveTask != null) {
+            archiveTask.cancel(false);
+        }
+        if (scheduledMailTask != null) {
+            scheduledMailTask.cancel(false);
+        }
+        if (cacheSweepTask != null && !cacheSweepTask.isCancelled()) {
+            cacheSweepTask.cancel();
+        }
+
+
+        if (mailService != null) {
+            getServer().getServicesManager().unregister(mailService);
+            mailService.shutdown();
         }
 
+        if (broadcastManager != null) {
+            broadcastManager.shutdown();
+        }
+
+        if (workScheduler != null) {
+            workScheduler.shutdown(); // Finishes queued work while the mail manager can still take it
+        }
+
+        if (playerDirectory != null) {
+            playerDirectory.saveIfDirty();
+        }
 
         if (mailManager != null) {
-            mailManager.saveAllMail();
+            mailManager.shutdown(); // Flushes every mailbox still waiting in the write-behind queue
         }
 
         getLogger().info("MailPlugin has been disabled.");
     }
 
+    public WorkScheduler getWorkScheduler() {
+        return workScheduler;
+    }
+
+    public MailMetrics getMetrics() {
+        return metrics;
+    }
+
     public MailManager getMailManager() {
         return mailManager;
     }
+
+    public BroadcastManager getBroadcastManager() {
+        return broadcastManager;
+    }
+
+    public MailBookRenderer getBookRenderer() {
+        return bookRenderer;
+    }
+
+    public PlayerDirectory getPlayerDirectory() {
+        return playerDirectory;
+    }
+
+    public MailService getMailService() {
+        return mailService;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,189 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Every player who has joined, by case-insensitive name, so mail can be addressed to offline players without
+// Bukkit.getOfflinePlayer(name), which may block on a profile lookup. Filled in as players join and saved to
+// players.index. The most recent player to join under a name owns it; a renamed player's old name is dropped.
+public class PlayerDirectory {
+
+    private static final int MAGIC = 0x4D504C59; // "MPLY"
+
+    private final File indexFile;
+    private final Logger logger;
+
+    private final Map<String, KnownPlayer> byName = new ConcurrentHashMap<>(); // Keyed by lowercase name
+    private final Map<UUID, KnownPlayer> byId = new ConcurrentHashMap<>();
+    // Every known name sorted ignoring case, for prefix search. Rebuilt lazily after changes; new names are rare
+    // next to completions, and a plain array can be binary searched and scanned without allocating.
+    private volatile String[] sortedNames; // null when stale
+    private volatile boolean dirty;
+
+    public PlayerDirectory(File dataFolder, Logger logger) {
+        this.indexFile = new File(dataFolder, "players.index");
+        this.logger = logger;
+    }
+
+    // Reads players.index, or on first run seeds from the players the server already knows about
+    public void load() {
+        if (!indexFile.exists()) {
+            for (OfflinePlayer player : Bukkit.getOfflinePlayers()) {
+                if (player.getName() != null) {
+                    record(player.getUniqueId(), player.getName());
+                }
+            }
+            logger.info("Indexed " + byId.size() + " known player names.");
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a player index");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                UUID playerId = new UUID(in.readLong(), in.readLong());
+                record(playerId, in.readUTF());
+            }
+            dirty = false;
+        } catch (IOException e) {
+            // Names are learned again as players join
+            logger.log(Level.WARNING, "Could not read the player name index", e);
+        }
+    }
+
+    public void saveIfDirty() {
+        if (!dirty) {
+            return;
+        }
+        synchronized (this) {
+            dirty = false;
+            List<KnownPlayer> players = new ArrayList<>(byId.values());
+            File tempFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(players.size());
+                    for (KnownPlayer player : players) {
+                        out.writeLong(player.id.getMostSignificantBits());
+                        out.writeLong(player.id.getLeastSignificantBits());
+                        out.writeUTF(player.name);
+                    }
+                }
+                Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                dirty = true;
+                logger.log(Level.WARNING, "Could not save the player name index", e);
+            }
+        }
+    }
+
+    // Called on join. Cheap when nothing changed, which is almost always.
+    public void record(UUID playerId, String name) {
+        KnownPlayer current = byId.get(playerId);
+        if (current != null && current.name.equals(name)) {
+            return;
+        }
+        synchronized (this) {
+            KnownPlayer player = new KnownPlayer(playerId, name);
+            String key = name.toLowerCase(Locale.ROOT);
+            KnownPlayer previous = byId.put(playerId, player);
+            if (previous != null) { // Renamed
+                byName.remove(previous.key(), previous);
+            }
+            KnownPlayer displaced = byName.put(key, player);
+            if (displaced != null && !displaced.id.equals(playerId)) { // Someone else held this name before
+                byId.remove(displaced.id, displaced);
+            }
+            sortedNames = null;
+            dirty = true;
+        }
+    }
+
+    // null if nobody by that name has joined
+    public UUID resolve(String name) {
+        KnownPlayer player = byName.get(name.toLowerCase(Locale.ROOT));
+        return player == null ? null : player.id;
+    }
+
+    // The name as the player spells it, or null
+    public String getName(UUID playerId) {
+        KnownPlayer player = byId.get(playerId);
+        return player == null ? null : player.name;
+    }
+
+    // Up to limit known names starting with prefix, ignoring case, in alphabetical order. Allocates only the result.
+    public List<String> complete(String prefix, int limit) {
+        String[] names = sorted();
+        int index = Arrays.binarySearch(names, prefix, String.CASE_INSENSITIVE_ORDER);
+        if (index < 0) {
+            index = -index - 1; // Insertion point: the first name sorting at or after the prefix
+        }
+        List<String> matches = new ArrayList<>(Math.min(limit, 16));
+        for (int i = index; i < names.length && matches.size() < limit; i++) {
+            if (!names[i].regionMatches(true, 0, prefix, 0, prefix.length())) {
+                break;
+            }
+            matches.add(names[i]);
+        }
+        return matches;
+    }
+
+    private String[] sorted() {
+        String[] names = sortedNames;
+        if (names != null) {
+            return names;
+        }
+        synchronized (this) {
+            if (sortedNames == null) {
+                // byName only changes under "this", so its size holds while we copy
+                String[] rebuilt = new String[byName.size()];
+                int i = 0;
+                for (KnownPlayer player : byName.values()) {
+                    rebuilt[i++] = player.name;
+                }
+                Arrays.sort(rebuilt, String.CASE_INSENSITIVE_ORDER);
+                sortedNames = rebuilt;
+            }
+            return sortedNames;
+        }
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    private static final class KnownPlayer {
+        final UUID id;
+        final String name;
+
+        KnownPlayer(UUID id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        String key() {
+            return name.toLowerCase(Locale.ROOT);
+        }
+    }
+}
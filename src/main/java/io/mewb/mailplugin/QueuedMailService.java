@@ -0,0 +1,194 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+// MailService backed by a fixed pool with a bounded queue. The bound is the backpressure: a full queue rejects
+// instead of growing without limit or running the work on the caller, which may be the main thread.
+public class QueuedMailService implements MailService {
+
+    private static final double SATURATION_THRESHOLD = 0.9;
+
+    private final Mailplugin plugin;
+    private final MailManager mailManager;
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+
+    public QueuedMailService(Mailplugin plugin, MailManager mailManager) {
+        this.plugin = plugin;
+        this.mailManager = mailManager;
+        this.queueCapacity = Math.max(1, plugin.getConfig().getInt("api.queue-capacity", 10000));
+        int threads = Math.max(1, plugin.getConfig().getInt("api.threads", 2));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, "MailPlugin-Service-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    public CompletableFuture<UUID> send(UUID recipientId, String senderName, String subject, String body, List<ItemStack> items) {
+        List<ItemStack> copies = copyItems(items);
+        return submit(() -> mailManager.sendMail(recipientId, senderName, subject, body, copies).getMessageId());
+    }
+
+    @Override
+    public CompletableFuture<Integer> sendBatch(Collection<UUID> recipientIds, String senderName, String subject, String body, List<ItemStack> items) {
+        List<ItemStack> copies = copyItems(items);
+        List<UUID> recipients = List.copyOf(recipientIds);
+        return submit(() -> mailManager.sendMailBatch(recipients, senderName, subject, body, copies));
+    }
+
+    @Override
+    public CompletableFuture<UUID> schedule(UUID recipientId, String senderName, String subject, String body, List<ItemStack> items,
+                                            long deliverAt) {
+        List<ItemStack> copies = copyItems(items);
+        return submit(() -> {
+            try {
+                return mailManager.scheduleMail(recipientId, senderName, subject, body, copies, deliverAt).getMessageId();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Integer> scheduleBatch(Collection<UUID> recipientIds, String senderName, String subject, String body,
+                                                    List<ItemStack> items, long deliverAt) {
+        List<ItemStack> copies = copyItems(items);
+        List<UUID> recipients = List.copyOf(recipientIds);
+        return submit(() -> {
+            try {
+                return mailManager.scheduleMailBatch(recipients, senderName, subject, body, copies, deliverAt);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Integer> unreadCount(UUID playerId) {
+        return submit(() -> mailManager.countUnread(playerId));
+    }
+
+    @Override
+    public CompletableFuture<List<MailMessage>> fetchPage(UUID playerId, int page, int pageSize) {
+        if (page < 1 || pageSize < 1) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("page and pageSize must be at least 1"));
+        }
+        return submit(() -> {
+            List<MailMessage> mailList; // Oldest first
+            try {
+                mailList = mailManager.peekMailForPlayer(playerId); // Doesn't pull an offline mailbox into the cache
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            int to = mailList.size() - (int) Math.min(mailList.size(), (long) (page - 1) * pageSize);
+            int from = Math.max(0, to - pageSize);
+            List<MailMessage> result = new ArrayList<>(to - from);
+            for (int i = to - 1; i >= from; i--) {
+                result.add(mailList.get(i).copy()); // Copies, so callers can't change the plugin's own messages
+            }
+            return Collections.unmodifiableList(result);
+        });
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public boolean isSaturated() {
+        return getQueueDepth() >= queueCapacity * SATURATION_THRESHOLD;
+    }
+
+    // Lets queued work finish before the mail manager shuts down underneath it. Whatever is still queued after
+    // that fails, so no caller waits forever on a future that will never complete.
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Mail service still had " + executor.getQueue().size() + " queued requests at shutdown.");
+                failQueued(executor.shutdownNow());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failQueued(executor.shutdownNow());
+        }
+    }
+
+    private static void failQueued(List<Runnable> drained) {
+        for (Runnable task : drained) {
+            if (task instanceof Request<?> request) {
+                request.future.completeExceptionally(new RejectedExecutionException("The mail service shut down before the request ran"));
+            }
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> work) {
+        Request<T> request = new Request<>(work);
+        try {
+            executor.execute(request);
+        } catch (RejectedExecutionException e) {
+            String reason = executor.isShutdown() ? "The mail service has shut down"
+                    : "Mail queue is full (" + queueCapacity + " requests), try again later";
+            request.future.completeExceptionally(new RejectedExecutionException(reason, e));
+        }
+        return request.future;
+    }
+
+    // A queued request keeps its future, so shutdown can fail the ones it drains
+    private final class Request<T> implements Runnable {
+        private final Supplier<T> work;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Request(Supplier<T> work) {
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            try {
+                future.complete(work.get());
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.WARNING, "Mail service request failed", e);
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static List<ItemStack> copyItems(List<ItemStack> items) {
+        if (items == null || items.isEmpty()) {
+            return null;
+        }
+        List<ItemStack> copies = new ArrayList<>(items.size());
+        for (ItemStack item : items) {
+            if (item != null) {
+                copies.add(item.clone());
+            }
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,335 @@
+package io.mewb.mailplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Embedded SQLite database. The driver ships with Paper/Spigot, so nothing has to be shaded.
+// Unread counts and expiry run as indexed queries without loading any mailbox. One server only: WAL mode needs
+// shared memory on one host, so MailManager refuses it when mail is shared over the network.
+public class SqlMailStorage implements MailStorage {
+
+    private static final String COLUMNS = "message_id, recipient_id, sender_name, subject, body, items, sent_at, expires_at, is_read, claimed, attachment_id";
+
+    private final Connection connection; // SQLite allows one writer at a time, so all access is synchronized on this
+    private final Logger logger;
+
+    public SqlMailStorage(File databaseFile, Logger logger) throws IOException {
+        this.logger = logger;
+        try {
+            this.connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+                statement.execute("PRAGMA busy_timeout=5000"); // A migration's second connection waits instead of failing
+                statement.execute("CREATE TABLE IF NOT EXISTS mail ("
+                        + "message_id TEXT PRIMARY KEY, "
+                        + "recipient_id TEXT NOT NULL, "
+                        + "sender_name TEXT, "
+                        + "subject TEXT, "
+                        + "body TEXT, "
+                        + "items BLOB, "
+                        + "sent_at INTEGER NOT NULL, "
+                        + "expires_at INTEGER NOT NULL, "
+                        + "is_read INTEGER NOT NULL, "
+                        + "claimed INTEGER NOT NULL, "
+                        + "attachment_id TEXT)");
+                addColumnIfMissing(statement, "attachment_id", "TEXT"); // Databases created before shared attachments
+                statement.execute("CREATE INDEX IF NOT EXISTS idx_mail_recipient ON mail (recipient_id, sent_at)");
+                statement.execute("CREATE INDEX IF NOT EXISTS idx_mail_expiry ON mail (expires_at) WHERE expires_at > 0");
+                statement.execute("CREATE INDEX IF NOT EXISTS idx_mail_unread ON mail (recipient_id) WHERE is_read = 0");
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not open mail database " + databaseFile.getName(), e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "sql";
+    }
+
+    @Override
+    public synchronized List<MailMessage> loadMailbox(UUID playerId) throws IOException {
+        List<MailMessage> mailList = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT " + COLUMNS + " FROM mail WHERE recipient_id = ? ORDER BY sent_at")) {
+            statement.setString(1, playerId.toString());
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    try {
+                        mailList.add(readMessage(rs));
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Could not read mail message " + rs.getString(1) + " for player " + playerId, e);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not load mail for player " + playerId, e);
+        }
+        return mailList;
+    }
+
+    @Override
+    public synchronized void saveMailbox(UUID playerId, List<MailMessage> mailList) throws IOException {
+        try {
+            connection.setAutoCommit(false);
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM mail WHERE recipient_id = ?")) {
+                delete.setString(1, playerId.toString());
+                delete.executeUpdate();
+            }
+            insert(mailList);
+            connection.commit();
+        } catch (SQLException | IOException e) {
+            rollback();
+            throw new IOException("Could not save mail for player " + playerId, e);
+        } finally {
+            resetAutoCommit();
+        }
+    }
+
+    @Override
+    public synchronized void saveMailboxes(Map<UUID, List<MailMessage>> mailboxes) throws IOException {
+        try {
+            connection.setAutoCommit(false);
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM mail WHERE recipient_id = ?")) {
+                for (UUID playerId : mailboxes.keySet()) {
+                    delete.setString(1, playerId.toString());
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+            }
+            for (List<MailMessage> mailList : mailboxes.values()) {
+                insert(mailList);
+            }
+            connection.commit();
+        } catch (SQLException | IOException e) {
+            rollback();
+            throw new IOException("Could not save mail for " + mailboxes.size() + " players", e);
+        } finally {
+            resetAutoCommit();
+        }
+    }
+
+    @Override
+    public synchronized void appendMessage(MailMessage mail) throws IOException {
+        try {
+            insert(List.of(mail));
+        } catch (SQLException e) {
+            throw new IOException("Could not store mail " + mail.getMessageId(), e);
+        }
+    }
+
+    @Override
+    public synchronized void updateFlags(UUID playerId, UUID messageId, boolean read, boolean claimed) throws IOException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "UPDATE mail SET is_read = ?, claimed = ? WHERE message_id = ?")) {
+            statement.setInt(1, read ? 1 : 0);
+            statement.setInt(2, claimed ? 1 : 0);
+            statement.setString(3, messageId.toString());
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException("Could not update mail " + messageId, e);
+        }
+    }
+
+    @Override
+    public synchronized void deleteMessages(UUID playerId, Collection<UUID> messageIds) throws IOException {
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM mail WHERE message_id = ?")) {
+            for (UUID messageId : messageIds) {
+                statement.setString(1, messageId.toString());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        } catch (SQLException e) {
+            throw new IOException("Could not delete mail for player " + playerId, e);
+        }
+    }
+
+    @Override
+    public synchronized long deleteExpired(UUID playerId, long now, BiConsumer<UUID, String> removed) throws IOException {
+        try {
+            connection.setAutoCommit(false);
+            try (PreparedStatement select = connection.prepareStatement(
+                    "SELECT message_id, attachment_id, claimed FROM mail WHERE recipient_id = ? AND expires_at > 0 AND expires_at < ?")) {
+                select.setString(1, playerId.toString());
+                select.setLong(2, now);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        removed.accept(UUID.fromString(rs.getString(1)), rs.getInt(3) == 0 ? rs.getString(2) : null);
+                    }
+                }
+            }
+            try (PreparedStatement delete = connection.prepareStatement(
+                    "DELETE FROM mail WHERE recipient_id = ? AND expires_at > 0 AND expires_at < ?")) {
+                delete.setString(1, playerId.toString());
+                delete.setLong(2, now);
+                delete.executeUpdate();
+            }
+            long next;
+            try (PreparedStatement earliest = connection.prepareStatement(
+                    "SELECT MIN(expires_at) FROM mail WHERE recipient_id = ? AND expires_at > 0")) {
+                earliest.setString(1, playerId.toString());
+                try (ResultSet rs = earliest.executeQuery()) {
+                    next = rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+            connection.commit();
+            return next;
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Could not delete expired mail for player " + playerId, e);
+        } finally {
+            resetAutoCommit();
+        }
+    }
+
+    @Override
+    public synchronized Map<UUID, Long> scanExpiries() throws IOException {
+        Map<UUID, Long> expiries = new HashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(
+                     "SELECT recipient_id, MIN(expires_at) FROM mail WHERE expires_at > 0 GROUP BY recipient_id")) {
+            while (rs.next()) {
+                expiries.put(UUID.fromString(rs.getString(1)), rs.getLong(2));
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not scan mail expiry times", e);
+        }
+        return expiries;
+    }
+
+    @Override
+    public synchronized int countUnread(UUID playerId) throws IOException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT COUNT(*) FROM mail WHERE recipient_id = ? AND is_read = 0")) {
+            statement.setString(1, playerId.toString());
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not count unread mail for player " + playerId, e);
+        }
+    }
+
+    @Override
+    public synchronized Set<UUID> listMailboxes() throws IOException {
+        Set<UUID> playerIds = new HashSet<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT DISTINCT recipient_id FROM mail")) {
+            while (rs.next()) {
+                playerIds.add(UUID.fromString(rs.getString(1)));
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not list mailboxes", e);
+        }
+        return playerIds;
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return true;
+    }
+
+    // One transaction for the whole batch instead of one per change
+    @Override
+    public synchronized void applyChanges(UUID playerId, List<MailChange> changes) throws IOException {
+        try {
+            connection.setAutoCommit(false);
+            MailStorage.super.applyChanges(playerId, changes);
+            connection.commit();
+        } catch (SQLException | IOException e) {
+            rollback();
+            throw e instanceof IOException ? (IOException) e : new IOException("Could not apply mail changes for player " + playerId, e);
+        } finally {
+            resetAutoCommit();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Could not close mail database", e);
+        }
+    }
+
+    private void insert(List<MailMessage> mailList) throws SQLException, IOException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT OR IGNORE INTO mail (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            for (MailMessage mail : mailList) {
+                statement.setString(1, mail.getMessageId().toString());
+                statement.setString(2, mail.getRecipientId().toString());
+                statement.setString(3, mail.getSenderName());
+                statement.setString(4, mail.getSubject());
+                statement.setString(5, mail.getBody());
+                boolean inline = mail.getAttachmentId() == null && mail.hasItems();
+                statement.setBytes(6, inline ? MailCodec.encodeItems(mail.getItems()) : null);
+                statement.setLong(7, mail.getSentTimestamp());
+                statement.setLong(8, mail.getExpiryTimestamp());
+                statement.setInt(9, mail.isRead() ? 1 : 0);
+                statement.setInt(10, mail.isClaimed() ? 1 : 0);
+                statement.setString(11, mail.getAttachmentId());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private static MailMessage readMessage(ResultSet rs) throws SQLException, IOException {
+        byte[] items = rs.getBytes(6);
+        MailMessage mail = new MailMessage(UUID.fromString(rs.getString(1)), UUID.fromString(rs.getString(2)),
+                rs.getString(3), rs.getString(4), rs.getString(5),
+                items == null ? new ArrayList<>() : MailCodec.decodeItems(items),
+                rs.getLong(7), rs.getLong(8), rs.getInt(10) != 0, rs.getInt(9) != 0);
+        String attachmentId = rs.getString(11);
+        if (attachmentId != null) {
+            mail.setAttachment(attachmentId, List.of());
+        }
+        return mail;
+    }
+
+    private static void addColumnIfMissing(Statement statement, String column, String type) throws SQLException {
+        try (ResultSet rs = statement.executeQuery("PRAGMA table_info(mail)")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return;
+                }
+            }
+        }
+        statement.execute("ALTER TABLE mail ADD COLUMN " + column + " " + type);
+    }
+
+    private void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Could not roll back mail database transaction", e);
+        }
+    }
+
+    private void resetAutoCommit() {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Could not reset mail database auto-commit", e);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+
+// Where the plugin's background work runs. Work that needs Bukkit objects is queued for the main thread and run
+// once per tick until that tick's budget (scheduler.tick-budget-ms) is spent; whatever is left waits for the next
+// tick, so a backlog spreads out instead of costing a tick. Large jobs go in as slices, which run a little at a
+// time and are requeued until they report they are done. Everything else runs on a dedicated pool.
+public class WorkScheduler {
+
+    private final Mailplugin plugin;
+    private final long budgetNanos;
+    private final ConcurrentLinkedQueue<BooleanSupplier> mainQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mainQueueDepth = new AtomicInteger(); // ConcurrentLinkedQueue.size() walks the queue
+    private final AtomicInteger asyncQueueDepth = new AtomicInteger();
+    private final ScheduledThreadPoolExecutor pool;
+    private final LatencyRecorder tickUsage = new LatencyRecorder();
+    private BukkitTask tickTask;
+
+    // Written on the main thread only
+    private volatile long lastTickNanos;
+    private volatile long overBudgetTicks;
+
+    public WorkScheduler(Mailplugin plugin) {
+        this.plugin = plugin;
+        this.budgetNanos = (long) (Math.max(0.1, plugin.getConfig().getDouble("scheduler.tick-budget-ms", 2.0)) * 1_000_000);
+        int threads = Math.max(1, plugin.getConfig().getInt("scheduler.worker-threads", 2));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread thread = new Thread(r, "MailPlugin-Worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        this.tickTask = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+    }
+
+    // Runs what is left on the main queue, regardless of budget, and waits briefly for the pool. Call from onDisable.
+    public void shutdown() {
+        if (tickTask != null) {
+            tickTask.cancel();
+        }
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Background mail work did not finish in time.");
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+        }
+        BooleanSupplier slice;
+        while ((slice = mainQueue.poll()) != null) {
+            mainQueueDepth.decrementAndGet();
+            while (runSafely(slice)) {
+                // Run the job to completion
+            }
+        }
+    }
+
+    public void runOnMain(Runnable task) {
+        runSliced(() -> {
+            task.run();
+            return false;
+        });
+    }
+
+    // slice does a bounded amount of work and returns true while there is more
+    public void runSliced(BooleanSupplier slice) {
+        mainQueueDepth.incrementAndGet();
+        mainQueue.add(slice);
+    }
+
+    public void runAsync(Runnable task) {
+        asyncQueueDepth.incrementAndGet();
+        try {
+            pool.execute(() -> {
+                asyncQueueDepth.decrementAndGet();
+                runSafely(task);
+            });
+        } catch (RejectedExecutionException e) {
+            asyncQueueDepth.decrementAndGet();
+            throw e;
+        }
+    }
+
+    public ScheduledFuture<?> runAsyncRepeating(Runnable task, long delayMillis, long periodMillis) {
+        return pool.scheduleWithFixedDelay(() -> runSafely(task), delayMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        if (mainQueueDepth.get() == 0) {
+            lastTickNanos = 0;
+            return;
+        }
+        long started = System.nanoTime();
+        long deadline = started + budgetNanos;
+        // Only what was queued before this tick, so a slice that requeues itself can't keep the loop going
+        int available = mainQueueDepth.get();
+        ArrayDeque<BooleanSupplier> unfinished = new ArrayDeque<>();
+        while (available-- > 0 && System.nanoTime() < deadline) { // At least one slice always runs
+            BooleanSupplier slice = mainQueue.poll();
+            if (slice == null) {
+                break;
+            }
+            mainQueueDepth.decrementAndGet();
+            if (runSafely(slice)) {
+                unfinished.add(slice);
+            }
+        }
+        for (BooleanSupplier slice : unfinished) {
+            runSliced(slice);
+        }
+        long used = System.nanoTime() - started;
+        lastTickNanos = used;
+        tickUsage.record(used);
+        if (used > budgetNanos) {
+            overBudgetTicks++;
+        }
+    }
+
+    private boolean runSafely(BooleanSupplier slice) {
+        try {
+            return slice.getAsBoolean();
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.SEVERE, "Scheduled mail work failed", e);
+            return false;
+        }
+    }
+
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.SEVERE, "Background mail work failed", e);
+        }
+    }
+
+    public int getMainQueueDepth() {
+        return mainQueueDepth.get();
+    }
+
+    public int getAsyncQueueDepth() {
+        return asyncQueueDepth.get();
+    }
+
+    public double getBudgetMillis() {
+        return budgetNanos / 1_000_000.0;
+    }
+
+    // Main-thread time spent on queued work in the last tick
+    public double getLastTickMillis() {
+        return lastTickNanos / 1_000_000.0;
+    }
+
+    // Per-tick main-thread time, for ticks that had work
+    public LatencyRecorder getTickUsage() {
+        return tickUsage;
+    }
+
+    public long getOverBudgetTicks() {
+        return overBudgetTicks;
+    }
+}
@@ -0,0 +1,222 @@
+package io.mewb.mailplugin;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// The original format: one maildata/<uuid>.yml per player, rewritten in full on every save
+public class YamlMailStorage implements MailStorage {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final File mailDataFolder;
+    private final Logger logger;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public YamlMailStorage(File mailDataFolder, Logger logger) {
+        this.mailDataFolder = mailDataFolder;
+        this.logger = logger;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        if (!mailDataFolder.exists()) {
+            if (!mailDataFolder.mkdirs()) {
+                logger.severe("Could not create maildata folder!");
+            }
+        }
+    }
+
+    private Object lockFor(UUID playerId) {
+        return locks[(playerId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    @Override
+    public String getName() {
+        return "yaml";
+    }
+
+    File getMailFile(UUID playerId) {
+        return new File(mailDataFolder, playerId.toString() + ".yml");
+    }
+
+    @Override
+    public List<MailMessage> loadMailbox(UUID playerId) throws IOException {
+        synchronized (lockFor(playerId)) {
+            return read(playerId);
+        }
+    }
+
+    private List<MailMessage> read(UUID playerId) throws IOException {
+        File playerFile = getMailFile(playerId);
+        List<MailMessage> mailList = new ArrayList<>();
+        if (!playerFile.exists()) {
+            return mailList;
+        }
+        FileConfiguration mailConfig = new YamlConfiguration();
+        try {
+            mailConfig.load(playerFile);
+        } catch (InvalidConfigurationException e) {
+            throw new CorruptMailException("Malformed mail file " + playerFile.getName(), e);
+        }
+        List<?> rawMailList = mailConfig.getList("mail");
+        if (rawMailList != null) {
+            for (Object obj : rawMailList) {
+                if (obj instanceof MailMessage) {
+                    mailList.add((MailMessage) obj);
+                } else if (obj instanceof Map) {
+                    try {
+                        mailList.add(MailMessage.deserialize((Map<String, Object>) obj));
+                    } catch (Exception e) {
+                        logger.log(Level.WARNING, "Could not deserialize mail message from map for player " + playerId, e);
+                    }
+                }
+            }
+        }
+        return mailList;
+    }
+
+    @Override
+    public void saveMailbox(UUID playerId, List<MailMessage> mailList) throws IOException {
+        synchronized (lockFor(playerId)) {
+            write(playerId, mailList);
+        }
+    }
+
+    private void write(UUID playerId, List<MailMessage> mailList) throws IOException {
+        File playerFile = getMailFile(playerId);
+        if (mailList.isEmpty()) {
+            if (playerFile.exists() && !playerFile.delete()) {
+                throw new IOException("Could not delete empty mail file " + playerFile.getName());
+            }
+            return;
+        }
+
+        FileConfiguration mailConfig = new YamlConfiguration();
+        mailConfig.set("mail", mailList); // List of MailMessage objects
+
+        // Write next to the real file and swap it in, so a crash mid-write never leaves a half-written file
+        File tempFile = new File(mailDataFolder, playerFile.getName() + ".tmp");
+        mailConfig.save(tempFile);
+        bytesWritten.addAndGet(tempFile.length());
+        Files.move(tempFile.toPath(), playerFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void appendMessage(MailMessage mail) throws IOException {
+        UUID playerId = mail.getRecipientId();
+        synchronized (lockFor(playerId)) {
+            List<MailMessage> mailList = read(playerId);
+            for (MailMessage existing : mailList) {
+                if (existing.getMessageId().equals(mail.getMessageId())) {
+                    return; // Already delivered, e.g. a resumed broadcast
+                }
+            }
+            mailList.add(mail);
+            write(playerId, mailList);
+        }
+    }
+
+    @Override
+    public void updateFlags(UUID playerId, UUID messageId, boolean read, boolean claimed) throws IOException {
+        synchronized (lockFor(playerId)) {
+            List<MailMessage> mailList = read(playerId);
+            for (MailMessage mail : mailList) {
+                if (mail.getMessageId().equals(messageId)) {
+                    mail.setRead(read);
+                    mail.setClaimed(claimed);
+                    write(playerId, mailList);
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void deleteMessages(UUID playerId, Collection<UUID> messageIds) throws IOException {
+        synchronized (lockFor(playerId)) {
+            List<MailMessage> mailList = read(playerId);
+            if (mailList.removeIf(mail -> messageIds.contains(mail.getMessageId()))) {
+                write(playerId, mailList);
+            }
+        }
+    }
+
+    @Override
+    public long deleteExpired(UUID playerId, long now, BiConsumer<UUID, String> removed) throws IOException {
+        synchronized (lockFor(playerId)) {
+            List<MailMessage> mailList = read(playerId);
+            List<MailMessage> expired = new ArrayList<>();
+            mailList.removeIf(mail -> mail.isExpired(now) && expired.add(mail));
+            if (!expired.isEmpty()) {
+                write(playerId, mailList);
+                for (MailMessage mail : expired) {
+                    removed.accept(mail.getMessageId(), mail.holdsAttachment() ? mail.getAttachmentId() : null);
+                }
+            }
+            return ExpiryIndex.earliestExpiry(mailList);
+        }
+    }
+
+    @Override
+    public void quarantine(UUID playerId) throws IOException {
+        synchronized (lockFor(playerId)) {
+            MailStorage.moveToQuarantine(getMailFile(playerId));
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public int countUnread(UUID playerId) throws IOException {
+        int count = 0;
+        for (MailMessage mail : loadMailbox(playerId)) {
+            if (!mail.isRead()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Set<UUID> listMailboxes() {
+        Set<UUID> playerIds = new HashSet<>();
+        File[] playerFiles = mailDataFolder.listFiles((dir, name) -> name.endsWith(".yml"));
+        if (playerFiles == null) {
+            return playerIds;
+        }
+        for (File playerFile : playerFiles) {
+            String fileName = playerFile.getName();
+            try {
+                playerIds.add(UUID.fromString(fileName.substring(0, fileName.length() - 4))); // Remove .yml
+            } catch (IllegalArgumentException e) {
+                logger.warning("Found invalid mail file name: " + fileName);
+            }
+        }
+        return playerIds;
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return false;
+    }
+}